@@ -0,0 +1,337 @@
+package nachos.machine;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many independent Nachos simulations in one JVM, several at a time.
+ *
+ * <p>
+ * Nearly all the state of the machine and of the kernel is static, so each
+ * simulation is loaded by a class loader of its own, which gives it its own
+ * copy of every Nachos class, and is started with <tt>Machine.run()</tt>.
+ * The output of each simulation is collected separately, and printed in the
+ * order the simulations were listed.
+ *
+ * <p>
+ * Each line of the job file (or of the standard input, if there is none)
+ * holds the command line arguments of one simulation, as they would be given
+ * to <tt>nachos.machine.Machine</tt>. Blank lines, and lines starting with
+ * <tt>#</tt>, are skipped. A first argument of the form <tt>&lt;file</tt>
+ * gives the simulation that file as its console input; otherwise its input
+ * is empty. For example:
+ *
+ * <pre>
+ * -[] ../proj3/nachos.conf -m 16 -x matmult.coff
+ * &lt;sh.in -[] ../proj3/nachos.conf -m 4 -x sh.coff
+ * </pre>
+ *
+ * <p>
+ * The simulations share the test directory, so each is given a swap file of
+ * its own, <tt>swap.<i>n</i></tt> for the <i>n</i>th job, with
+ * <tt>-c SwapFile.name=swap.<i>n</i></tt>, unless its line sets one itself.
+ *
+ * <p>
+ * Usage: <tt>java nachos.machine.BatchRunner [-j <i>threads</i>]
+ * [<i>jobfile</i>]</tt>. The number of threads defaults to the number of
+ * processors of the host. The JVM exits with status 1 if any simulation
+ * exited with a status other than 0.
+ *
+ * <p>
+ * No <tt>NachosSecurityManager</tt> is installed for the jobs. There is only
+ * one security manager per JVM, and it would check every job against the
+ * privileges of a single simulation. So nothing stops a job's kernel or
+ * autograder classes from reading or writing files outside its test
+ * directory, exiting the JVM, or reaching into the other jobs through
+ * reflection, all of which <tt>Machine.main()</tt> forbids. Only run trusted
+ * code this way, and grade submissions with <tt>Machine.main()</tt>.
+ */
+public final class BatchRunner {
+    /**
+     * Run the simulations listed in a job file.
+     *
+     * @param	args	the command line arguments.
+     */
+    public static void main(String[] args) throws IOException {
+	int threads = Runtime.getRuntime().availableProcessors();
+	String jobFileName = null;
+
+	for (int i=0; i<args.length; i++) {
+	    if (args[i].equals("-j") && i+1 < args.length)
+		threads = Integer.parseInt(args[++i]);
+	    else if (jobFileName == null && !args[i].startsWith("-"))
+		jobFileName = args[i];
+	    else
+		usage();
+	}
+	if (threads < 1)
+	    usage();
+
+	List<String> lines = readJobs(jobFileName);
+
+	PrintStream out = System.out;
+	System.setOut(new PrintStream(new JobOutput(out), true));
+	System.setErr(new PrintStream(new JobOutput(System.err), true));
+	System.setIn(new JobInput());
+
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	List<Future<Job>> results = new ArrayList<Future<Job>>();
+	for (int i=0; i<lines.size(); i++)
+	    results.add(pool.submit(new Job(i, lines.get(i))));
+
+	int failed = 0;
+	for (int i=0; i<results.size(); i++) {
+	    Job job;
+	    try {
+		job = results.get(i).get();
+	    }
+	    catch (Exception e) {
+		throw new RuntimeException(e);
+	    }
+
+	    out.println("=== job " + i + ": " + job.line);
+	    out.write(job.output.toByteArray(), 0, job.output.size());
+	    out.println("=== job " + i + " exited with status " + job.status);
+	    out.flush();
+
+	    if (job.status != 0)
+		failed++;
+	}
+	pool.shutdown();
+
+	out.println("=== " + results.size() + " jobs, " + failed + " failed");
+	// a simulation can leave threads behind; they must not keep us up
+	System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void usage() {
+	System.err.println("usage: java nachos.machine.BatchRunner " +
+			   "[-j threads] [jobfile]");
+	System.exit(2);
+    }
+
+    private static List<String> readJobs(String fileName) throws IOException {
+	BufferedReader reader = new BufferedReader((fileName == null) ?
+	    new InputStreamReader(System.in) : new FileReader(fileName));
+
+	List<String> lines = new ArrayList<String>();
+	for (String line; (line = reader.readLine()) != null; ) {
+	    line = line.trim();
+	    if (line.length() > 0 && !line.startsWith("#"))
+		lines.add(line);
+	}
+	reader.close();
+
+	return lines;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+	InputStream in = new FileInputStream(file);
+	try {
+	    return readAll(in);
+	}
+	finally {
+	    in.close();
+	}
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	byte[] buffer = new byte[4096];
+	for (int n; (n = in.read(buffer)) > 0; )
+	    bytes.write(buffer, 0, n);
+	return bytes.toByteArray();
+    }
+
+    /**
+     * One simulation: run by the thread pool, in a class loader of its own.
+     */
+    private static class Job implements Callable<Job> {
+	Job(int number, String line) {
+	    this.number = number;
+	    this.line = line;
+	}
+
+	public Job call() {
+	    current.set(this);
+	    PrintStream err = new PrintStream(output, true);
+	    try {
+		List<String> args = new ArrayList<String>();
+		for (StringTokenizer st = new StringTokenizer(line);
+		     st.hasMoreTokens(); ) {
+		    String arg = st.nextToken();
+		    if (args.isEmpty() && input == null && arg.startsWith("<"))
+			input = new ByteArrayInputStream(
+			    readFile(new File(arg.substring(1))));
+		    else
+			args.add(arg);
+		}
+		if (input == null)
+		    input = new ByteArrayInputStream(new byte[0]);
+		if (line.indexOf("SwapFile.name=") < 0) {
+		    args.add(0, "-c");
+		    args.add(1, "SwapFile.name=swap." + number);
+		}
+
+		ClassLoader loader = new JobClassLoader();
+		Thread.currentThread().setContextClassLoader(loader);
+		Method run = loader.loadClass("nachos.machine.Machine")
+		    .getMethod("run", new Class<?>[] { String[].class });
+		status = ((Integer) run.invoke(null, new Object[] {
+		    args.toArray(new String[0]) })).intValue();
+	    }
+	    catch (InvocationTargetException e) {
+		e.getCause().printStackTrace(err);
+		status = -1;
+	    }
+	    catch (Throwable e) {
+		e.printStackTrace(err);
+		status = -1;
+	    }
+	    finally {
+		Thread.currentThread().setContextClassLoader(null);
+		current.remove();
+	    }
+	    return this;
+	}
+
+	private final int number;
+	private final String line;
+	/** Everything the simulation printed, to either stream. */
+	private final ByteArrayOutputStream output =
+	    new ByteArrayOutputStream();
+	/** The console input of the simulation. */
+	private InputStream input = null;
+	private int status;
+    }
+
+    /**
+     * Loads its own copy of every Nachos class, and leaves the rest to the
+     * class loader that loaded us.
+     */
+    private static class JobClassLoader extends ClassLoader {
+	JobClassLoader() {
+	    super(BatchRunner.class.getClassLoader());
+	}
+
+	protected Class<?> loadClass(String name, boolean resolve)
+	    throws ClassNotFoundException {
+	    if (!name.startsWith("nachos."))
+		return super.loadClass(name, resolve);
+
+	    Class<?> cls = findLoadedClass(name);
+	    if (cls == null) {
+		byte[] bytes = classBytes(name);
+		cls = defineClass(name, bytes, 0, bytes.length);
+	    }
+	    if (resolve)
+		resolveClass(cls);
+	    return cls;
+	}
+
+	private byte[] classBytes(String name) throws ClassNotFoundException {
+	    byte[] bytes = classFiles.get(name);
+	    if (bytes != null)
+		return bytes;
+
+	    InputStream in = getParent().getResourceAsStream(
+		name.replace('.', '/') + ".class");
+	    if (in == null)
+		throw new ClassNotFoundException(name);
+	    try {
+		bytes = readAll(in);
+		in.close();
+	    }
+	    catch (IOException e) {
+		throw new ClassNotFoundException(name, e);
+	    }
+
+	    classFiles.put(name, bytes);
+	    return bytes;
+	}
+    }
+
+    /**
+     * Sends what is written to the output of the job the current thread
+     * belongs to, or, for threads of no job, where it went before.
+     */
+    private static class JobOutput extends OutputStream {
+	JobOutput(OutputStream other) {
+	    this.other = other;
+	}
+
+	private OutputStream target() {
+	    Job job = current.get();
+	    return (job == null) ? other : job.output;
+	}
+
+	public void write(int b) throws IOException {
+	    target().write(b);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+	    target().write(b, off, len);
+	}
+
+	public void flush() throws IOException {
+	    target().flush();
+	}
+
+	private final OutputStream other;
+    }
+
+    /**
+     * Reads from the input of the job the current thread belongs to, or
+     * gives end of file, for threads of no job.
+     */
+    private static class JobInput extends InputStream {
+	private InputStream source() {
+	    Job job = current.get();
+	    return (job == null || job.input == null) ? empty : job.input;
+	}
+
+	public int read() throws IOException {
+	    return source().read();
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+	    return source().read(b, off, len);
+	}
+
+	public int available() throws IOException {
+	    return source().available();
+	}
+
+	private final InputStream empty = new ByteArrayInputStream(new byte[0]);
+    }
+
+    /**
+     * The job each thread belongs to. The threads a simulation creates for
+     * its TCBs inherit it from the thread that runs the simulation.
+     */
+    private static final InheritableThreadLocal<Job> current =
+	new InheritableThreadLocal<Job>();
+
+    /** The class files read so far, so that each is read only once. */
+    private static final ConcurrentHashMap<String, byte[]> classFiles =
+	new ConcurrentHashMap<String, byte[]>();
+}
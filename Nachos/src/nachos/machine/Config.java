@@ -86,6 +86,18 @@ public final class Config {
 	}
     }
 
+    /**
+     * Set the value of a key, overriding the value loaded from
+     * <tt>nachos.conf</tt>, if any. Used for the <tt>-c</tt> switch.
+     *
+     * @param	key	the key to set.
+     * @param	value	its new value.
+     */
+    static void set(String key, String value) {
+	Lib.assertTrue(loaded);
+	config.put(key, value);
+    }
+
     private static void loadError(int line) {
 	System.err.println("Error in " + configFile + " line " + line);
 	System.exit(1);
@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
 import java.util.Iterator;
-import java.util.SortedSet;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new TimingWheel();
     }
 
     /**
@@ -120,17 +118,79 @@ public final class Interrupt {
 	return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
+    /**
+     * Move simulated time straight to the next pending interrupt and handle
+     * it, rather than a tick at a time. Called by the idle thread, with
+     * interrupts enabled, when no other thread is ready to run; the ticks
+     * skipped are counted as kernel ticks, as they would have been had the
+     * idle thread spun through them.
+     *
+     * <p>
+     * Does nothing if an interrupt was handled at the current time, since
+     * its handler may have made a thread ready, which should run first.
+     */
+    public void idle() {
+	Lib.assertTrue(enabled);
+
+	Stats stats = privilege.stats;
+	if (lastHandled == stats.totalTicks)
+	    return;
+
+	long time = pending.nextTime();
+
+	// the tick below takes us the rest of the way
+	if (time != Long.MAX_VALUE &&
+	    time - stats.totalTicks > Stats.KernelTick) {
+	    long skipped = time - stats.totalTicks - Stats.KernelTick;
+
+	    Lib.debug(dbgInt, "Idle until time = " + time);
+
+	    stats.kernelTicks += skipped;
+	    stats.totalTicks += skipped;
+	}
+
+	tick(true);
+    }
+
+    /**
+     * Put back statistics saved earlier, e.g. in a snapshot, which moves
+     * simulated time forward to when they were saved. The pending interrupts
+     * move with it, so each is still due as many ticks ahead as it was.
+     *
+     * @param	saved	the statistics to restore; its <tt>totalTicks</tt>
+     *			must not be in the past.
+     */
+    public void restoreStats(Stats saved) {
+	long delta = saved.totalTicks - privilege.stats.totalTicks;
+	Lib.assertTrue(delta >= 0);
+
+	boolean intStatus = disable();
+
+	pending.shift(delta);
+	privilege.stats.set(saved);
+
+	restore(intStatus);
+    }
+
+    private long schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	return pending.add(time, type, handler);
+    }
+
+    private boolean cancel(long handle) {
+	boolean cancelled = pending.cancel(handle);
+
+	if (cancelled)
+	    Lib.debug(dbgInt, "Cancelled an interrupt");
+
+	return cancelled;
     }
 
     private void tick(boolean inKernelMode) {
@@ -161,39 +221,86 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending.nextTime() > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (pending.nextTime() <= time) {
+	    TimingWheel.Event next = pending.poll();
+	    String type = next.type;
+	    Runnable handler = next.handler;
+	    pending.free(next);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
-			
-	    next.handler.run();
+	    Lib.debug(dbgInt, "  " + type);
+
+	    handlersInvoked++;
+	    lastHandled = time;
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
+    /**
+     * Return the number of interrupt handlers invoked so far. Kernel code
+     * only runs in interrupt handlers and exception handlers, so if this has
+     * not changed since the processor last looked, nothing but the user
+     * program can have touched the processor or memory in the meantime.
+     *
+     * @return	the number of interrupt handlers invoked so far.
+     */
+    long getHandlersInvoked() {
+	return handlersInvoked;
+    }
+
+    /**
+     * Return the number of user ticks that can pass before an interrupt is
+     * due; that is, how many times <tt>tick(false)</tt> could be called
+     * without invoking a handler. The processor uses this to run that many
+     * instructions and then account for them with <tt>userTicks()</tt>.
+     *
+     * @return	the number of user ticks until the next interrupt is due.
+     */
+    long getUserTicksUntilDue() {
+	// the tick by tick debug output needs every tick to be a real one
+	if (Lib.test(dbgInt))
+	    return 0;
+
+	if (pending.isEmpty())
+	    return Long.MAX_VALUE;
+
+	long until = pending.nextTime() - privilege.stats.totalTicks;
+	if (until <= 0)
+	    return 0;
+
+	return (until-1) / Stats.UserTick;
+    }
+
+    /**
+     * Account for <i>count</i> user ticks at once. No interrupt may come due
+     * in the meantime; see <tt>getUserTicksUntilDue()</tt>.
+     *
+     * @param	count	the number of user ticks that passed.
+     */
+    void userTicks(long count) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += count * Stats.UserTick;
+	stats.totalTicks += count * Stats.UserTick;
+    }
+
     private void print() {
 	System.out.println("Time: " + privilege.stats.totalTicks
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	for (Iterator<TimingWheel.Event> i=pending.pending().iterator();
+	     i.hasNext(); ) {
+	    TimingWheel.Event toOccur = i.next();
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,49 +308,24 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
-
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
-	}
-
-	long time;
-	String type;
-	Runnable handler;
-
-	private long id;
-    }
-    
-    private long numPendingInterruptsCreated = 0;
+    private long handlersInvoked = 0;
+    /** When an interrupt handler was last called. */
+    private long lastHandled = -1;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private TimingWheel pending;
 
     private static final char dbgInt = 'i';
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-	public void schedule(long when, String type, Runnable handler) {
-	    Interrupt.this.schedule(when, type, handler);
+	public long schedule(long when, String type, Runnable handler) {
+	    return Interrupt.this.schedule(when, type, handler);
+	}
+
+	public boolean cancel(long handle) {
+	    return Interrupt.this.cancel(handle);
 	}
 
 	public void tick(boolean inKernelMode) {
@@ -6,6 +6,7 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.security.PrivilegedAction;
 import java.util.Random;
 
@@ -182,6 +183,24 @@ public final class Lib {
 	assertTrue(finishTime>startTime);	
     }
 
+    /**
+     * Read a file into the remaining bytes of a buffer, verifying that they
+     * are all read, and that the read operation took a non-zero amount of
+     * time.
+     *
+     * @param	file		the file to read.
+     * @param	position	the file offset at which to start reading.
+     * @param	buf		the buffer in which to store the data.
+     */
+    public static void strictReadFile(OpenFile file, int position,
+				      ByteBuffer buf) {
+	long startTime = Machine.timer().getTime();
+	int length = buf.remaining();
+	assertTrue(file.read(position, buf) == length);
+	long finishTime = Machine.timer().getTime();
+	assertTrue(finishTime>startTime);	
+    }
+
     /**
      * Load an entire file into memory.
      *
@@ -467,7 +486,9 @@ public final class Lib {
      */
     public static Class tryLoadClass(String className) {
 	try {
-	    return ClassLoader.getSystemClassLoader().loadClass(className);
+	    // not the system class loader: under BatchRunner, Nachos is loaded
+	    // by one of its own
+	    return Lib.class.getClassLoader().loadClass(className);
 	}
 	catch (Throwable e) {
 	    return null;
@@ -482,7 +503,7 @@ public final class Lib {
      */
     public static Class loadClass(String className) {
 	try {
-	    return ClassLoader.getSystemClassLoader().loadClass(className);
+	    return Lib.class.getClassLoader().loadClass(className);
 	}
 	catch (Throwable e) {
 	    Machine.terminate(e);
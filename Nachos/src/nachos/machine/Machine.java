@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.util.ArrayList;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -18,6 +19,39 @@ public final class Machine {
      * @param	args	the command line arguments.
      */
     public static void main(final String[] args) {
+	start(args, true);
+
+	/* The first thread is often done long before the others, which keep
+	 * the JVM running unless they are virtual threads (always daemons), so
+	 * wait here until Nachos exits the JVM.
+	 */
+	TCB.waitForDestroyAll();
+    }
+
+    /**
+     * Run Nachos in the current thread, like <tt>main()</tt>, but return
+     * once Nachos exits, rather than exiting the JVM, and without installing
+     * the security manager, which would be for the whole JVM. This lets
+     * <tt>BatchRunner</tt> run many simulations in the same JVM, each in a
+     * class loader of its own, so that each has its own static state.
+     *
+     * @param	args	the command line arguments.
+     * @return	the status Nachos exited with.
+     */
+    public static int run(final String[] args) {
+	try {
+	    start(args, false);
+	}
+	catch (ThreadDeath e) {
+	    // Nachos exited before (or while) starting its threads
+	}
+	// the first thread is often done long before the others
+	TCB.waitForDestroyAll();
+
+	return securityManager.getExitStatus();
+    }
+
+    private static void start(final String[] args, boolean secure) {
 	System.out.print("nachos 5.0j initializing...");
 	
 	Lib.assertTrue(Machine.args == null);
@@ -26,6 +60,8 @@ public final class Machine {
 	processArgs();
 
 	Config.load(configFileName);
+	for (int i=0; i<configOverrides.size(); i+=2)
+	    Config.set(configOverrides.get(i), configOverrides.get(i+1));
 
 	// get the current directory (.)
 	baseDirectory = new File(new File("").getAbsolutePath());
@@ -52,7 +88,8 @@ public final class Machine {
 	TCB.givePrivilege(privilege);
 	privilege.stats = stats;
 
-	securityManager.enable();
+	if (secure)
+	    securityManager.enable();
 	createDevices();
 	checkUserClasses();
 
@@ -117,7 +154,15 @@ public final class Machine {
 	for (int i=0; i<args.length; ) {
 	    String arg = args[i++];
 	    if (arg.length() > 0 && arg.charAt(0) == '-') {
-		if (arg.equals("-d")) {
+		if (arg.equals("-c")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    String setting = args[i++];
+		    int equals = setting.indexOf('=');
+		    Lib.assertTrue(equals > 0, "bad value for -c switch");
+		    configOverrides.add(setting.substring(0, equals));
+		    configOverrides.add(setting.substring(equals+1));
+		}
+		else if (arg.equals("-d")) {
 		    Lib.assertTrue(i < args.length, "switch without argument");
 		    Lib.enableDebugFlags(args[i++]);
 		}
@@ -351,6 +396,14 @@ public final class Machine {
      */
     public static AutoGrader autoGrader() { return autoGrader; }
 
+    /**
+     * Return a copy of the statistics kept so far. To put them back, e.g.
+     * when restoring a snapshot, use <tt>Interrupt.restoreStats()</tt>.
+     *
+     * @return	a copy of the statistics.
+     */
+    public static Stats getStats() { return new Stats(stats); }
+
     private static Interrupt interrupt = null;
     private static Timer timer = null;
     private static ElevatorBank bank = null;
@@ -415,11 +468,18 @@ public final class Machine {
 
     private static File baseDirectory, nachosDirectory, testDirectory;
     private static String configFileName = "nachos.conf";
+    /** Keys and values given with <tt>-c</tt>, alternately. */
+    private static ArrayList<String> configOverrides =
+	new ArrayList<String>();
 
     private static final String help =
 	"\n" +
 	"Options:\n" +
 	"\n" +
+	"\t-c <key>=<value>\n" +
+	"\t\tSet a configuration variable, overriding the config file,\n" +
+	"\t\te.g. -c SwapFile.name=swap2\n" +
+	"\n" +
 	"\t-d <debug flags>\n" +
 	"\t\tEnable some debug flags, e.g. -d ti\n" +
 	"\n" +
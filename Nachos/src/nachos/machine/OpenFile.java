@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
 
 /**
  * A file that supports reading, writing, and seeking.
@@ -77,6 +78,66 @@ public class OpenFile {
 	return -1;
     }
 
+    /**
+     * Read this file starting at the specified position into the remaining
+     * bytes of a buffer, and return the number of bytes successfully read,
+     * like <tt>read(pos, buf, offset, length)</tt>. The position of the buffer
+     * is advanced by that amount. Subclasses that can read into the buffer
+     * directly, e.g. into physical memory from
+     * <tt>Processor.getMemoryBuffer()</tt>, should override this; by default
+     * the bytes go through an array.
+     *
+     * @param	pos	the offset in the file at which to start reading.
+     * @param	buf	the buffer to store the bytes in.
+     * @return	the actual number of bytes successfully read, or -1 on failure.
+     */
+    public int read(int pos, ByteBuffer buf) {
+	int length = buf.remaining();
+	int amount;
+	if (buf.hasArray()) {
+	    amount = read(pos, buf.array(), buf.arrayOffset()+buf.position(),
+			  length);
+	}
+	else {
+	    byte[] bytes = new byte[length];
+	    amount = read(pos, bytes, 0, length);
+	    if (amount > 0)
+		buf.duplicate().put(bytes, 0, amount);
+	}
+	if (amount > 0)
+	    buf.position(buf.position() + amount);
+	return amount;
+    }
+
+    /**
+     * Write the remaining bytes of a buffer to this file starting at the
+     * specified position, and return the number of bytes successfully
+     * written, like <tt>write(pos, buf, offset, length)</tt>. The position of
+     * the buffer is advanced by that amount. As with
+     * <tt>read(pos, buf)</tt>, subclasses should override this if they can.
+     *
+     * @param	pos	the offset in the file at which to start writing.
+     * @param	buf	the buffer to get the bytes from.
+     * @return	the actual number of bytes successfully written, or -1 on
+     *		failure.
+     */
+    public int write(int pos, ByteBuffer buf) {
+	int length = buf.remaining();
+	int amount;
+	if (buf.hasArray()) {
+	    amount = write(pos, buf.array(), buf.arrayOffset()+buf.position(),
+			   length);
+	}
+	else {
+	    byte[] bytes = new byte[length];
+	    buf.duplicate().get(bytes);
+	    amount = write(pos, bytes, 0, length);
+	}
+	if (amount > 0)
+	    buf.position(buf.position() + amount);
+	return amount;
+    }
+
     /**
      * Get the length of this file.
      *
@@ -4,6 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -18,6 +25,10 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ * The memory is a Java array unless <tt>Processor.memory</tt> is
+ * <tt>direct</tt> (off the heap) or <tt>mapped</tt> (off the heap, and
+ * backed by the file <tt>Processor.memoryFile</tt>, or a temporary file),
+ * which suits memories too large for the heap.
  */
 public final class Processor {
     /**
@@ -45,9 +56,23 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	memory = allocateMemory(privilege, numPhysPages);
+	mainMemory = memory.hasArray() ? memory.array() : null;
+
+	setExecutionMode(Config.getBoolean("Processor.decodeCache", true),
+			 Config.getInteger("Processor.hotBlockThreshold", 32),
+			 Config.getBoolean("Processor.batchTicks", true));
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", 4);
+	    tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+	    // an instruction can need two pages at once (itself and its data);
+	    // if they could only go in the same entry, it would never finish
+	    Lib.assertTrue(tlbWays >= 2 && tlbSize % tlbWays == 0,
+			   "Processor.tlbWays must be at least 2, and divide " +
+			   "Processor.tlbSize");
+	    tlbSets = tlbSize / tlbWays;
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
@@ -57,6 +82,65 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Allocate the physical memory, as <tt>Processor.memory</tt> says.
+     */
+    private static ByteBuffer allocateMemory(Privilege privilege,
+					     int numPhysPages) {
+	Lib.assertTrue(numPhysPages > 0 &&
+		       numPhysPages <= Integer.MAX_VALUE / pageSize,
+		       "too much physical memory for 32-bit addresses");
+	int size = pageSize * numPhysPages;
+
+	String backing = Config.getString("Processor.memory", "heap");
+	ByteBuffer memory = null;
+	if (backing.equals("heap"))
+	    memory = ByteBuffer.wrap(new byte[size]);
+	else if (backing.equals("direct"))
+	    memory = ByteBuffer.allocateDirect(size);
+	else if (backing.equals("mapped"))
+	    memory = mapMemory(privilege,
+			       Config.getString("Processor.memoryFile"), size);
+	else
+	    Lib.assertNotReached("Processor.memory must be heap, direct or " +
+				 "mapped");
+
+	// MIPS is little-endian, like Lib.bytesToInt()
+	return memory.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Map <i>size</i> bytes of zeroes from the named file, or from a temporary
+     * file if there is no name. The file is the host's, not in the test
+     * directory; a temporary one is deleted at once, which leaves the mapping
+     * alone where the host allows that.
+     */
+    private static ByteBuffer mapMemory(Privilege privilege,
+					final String fileName, final int size) {
+	final ByteBuffer[] mapped = new ByteBuffer[1];
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			File f = (fileName != null) ? new File(fileName) :
+			    File.createTempFile("nachos", ".mem");
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			file.setLength(0);
+			file.setLength(size);
+			mapped[0] = file.getChannel().map(
+			    FileChannel.MapMode.READ_WRITE, 0, size);
+			file.close();
+			if (fileName == null)
+			    f.delete();
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    });
+
+	Lib.assertTrue(mapped[0] != null, "unable to map physical memory");
+	return mapped[0];
+    }
+
     /**
      * Set the exception handler, called whenever a user exception occurs.
      *
@@ -81,6 +165,32 @@ public final class Processor {
 	return exceptionHandler;
     }
     
+    /**
+     * Choose how user programs are run, from the next call to <tt>run()</tt>
+     * on, as <tt>Processor.decodeCache</tt>,
+     * <tt>Processor.hotBlockThreshold</tt> and <tt>Processor.batchTicks</tt>
+     * do when the processor is created. The blocks decoded so far are
+     * forgotten.
+     *
+     * <p>
+     * None of these change what a program does, or when anything happens;
+     * they only change how fast the simulation runs. This lets a test check
+     * just that.
+     *
+     * @param	decodeCache	whether to run decoded blocks, rather than one
+     *				instruction at a time.
+     * @param	hotBlockThreshold	the number of runs after which a block is
+     *					compiled, or 0 for never.
+     * @param	batchTicks	whether to account for user ticks in bulk.
+     */
+    public void setExecutionMode(boolean decodeCache, int hotBlockThreshold,
+				 boolean batchTicks) {
+	usingDecodeCache = decodeCache;
+	blocks = decodeCache ? new Block[numPhysPages][] : null;
+	this.hotBlockThreshold = hotBlockThreshold;
+	batchingTicks = batchTicks;
+    }
+
     /**
      * Start executing instructions at the current PC. Never returns.
      */
@@ -92,16 +202,71 @@ public final class Processor {
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+
+	flushLastTranslations();
+
+	// the decoded blocks skip the fetch and decode printouts, so only use
+	// them when nobody asked to see those
+	boolean runBlocks = usingDecodeCache && !Lib.test(dbgProcessor) &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble);
 	
 	while (true) {
 	    try {
+		if (runBlocks) {
+		    // ticks after each instruction it completes
+		    inst.runBlock();
+		    continue;
+		}
 		inst.run();
 	    }
 	    catch (MipsException e) {
+		// the kernel is about to run, and may look at the time, or
+		// change the translations
+		settleTicks();
+		flushLastTranslations();
 		e.handle();
+		// and may have scheduled an interrupt
+		freeTicks = 0;
 	    }
 
-	    privilege.interrupt.tick(false);
+	    tick();
+	}
+    }
+
+    /**
+     * Advance the time by one user tick, after an instruction. When batching
+     * ticks, this only counts the tick until the next interrupt is due, and
+     * it is added to the statistics then, or before the kernel next runs,
+     * so that the time the kernel sees and when interrupts occur are just as
+     * if every tick had been a call to <tt>Interrupt.tick()</tt>.
+     */
+    private void tick() {
+	if (freeTicks > 0) {
+	    freeTicks--;
+	    owedTicks++;
+	    return;
+	}
+
+	settleTicks();
+
+	Interrupt interrupt = Machine.interrupt();
+	long handlersInvoked = interrupt.getHandlersInvoked();
+	privilege.interrupt.tick(false);
+	// a handler may have switched threads, or changed the translations
+	if (interrupt.getHandlersInvoked() != handlersInvoked)
+	    flushLastTranslations();
+
+	if (batchingTicks)
+	    freeTicks = interrupt.getUserTicksUntilDue();
+    }
+
+    /**
+     * Add the user ticks counted by <tt>tick()</tt> to the statistics.
+     */
+    private void settleTicks() {
+	if (owedTicks > 0) {
+	    Machine.interrupt().userTicks(owedTicks);
+	    owedTicks = 0;
 	}
     }
 
@@ -175,6 +340,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushLastTranslations();
     }
 
     /**
@@ -188,6 +354,62 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the associativity of this processor's TLB: the number of entries
+     * in each set. If this is the TLB size, the TLB is fully associative.
+     *
+     * @return	the number of entries in each set of the TLB.
+     */
+    public int getTLBWays() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
+    /**
+     * Return the index of the first entry of the TLB set that a translation
+     * for <i>vpn</i> in address space <i>asid</i> must be written to. The
+     * set is this entry and the <tt>getTLBWays()-1</tt> entries after it.
+     * The address space skews the set, so that the low pages of different
+     * address spaces do not all compete for the same one.
+     *
+     * @param	asid	the address space identifier.
+     * @param	vpn	the virtual page number.
+     * @return	the index of the first entry of the set for <i>vpn</i>.
+     */
+    public int getTLBSet(int asid, int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return ((vpn + asid) % tlbSets) * tlbWays;
+    }
+
+    /**
+     * Return the address space identifier of the running program. Address
+     * translation only uses the TLB entries tagged with it, so the TLB may
+     * hold the translations of several address spaces at once.
+     *
+     * @return	the current address space identifier.
+     */
+    public int getASID() {
+	Lib.assertTrue(usingTLB);
+
+	return asid;
+    }
+
+    /**
+     * Set the address space identifier of the running program. Unlike
+     * switching page tables, this leaves the TLB alone.
+     *
+     * @param	asid	the new address space identifier.
+     */
+    public void setASID(int asid) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(asid >= 0);
+
+	this.asid = asid;
+	flushLastTranslations();
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -201,12 +423,75 @@ public final class Processor {
 	return new TranslationEntry(translations[number]);
     }
 
+    /**
+     * Copy the specified TLB entry into <i>entry</i>. Unlike
+     * <tt>readTLBEntry(int)</tt>, this allocates nothing.
+     *
+     * @param	number	the index into the TLB.
+     * @param	entry	receives the contents of the specified TLB entry.
+     */
+    public void readTLBEntry(int number, TranslationEntry entry) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(number >= 0 && number < tlbSize);
+
+	entry.set(translations[number]);
+    }
+
+    /**
+     * Copy every TLB entry into <i>entries</i>, which must have at least
+     * <tt>getTLBSize()</tt> elements, none of them <tt>null</tt>.
+     *
+     * @param	entries	receives the contents of the TLB.
+     */
+    public void readTLB(TranslationEntry[] entries) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(entries.length >= tlbSize);
+
+	for (int i=0; i<tlbSize; i++)
+	    entries[i].set(translations[i]);
+    }
+
+    /**
+     * Return the index of the valid TLB entry translating <i>vpn</i> in the
+     * current address space, looking only in its set, just as address
+     * translation does.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the index of the entry, or -1 if there is none.
+     */
+    public int findTLBEntry(int vpn) {
+	return findTLBEntry(asid, vpn);
+    }
+
+    /**
+     * Return the index of the valid TLB entry translating <i>vpn</i> in
+     * address space <i>asid</i>, looking only in its set.
+     *
+     * @param	asid	the address space identifier.
+     * @param	vpn	the virtual page number.
+     * @return	the index of the entry, or -1 if there is none.
+     */
+    public int findTLBEntry(int asid, int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	int first = getTLBSet(asid, vpn);
+	for (int i=first; i<first+tlbWays; i++) {
+	    TranslationEntry entry = translations[i];
+	    if (entry.valid && entry.vpn == vpn && entry.asid == asid)
+		return i;
+	}
+
+	return -1;
+    }
+
     /**
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * Unless the TLB is fully associative, a valid entry must be written to
+     * the set for its address space and virtual page; see
+     * <tt>getTLBSet()</tt>. Within the set, the location of an entry does not
+     * affect anything.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,8 +499,36 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid ||
+		       getTLBSet(entry.asid, entry.vpn) == number - number % tlbWays,
+		       "TLB entry written outside the set for its vpn");
+
+	translations[number].set(entry);
+	flushLastTranslations();
+    }
+
+    /**
+     * Invalidate the specified TLB entry.
+     *
+     * @param	number	the index into the TLB.
+     */
+    public void invalidateTLBEntry(int number) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(number >= 0 && number < tlbSize);
+
+	translations[number].valid = false;
+	flushLastTranslations();
+    }
+
+    /**
+     * Invalidate every TLB entry.
+     */
+    public void invalidateTLB() {
+	Lib.assertTrue(usingTLB);
 
-	translations[number] = new TranslationEntry(entry);
+	for (int i=0; i<tlbSize; i++)
+	    translations[i].valid = false;
+	flushLastTranslations();
     }
 
     /**
@@ -230,14 +543,89 @@ public final class Processor {
 
     /**
      * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * is <tt>pageSize * getNumPhysPages()</tt>. There is no such array if the
+     * memory is off the heap; <tt>readMemory()</tt>, <tt>writeMemory()</tt>,
+     * <tt>zeroMemory()</tt> and <tt>getMemoryBuffer()</tt> work either way.
      *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null, "physical memory is off the heap");
 	return mainMemory;
     }
 
+    /**
+     * Copy <i>length</i> bytes of physical memory, starting at <i>paddr</i>,
+     * into <i>data</i>.
+     *
+     * @param	paddr	the first byte of physical memory to read.
+     * @param	data	the array to copy into.
+     * @param	offset	the first byte of the array to copy into.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+	if (mainMemory != null)
+	    System.arraycopy(mainMemory, paddr, data, offset, length);
+	else
+	    getMemoryBuffer(paddr, length).get(data, offset, length);
+    }
+
+    /**
+     * Copy <i>length</i> bytes of <i>data</i> into physical memory, starting
+     * at <i>paddr</i>.
+     *
+     * @param	paddr	the first byte of physical memory to write.
+     * @param	data	the array to copy from.
+     * @param	offset	the first byte of the array to copy from.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+	if (mainMemory != null)
+	    System.arraycopy(data, offset, mainMemory, paddr, length);
+	else
+	    getMemoryBuffer(paddr, length).put(data, offset, length);
+    }
+
+    /**
+     * Set <i>length</i> bytes of physical memory, starting at <i>paddr</i>,
+     * to zero.
+     *
+     * @param	paddr	the first byte of physical memory to clear.
+     * @param	length	the number of bytes to clear.
+     */
+    public void zeroMemory(int paddr, int length) {
+	if (mainMemory != null) {
+	    java.util.Arrays.fill(mainMemory, paddr, paddr+length, (byte) 0);
+	}
+	else {
+	    ByteBuffer buffer = getMemoryBuffer(paddr, length);
+	    while (buffer.remaining() >= 8)
+		buffer.putLong(0);
+	    while (buffer.hasRemaining())
+		buffer.put((byte) 0);
+	}
+    }
+
+    /**
+     * Return a buffer whose contents are <i>length</i> bytes of physical
+     * memory, starting at <i>paddr</i>, so that a file can be read straight
+     * into memory, or written straight out of it. Each call returns a new
+     * buffer, positioned at its start.
+     *
+     * @param	paddr	the first byte of physical memory in the buffer.
+     * @param	length	the number of bytes in the buffer.
+     * @return	the buffer.
+     */
+    public ByteBuffer getMemoryBuffer(int paddr, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr + length <= memory.capacity());
+
+	ByteBuffer buffer = memory.duplicate();
+	buffer.limit(paddr + length);
+	buffer.position(paddr);
+	return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -279,6 +667,46 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Read the word at physical address <i>paddr</i>, without translation.
+     */
+    private int readWord(int paddr) {
+	return memory.getInt(paddr);
+    }
+
+    /**
+     * Read <i>size</i> (1, 2, or 4) bytes of physical memory, sign-extended,
+     * like <tt>Lib.bytesToInt()</tt>.
+     */
+    private int readPhys(int paddr, int size) {
+	switch (size) {
+	case 1:
+	    return memory.get(paddr);
+	case 2:
+	    return memory.getShort(paddr);
+	default:
+	    return memory.getInt(paddr);
+	}
+    }
+
+    /**
+     * Write the low <i>size</i> (1, 2, or 4) bytes of <i>value</i> to physical
+     * memory, like <tt>Lib.bytesFromInt()</tt>.
+     */
+    private void writePhys(int paddr, int size, int value) {
+	switch (size) {
+	case 1:
+	    memory.put(paddr, (byte) value);
+	    break;
+	case 2:
+	    memory.putShort(paddr, (short) value);
+	    break;
+	default:
+	    memory.putInt(paddr, value);
+	    break;
+	}
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -322,10 +750,12 @@ public final class Processor {
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB set for a matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
+	    int first = ((vpn + asid) % tlbSets) * tlbWays;
+	    for (int i=first; i<first+tlbWays; i++) {
+		if (translations[i].valid && translations[i].vpn == vpn &&
+		    translations[i].asid == asid) {
 		    entry = translations[i];
 		    break;
 		}
@@ -362,6 +792,56 @@ public final class Processor {
 	return paddr;
     }
 
+    /**
+     * Translate the address of an instruction fetch, like
+     * <tt>translate(vaddr, 4, false)</tt>, but without looking at the page
+     * table or TLB if the last fetch was from the same page.
+     *
+     * @param	vaddr	the virtual address of the instruction.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translateFetch(int vaddr) throws MipsException {
+	// an unaligned address never matches, since page tags end in zeros
+	if ((vaddr & ~(pageSize-4)) == fetchPage)
+	    return fetchBase | (vaddr & (pageSize-1));
+
+	int paddr = translate(vaddr, 4, false);
+	if (!Lib.test(dbgProcessor)) {
+	    fetchPage = vaddr & ~(pageSize-1);
+	    fetchBase = paddr & ~(pageSize-1);
+	}
+	return paddr;
+    }
+
+    /**
+     * Remember the translation of a load or store, so that later ones to the
+     * same page can skip <tt>translate()</tt>. Not done when tracing, so that
+     * every access still shows up.
+     *
+     * @param	vaddr	the virtual address that was translated.
+     * @param	paddr	the physical address it translated to.
+     * @param	writing	<tt>true</tt> if the access was a write, so that the
+     *			entry is already dirty.
+     */
+    private void rememberData(int vaddr, int paddr, boolean writing) {
+	if (!Lib.test(dbgProcessor)) {
+	    dataPage = vaddr & ~(pageSize-1);
+	    dataBase = paddr & ~(pageSize-1);
+	    dataWritable = writing;
+	}
+    }
+
+    /**
+     * Forget the last translations, after anything that may have changed
+     * them, or the used and dirty bits of their entries.
+     */
+    private void flushLastTranslations() {
+	fetchPage = noPage;
+	dataPage = noPage;
+	dataWritable = false;
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -372,14 +852,19 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
+	// same page as the last load or store, and aligned
+	if ((vaddr & ~(pageSize-size)) == dataPage)
+	    return readPhys(dataBase | (vaddr & (pageSize-1)), size);
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int paddr = translate(vaddr, size, false);
+	rememberData(vaddr, paddr, false);
+	int value = readPhys(paddr, size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -399,6 +884,13 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
+	// same page as the last store, with nothing since that could have
+	// cleaned the entry, and aligned
+	if (dataWritable && (vaddr & ~(pageSize-size)) == dataPage) {
+	    writePhys(dataBase | (vaddr & (pageSize-1)), size, value);
+	    return;
+	}
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
@@ -406,8 +898,9 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true);
+	rememberData(vaddr, paddr, true);
+	writePhys(paddr, size, value);
     }
 
     /**
@@ -541,6 +1034,12 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays = 4;
+    /** Number of TLB sets; a page can only be translated by its own set. */
+    private int tlbSets = 1;
+    /** Address space whose TLB entries address translation may use. */
+    private int asid = 0;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -554,7 +1053,37 @@ public final class Processor {
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
+    private ByteBuffer memory;
+    /** The array behind <tt>memory</tt>, or <tt>null</tt> if off the heap. */
     private byte[] mainMemory;
+    /** Whether to run decoded blocks, rather than one instruction at a time. */
+    private boolean usingDecodeCache;
+    /**
+     * The decoded block starting at each physical word, if any, by frame,
+     * each frame's only allocated once it runs code.
+     */
+    private Block[][] blocks;
+    /** The number of runs after which a block is compiled, or 0 for never. */
+    private int hotBlockThreshold;
+    /** Whether to count user ticks, and only account for them in bulk. */
+    private boolean batchingTicks;
+    /** The number of user ticks that can pass before an interrupt is due. */
+    private long freeTicks = 0;
+    /** The number of user ticks counted, but not yet accounted for. */
+    private long owedTicks = 0;
+
+    /** A page tag that no address matches. */
+    private static final int noPage = -1;
+    /** The virtual page of the last instruction fetch, or <tt>noPage</tt>. */
+    private int fetchPage = noPage;
+    /** The physical address of the frame <tt>fetchPage</tt> maps to. */
+    private int fetchBase;
+    /** The virtual page of the last load or store, or <tt>noPage</tt>. */
+    private int dataPage = noPage;
+    /** The physical address of the frame <tt>dataPage</tt> maps to. */
+    private int dataBase;
+    /** Whether <tt>dataPage</tt> was stored to, and so may be again. */
+    private boolean dataWritable = false;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -616,6 +1145,64 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	/**
+	 * Run the decoded block starting at the current PC, one instruction
+	 * at a time, ticking after each. Stops early if an interrupt handler
+	 * ran (which may have switched threads, or changed the TLB or memory),
+	 * if the PC did not simply move on to the next instruction, or if an
+	 * instruction is no longer what was decoded, as when the kernel loads
+	 * another page into the frame or the program overwrites its code.
+	 */
+	public void runBlock() throws MipsException {
+	    Interrupt interrupt = Machine.interrupt();
+	    long handlersInvoked = interrupt.getHandlersInvoked();
+
+	    int pc = registers[regPC];
+	    int paddr = translateFetch(pc);
+	    Block[] frame = blocks[paddr/pageSize];
+	    if (frame == null)
+		frame = blocks[paddr/pageSize] = new Block[pageSize/4];
+	    int word = (paddr & (pageSize-1)) >> 2;
+	    Block block = frame[word];
+	    if (block == null || block.ops[0].value != readWord(paddr)) {
+		block = new Block(memory, paddr);
+		frame[word] = block;
+	    }
+
+	    Decoded[] ops = block.ops;
+	    Op[] compiled = block.compiled;
+	    if (compiled == null && hotBlockThreshold > 0 &&
+		++block.runs >= hotBlockThreshold)
+		compiled = block.compiled = compile(block, this);
+	    
+	    for (int i=0; i<ops.length; i++) {
+		// the first instruction was checked above; later ones are in
+		// the same page, so fetching them again would change nothing
+		if (i > 0 && ops[i].value != readWord(paddr)) {
+		    frame[word] = null;
+		    return;
+		}
+
+		if (compiled != null) {
+		    compiled[i].run();
+		}
+		else {
+		    value = ops[i].value;
+		    decode(ops[i]);
+		    execute();
+		    writeBack();
+		}
+
+		tick();
+
+		pc += 4;
+		paddr += 4;
+		if (interrupt.getHandlersInvoked() != handlersInvoked ||
+		    registers[regPC] != pc)
+		    return;
+	    }
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,78 +1213,52 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (Lib.test(dbgProcessor))
+		value = readMem(registers[regPC], 4);
+	    else
+		value = readWord(translateFetch(registers[regPC]));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    decode(new Decoded(value));
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+		print();	    
+	}
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	private void decode(Decoded d) {
+	    op = d.op;
+	    rs = d.rs;
+	    rt = d.rt;
+	    rd = d.rd;
+	    sh = d.sh;
+	    func = d.func;
+	    target = d.target;
+	    imm = d.imm;
+
+	    operation = d.operation;
+	    name = d.name;
+	    format = d.format;
+	    flags = d.flags;
+	    size = d.size;
+	    dstReg = d.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + d.offset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -717,9 +1278,6 @@ public final class Processor {
 		src1 &= 0xFFFFFFFFL;
 		src2 &= 0xFFFFFFFFL;
 	    }	    
-
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
 	}
 
 	private void print() {
@@ -1063,6 +1621,458 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of an instruction that depend only on its encoding, so that
+     * they need only be decoded once.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (test(Mips.SIZEB))
+		size = 1;
+	    else if (test(Mips.SIZEH))
+		size = 2;
+	    else if (test(Mips.SIZEW))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (test(Mips.DSTRA))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get branch offset, from the signed imm
+	    offset = imm<<2;
+
+	    // get imm
+	    if (test(Mips.UNSIGNED)) {
+		imm &= 0xFFFF;
+	    }
+	}
+
+	/**
+	 * Test whether this instruction always raises an exception, or
+	 * changes the flow of control (after its delay slot).
+	 */
+	boolean endsBlock() {
+	    return test(Mips.BRANCH) || operation == Mips.SYSCALL ||
+		operation == Mips.UNIMPL || operation == Mips.INVALID;
+	}
+
+	private boolean test(int flag) {
+	    return Lib.test(flag, flags);
+	}
+
+	int value, op, rs, rt, rd, sh, func, target, imm, offset;
+	int operation, format, flags;
+	String name;
+	int size, dstReg;
+    }
+
+    /**
+     * The instructions starting at one physical address, decoded, up to and
+     * including the first that ends the block (and its delay slot, if it
+     * is a branch) or the end of the page, whichever comes first.
+     */
+    private static class Block {
+	Block(ByteBuffer memory, int paddr) {
+	    this.paddr = paddr;
+
+	    int end = (paddr/pageSize + 1) * pageSize;
+	    Decoded[] decoded = new Decoded[(end-paddr)/4];
+	    int count = 0;
+	    boolean delaySlot = false;
+
+	    while (paddr < end) {
+		Decoded d = new Decoded(memory.getInt(paddr));
+		decoded[count++] = d;
+		paddr += 4;
+
+		if (delaySlot)
+		    break;
+		if (d.endsBlock()) {
+		    if (!d.test(Mips.BRANCH))
+			break;
+		    delaySlot = true;
+		}
+	    }
+
+	    ops = new Decoded[count];
+	    System.arraycopy(decoded, 0, ops, 0, count);
+	}
+
+	final int paddr;
+	final Decoded[] ops;
+	/** The number of times this block was entered while interpreted. */
+	int runs = 0;
+	/** This block compiled to ops, once it is hot. */
+	Op[] compiled = null;
+    }
+
+    /**
+     * Compile a hot block: make an <tt>Op</tt> for each of its instructions,
+     * specialized for the common ones and going through the interpreter for
+     * the rest.
+     */
+    private Op[] compile(Block block, Instruction inst) {
+	Op[] compiled = new Op[block.ops.length];
+	
+	for (int i=0; i<compiled.length; i++) {
+	    Decoded d = block.ops[i];
+
+	    switch (d.operation) {
+	    case Mips.ADD:
+		if (d.test(Mips.OVERFLOW) || d.test(Mips.UNSIGNED))
+		    compiled[i] = new Alu(d);
+		else if (d.test(Mips.SRC2IMM))
+		    compiled[i] = new AddImm(d);
+		else
+		    compiled[i] = new AddReg(d);
+		break;
+	    case Mips.SUB:
+	    case Mips.SLL:
+	    case Mips.SRA:
+	    case Mips.SRL:
+	    case Mips.SLT:
+	    case Mips.AND:
+	    case Mips.OR:
+	    case Mips.NOR:
+	    case Mips.XOR:
+	    case Mips.LUI:
+		compiled[i] = new Alu(d);
+		break;
+	    case Mips.LOAD:
+		compiled[i] = new Load(d);
+		break;
+	    case Mips.STORE:
+		compiled[i] = new Store(d);
+		break;
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.BLEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLTZ:
+	    case Mips.BGEZ:
+		compiled[i] = new Branch(d);
+		break;
+	    case Mips.JUMP:
+		compiled[i] = new Jump(d);
+		break;
+	    default:
+		compiled[i] = new Interpreted(d, inst);
+		break;
+	    }
+	}
+
+	return compiled;
+    }
+
+    /**
+     * Finish an instruction that neither loads nor branches: complete the
+     * delayed load in progress, write the destination register, and move on
+     * to the next instruction.
+     */
+    private void retire(int dstReg, int value) {
+	if (loadTarget != 0)
+	    finishLoad();
+	
+	if (dstReg > 0)
+	    registers[dstReg] = value;
+
+	advancePC(registers[regNextPC]+4);
+    }
+
+    /**
+     * A compiled instruction. It does everything <tt>Instruction</tt> would
+     * do for the same encoding, in the same order, including the exceptions
+     * and the delayed loads, but the work that depends only on the encoding
+     * was done when it was made.
+     */
+    private abstract class Op {
+	abstract void run() throws MipsException;
+    }
+
+    /** Any instruction, run by the interpreter. */
+    private class Interpreted extends Op {
+	Interpreted(Decoded d, Instruction inst) {
+	    this.d = d;
+	    this.inst = inst;
+	}
+
+	void run() throws MipsException {
+	    inst.value = d.value;
+	    inst.decode(d);
+	    inst.execute();
+	    inst.writeBack();
+	}
+
+	private final Decoded d;
+	private final Instruction inst;
+    }
+
+    /**
+     * An arithmetic, logical, shift or set instruction, computed with the same
+     * 64-bit arithmetic as <tt>Instruction.execute()</tt>.
+     */
+    private class Alu extends Op {
+	Alu(Decoded d) {
+	    operation = d.operation;
+	    rs = d.rs;
+	    rt = d.rt;
+	    sh = d.sh;
+	    imm = d.imm;
+	    dstReg = d.dstReg;
+	    shiftImm = d.test(Mips.SRC1SH);
+	    srcImm = d.test(Mips.SRC2IMM);
+	    unsigned = d.test(Mips.UNSIGNED);
+	    overflow = d.test(Mips.OVERFLOW);
+	}
+
+	void run() throws MipsException {
+	    long src1 = shiftImm ? sh : registers[rs];
+	    long src2 = srcImm ? imm : registers[rt];
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+
+	    long dst;
+	    switch (operation) {
+	    case Mips.ADD:
+		dst = src1 + src2;
+		break;
+	    case Mips.SUB:
+		dst = src1 - src2;
+		break;
+	    case Mips.SLL:
+		dst = src2 << (src1&0x1F);
+		break;
+	    case Mips.SRA:
+		dst = src2 >> (src1&0x1F);
+		break;
+	    case Mips.SRL:
+		dst = src2 >>> (src1&0x1F);
+		break;
+	    case Mips.SLT:
+		dst = (src1<src2) ? 1 : 0;
+		break;
+	    case Mips.AND:
+		dst = src1 & src2;
+		break;
+	    case Mips.OR:
+		dst = src1 | src2;
+		break;
+	    case Mips.NOR:
+		dst = ~(src1 | src2);
+		break;
+	    case Mips.XOR:
+		dst = src1 ^ src2;
+		break;
+	    case Mips.LUI:
+		dst = imm << 16;
+		break;
+	    default:
+		Lib.assertNotReached();
+		return;
+	    }
+
+	    if (overflow && Lib.test(dst,31) != Lib.test(dst,32))
+		throw new MipsException(exceptionOverflow);
+
+	    retire(dstReg, (int) dst);
+	}
+
+	private final int operation, rs, rt, sh, imm, dstReg;
+	private final boolean shiftImm, srcImm, unsigned, overflow;
+    }
+
+    /** addiu, which adjusts the stack pointer and counts most loops. */
+    private class AddImm extends Op {
+	AddImm(Decoded d) {
+	    rs = d.rs;
+	    imm = d.imm;
+	    dstReg = d.dstReg;
+	}
+
+	void run() {
+	    retire(dstReg, registers[rs] + imm);
+	}
+
+	private final int rs, imm, dstReg;
+    }
+
+    /** addu, which also moves registers. */
+    private class AddReg extends Op {
+	AddReg(Decoded d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    dstReg = d.dstReg;
+	}
+
+	void run() {
+	    retire(dstReg, registers[rs] + registers[rt]);
+	}
+
+	private final int rs, rt, dstReg;
+    }
+
+    /** lb, lh, lw, lbu and lhu. */
+    private class Load extends Op {
+	Load(Decoded d) {
+	    rs = d.rs;
+	    imm = d.imm;
+	    size = d.size;
+	    dstReg = d.dstReg;
+	    unsigned = d.test(Mips.UNSIGNED);
+	}
+
+	void run() throws MipsException {
+	    int value = readMem(registers[rs] + imm, size);
+	    if (!unsigned)
+		value = Lib.extend(value, 0, size*8);
+	    
+	    delayedLoad(dstReg, value, 0xFFFFFFFF);
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	private final int rs, imm, size, dstReg;
+	private final boolean unsigned;
+    }
+
+    /** sb, sh and sw. */
+    private class Store extends Op {
+	Store(Decoded d) {
+	    rs = d.rs;
+	    rt = d.rt;
+	    imm = d.imm;
+	    size = d.size;
+	}
+
+	void run() throws MipsException {
+	    writeMem(registers[rs] + imm, size, registers[rt]);
+	    retire(-1, 0);
+	}
+
+	private final int rs, rt, imm, size;
+    }
+
+    /** The conditional branches, with or without a link. */
+    private class Branch extends Op {
+	Branch(Decoded d) {
+	    operation = d.operation;
+	    rs = d.rs;
+	    rt = d.rt;
+	    offset = d.offset;
+	    dstReg = d.test(Mips.LINK) ? d.dstReg : -1;
+	}
+
+	void run() {
+	    int src1 = registers[rs];
+	    int src2 = registers[rt];
+	    int nextPC = registers[regNextPC]+4;
+	    int jtarget = registers[regNextPC] + offset;
+
+	    boolean branch;
+	    switch (operation) {
+	    case Mips.BEQ:
+		branch = (src1 == src2);
+		break;
+	    case Mips.BNE:
+		branch = (src1 != src2);
+		break;
+	    case Mips.BGEZ:
+		branch = (src1 >= 0);
+		break;		
+	    case Mips.BGTZ:
+		branch = (src1 > 0);
+		break;		
+	    case Mips.BLEZ:
+		branch = (src1 <= 0);
+		break;		
+	    case Mips.BLTZ:
+		branch = (src1 < 0);
+		break;
+	    default:
+		Lib.assertNotReached();
+		return;
+	    }
+
+	    if (loadTarget != 0)
+		finishLoad();
+
+	    if (dstReg > 0)
+		registers[dstReg] = nextPC;
+
+	    advancePC(branch ? jtarget : nextPC);
+	}
+
+	private final int operation, rs, rt, offset, dstReg;
+    }
+
+    /** j, jal, jr and jalr. */
+    private class Jump extends Op {
+	Jump(Decoded d) {
+	    format = d.format;
+	    rs = d.rs;
+	    target = d.target<<2;
+	    dstReg = d.test(Mips.LINK) ? d.dstReg : -1;
+	}
+
+	void run() {
+	    int nextPC = registers[regNextPC]+4;
+	    int jtarget;
+	    if (format == Mips.RFMT)
+		jtarget = registers[rs];
+	    else
+		jtarget = (registers[regNextPC]&0xF0000000) | target;
+
+	    if (loadTarget != 0)
+		finishLoad();
+
+	    if (dstReg > 0)
+		registers[dstReg] = nextPC;
+
+	    advancePC(jtarget);
+	}
+
+	private final int format, rs, target, dstReg;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -14,6 +14,32 @@ public final class Stats {
     public Stats() {
     }
 
+    /**
+     * Allocate a copy of another statistics object.
+     *
+     * @param	other	the statistics to copy.
+     */
+    public Stats(Stats other) {
+	set(other);
+    }
+
+    /**
+     * Set every counter in this object to its value in another one.
+     */
+    void set(Stats other) {
+	totalTicks = other.totalTicks;
+	kernelTicks = other.kernelTicks;
+	userTicks = other.userTicks;
+	numDiskReads = other.numDiskReads;
+	numDiskWrites = other.numDiskWrites;
+	numConsoleReads = other.numConsoleReads;
+	numConsoleWrites = other.numConsoleWrites;
+	numPageFaults = other.numPageFaults;
+	numTLBMisses = other.numTLBMisses;
+	numPacketsSent = other.numPacketsSent;
+	numPacketsReceived = other.numPacketsReceived;
+    }
+
     /**
      * Print out the statistics in this object.
      */
@@ -8,6 +8,7 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -137,6 +138,45 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
+	public int read(int pos, ByteBuffer buf) {
+	    if (!open)
+		return -1;
+
+	    try {
+		delay();
+
+		// straight from the file into the buffer, e.g. into memory
+		int amount = 0;
+		while (buf.hasRemaining()) {
+		    int n = file.getChannel().read(buf, pos + amount);
+		    if (n <= 0)
+			break;
+		    amount += n;
+		}
+		return amount;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
+	public int write(int pos, ByteBuffer buf) {
+	    if (!open)
+		return -1;
+
+	    try {
+		delay();
+
+		int amount = 0;
+		while (buf.hasRemaining())
+		    amount += file.getChannel().write(buf, pos + amount);
+		return amount;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
 	public int length() {
 	    try {
 		return (int) file.length();
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,16 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * By default those are platform threads, one per TCB, so no more than
+ * <tt>maxThreads</tt> TCBs can run at a time. If <tt>TCB.threads</tt> is
+ * <tt>virtual</tt> in <tt>nachos.conf</tt>, and the JVM has virtual threads
+ * (Java 21 and later), every TCB but the first runs in a virtual thread
+ * instead, and up to <tt>maxVirtualThreads</tt> can run at a time; a context
+ * switch then parks one virtual thread and unparks another, without a trip
+ * through the operating system's scheduler. Otherwise platform threads are
+ * used, with a warning.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +52,58 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	String threads = Config.getString("TCB.threads", "platform");
+	if (threads.equals("virtual"))
+	    findVirtualThreads();
+	else
+	    Lib.assertTrue(threads.equals("platform"),
+			   "TCB.threads must be platform or virtual");
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt>, which older JVMs do not have, by
+     * reflection, so that this class still compiles and runs on them.
+     */
+    private static void findVirtualThreads() {
+	// unless told otherwise, let the JVM run enough carrier threads
+	int carriers = Config.getInteger("TCB.carriers",
+					 defaultVirtualThreadCarriers);
+	Lib.assertTrue(carriers >= 2 && carriers <= maxVirtualThreadCarriers,
+		       "TCB.carriers must be between 2 and " +
+		       maxVirtualThreadCarriers);
+	if (System.getProperty("jdk.virtualThreadScheduler.parallelism") == null)
+	    System.setProperty("jdk.virtualThreadScheduler.parallelism",
+			       "" + carriers);
+
+	try {
+	    virtualThreadBuilder =
+		Thread.class.getMethod("ofVirtual").invoke(null);
+	    newVirtualThread = Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", new Class<?>[] { Runnable.class });
+	}
+	catch (Exception e) {
+	    virtualThreadBuilder = null;
+	    System.out.println("\nTCB: virtual threads are not available in " +
+			       "this JVM; using platform threads");
+	}
+    }
+
+    /**
+     * Create the Java thread to run a TCB: a virtual thread if there is a
+     * builder for them, or else a platform thread.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (virtualThreadBuilder == null)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) newVirtualThread.invoke(virtualThreadBuilder,
+						    new Object[] { target });
+	}
+	catch (Exception e) {
+	    throw new RuntimeException(e);
+	}
     }
     
     /**
@@ -66,7 +130,9 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() <
+		       (virtualThreadBuilder != null ?
+			maxVirtualThreads : maxThreads));
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,7 +160,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newJavaThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -102,10 +168,17 @@ public final class TCB {
 	     * current TCB, starting the new Java thread, and waiting for it
 	     * to wake us up from threadroot(). Once the new TCB wakes us up,
 	     * it's safe to context switch to the new TCB.
+	     *
+	     * Starting a virtual thread is privileged too. (Unparking one may
+	     * also start a carrier thread for it, which the security manager
+	     * allows without privilege, since the privilege may be held by
+	     * another TCB's thread by then.)
 	     */
 	    currentTCB.running = false;
 	    
-	    this.javaThread.start();
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { javaThread.start(); }
+		});
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -189,6 +262,42 @@ public final class TCB {
 	this.javaThread = null;
     }
 
+    /**
+     * Destroy all TCBs, without exiting the JVM. Each other TCB is woken up
+     * to find that it has to throw <tt>ThreadDeath</tt>, and so does the
+     * current thread; the Java thread that started the first TCB then
+     * returns from <tt>start()</tt>. Used when Nachos was started by
+     * <tt>Machine.run()</tt>, since the JVM may be running other simulations.
+     */
+    private static void destroyAll() {
+	synchronized (exitLock) {
+	    exiting = true;
+	    exitLock.notifyAll();
+	}
+
+	TCB[] tcbs = runningThreads.toArray(new TCB[0]);
+	for (int i=0; i<tcbs.length; i++) {
+	    if (tcbs[i].javaThread != Thread.currentThread())
+		tcbs[i].interrupt();
+	}
+
+	throw new ThreadDeath();
+    }
+
+    /**
+     * Wait until all TCBs have been destroyed by <tt>destroyAll()</tt>. The
+     * first TCB can be destroyed long before (the main thread may finish),
+     * and then <tt>start()</tt> returns early.
+     */
+    static void waitForDestroyAll() {
+	synchronized (exitLock) {
+	    while (!exiting) {
+		try { exitLock.wait(); }
+		catch (InterruptedException e) { }
+	    }
+	}
+    }
+
     /**
      * Destroy all TCBs and exit Nachos. Same as <tt>Machine.terminate()</tt>.
      */
@@ -238,6 +347,10 @@ public final class TCB {
 	    Lib.assertNotReached();
 	}
 	catch (ThreadDeath e) {
+	    // every TCB goes at once
+	    if (exiting)
+		return;
+	    
 	    // make sure this TCB is being destroyed properly
 	    if (!done) {
 		System.out.print("\nTCB terminated improperly!\n");
@@ -249,6 +362,10 @@ public final class TCB {
 		privilege.exit(0);
 	}
 	catch (Throwable e) {
+	    // something gave way while every TCB was going; we were going too
+	    if (exiting)
+		return;
+	    
 	    System.out.print("\n");
 	    e.printStackTrace();
 
@@ -270,6 +387,9 @@ public final class TCB {
      */
     private void yield() {
 	waitForInterrupt();
+
+	if (exiting)
+	    throw new ThreadDeath();
 	
 	if (done) {
 	    currentTCB.interrupt();
@@ -280,29 +400,44 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
+     * Waits until the <tt>running</tt> flag of this TCB is set to
+     * <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * On a host with more than one processor, the TCB that woke us is likely
+     * to give up its processor within microseconds, so we first spin for a
+     * while, which saves the trip through the operating system's scheduler
+     * that parking and unparking costs. Then we park, and rely on
+     * <tt>interrupt()</tt> to unpark us. A parked virtual thread gives up its
+     * carrier thread, unlike one waiting on a monitor.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	for (int i=0; i<spinLimit; i++) {
+	    if (running)
+		return;
 	}
+
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking its Java thread. Used in the ping-pong process of starting
+     * and destroying TCBs, as well as in context switching to this TCB. An
+     * unpark that comes before the park is not lost: the park then returns
+     * at once.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	Thread thread = javaThread;
+
 	running = true;
-	notify();
+	if (thread != null)
+	    LockSupport.unpark(thread);
     }
 
     private void associateThread(KThread thread) {
@@ -332,6 +467,40 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence when they run in virtual threads.
+     */
+    public static final int maxVirtualThreads = 50000;
+
+    /**
+     * How many carrier threads the JVM may schedule virtual threads on at a
+     * time, unless <tt>TCB.carriers</tt> says otherwise. Only one TCB runs at
+     * a time, but a TCB that waits for its turn inside a class initializer
+     * (<tt>SwapFile</tt>'s opens the swap file, for instance) cannot give up
+     * its carrier while it waits, so one carrier per processor, the JVM's
+     * default, can leave no carrier for the TCB that should run instead. We
+     * need one carrier for the running TCB and one more for each TCB waiting
+     * in an initializer at the same time; carriers with nothing to run just
+     * sleep.
+     */
+    private static final int defaultVirtualThreadCarriers = 16;
+
+    /**
+     * The most carrier threads <tt>TCB.carriers</tt> may ask for, which is
+     * also how far the JVM's scheduler lets its pool of carriers grow by
+     * default.
+     */
+    private static final int maxVirtualThreadCarriers = 256;
+
+    /**
+     * How many times <tt>waitForInterrupt()</tt> checks the <tt>running</tt>
+     * flag before it parks. Spinning is no use with a single processor, since
+     * the TCB we wait for cannot run while we spin.
+     */
+    private static final int spinLimit =
+	(Runtime.getRuntime().availableProcessors() > 1) ? 10000 : 0;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -362,7 +531,18 @@ public final class TCB {
     private static Vector<TCB> runningThreads = new Vector<TCB>();
     
     private static Privilege privilege;
+    /**
+     * A <tt>Thread.Builder.OfVirtual</tt> if TCBs run in virtual threads, or
+     * <tt>null</tt> if they run in platform threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    /** <tt>Thread.Builder.unstarted(Runnable)</tt>. */
+    private static Method newVirtualThread = null;
     private static KThread toBeDestroyed = null;
+    /** Set by <tt>destroyAll()</tt>, for every TCB to go at once. */
+    private static boolean exiting = false;
+    /** Signalled when <tt>exiting</tt> is set. */
+    private static final Object exitLock = new Object();
 
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
@@ -387,8 +567,13 @@ public final class TCB {
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * It is volatile because it is how one TCB hands the processor to
+     * another: whatever a TCB wrote before setting it is seen by the TCB
+     * that sees it set.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -410,5 +595,8 @@ public final class TCB {
 	public void authorizeDestroy(KThread thread) {
 	    TCB.authorizeDestroy(thread);
 	}
+	public void destroyAll() {
+	    TCB.destroyAll();
+	}
     }
 }
@@ -0,0 +1,191 @@
+package nachos.machine;
+
+/**
+ * Tests the TLB of the real processor: how entries map to sets, that an
+ * entry is found only in its own set and address space, and that it can be
+ * read without allocating. It needs <tt>Processor.usingTLB</tt>, and leaves the TLB as it
+ * found it.
+ */
+public class TLBTest {
+    public static void selfTest() {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB()) {
+	    System.out.println("TLBTest skipped: no TLB");
+	    return;
+	}
+
+	TranslationEntry[] saved = newEntries(processor.getTLBSize());
+	processor.readTLB(saved);
+	int savedASID = processor.getASID();
+
+	testSets(processor);
+	testFind(processor);
+	testRead(processor);
+	testASIDs(processor);
+
+	for (int i=0; i<saved.length; i++)
+	    processor.writeTLBEntry(i, saved[i]);
+	processor.setASID(savedASID);
+    }
+
+    /**
+     * The sets split the TLB evenly, every (asid,vpn) pair has exactly one,
+     * and consecutive pages fall in consecutive sets.
+     */
+    public static void testSets(Processor processor) {
+	final String METHOD_NAME = "TLBTest::testSets";
+
+	int size = processor.getTLBSize();
+	int ways = processor.getTLBWays();
+	int sets = size / ways;
+	Lib.assertTrue(ways >= 2 && size % ways == 0);
+
+	for (int vpn=0; vpn<3*sets; vpn++) {
+	    int first = processor.getTLBSet(asid, vpn);
+	    Lib.assertTrue(first >= 0 && first + ways <= size);
+	    Lib.assertTrue(first % ways == 0);
+	    Lib.assertTrue(first == processor.getTLBSet(asid, vpn + sets));
+	    Lib.assertTrue(first / ways ==
+			   (processor.getTLBSet(asid, vpn + 1) / ways + sets - 1)
+			   % sets);
+	}
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * A valid entry is found in any way of its set, until it is
+     * invalidated; an invalid one, or one for another page, never is.
+     */
+    public static void testFind(Processor processor) {
+	final String METHOD_NAME = "TLBTest::testFind";
+
+	int ways = processor.getTLBWays();
+	processor.invalidateTLB();
+	for (int page=0; page<processor.getTLBSize(); page++)
+	    Lib.assertTrue(processor.findTLBEntry(asid, page) == -1);
+
+	int first = processor.getTLBSet(asid, vpn);
+	for (int way=0; way<ways; way++) {
+	    processor.writeTLBEntry(first + way, entry(asid, vpn, true));
+	    Lib.assertTrue(processor.findTLBEntry(asid, vpn) == first + way);
+	    Lib.assertTrue(processor.findTLBEntry(asid, vpn + 1) == -1);
+	    processor.invalidateTLBEntry(first + way);
+	    Lib.assertTrue(processor.findTLBEntry(asid, vpn) == -1);
+	}
+
+	// an invalid entry may go anywhere, and matches nothing
+	int elsewhere = (first + ways) % processor.getTLBSize();
+	processor.writeTLBEntry(elsewhere, entry(asid, vpn, false));
+	Lib.assertTrue(processor.findTLBEntry(asid, vpn) == -1);
+
+	processor.writeTLBEntry(first + 1, entry(asid, vpn, true));
+	processor.writeTLBEntry(first, entry(asid, vpn + 1, false));
+	Lib.assertTrue(processor.findTLBEntry(asid, vpn) == first + 1);
+	processor.invalidateTLB();
+	Lib.assertTrue(processor.findTLBEntry(asid, vpn) == -1);
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Reading an entry into one you already have gives the same as reading a
+     * copy, and reading the whole TLB fills the entries you pass in.
+     */
+    public static void testRead(Processor processor) {
+	final String METHOD_NAME = "TLBTest::testRead";
+
+	int size = processor.getTLBSize();
+	processor.invalidateTLB();
+	for (int i=0; i<size; i++) {
+	    TranslationEntry written = entry(asid, vpn + i, false);
+	    written.ppn = i;
+	    written.dirty = true;
+	    processor.writeTLBEntry(i, written);
+	}
+
+	TranslationEntry[] entries = newEntries(size);
+	TranslationEntry[] before = entries.clone();
+	processor.readTLB(entries);
+	TranslationEntry reused = new TranslationEntry();
+	for (int i=0; i<size; i++) {
+	    Lib.assertTrue(entries[i] == before[i]);
+	    processor.readTLBEntry(i, reused);
+	    TranslationEntry copy = processor.readTLBEntry(i);
+	    Lib.assertTrue(same(copy, reused) && same(copy, entries[i]));
+	    Lib.assertTrue(reused.vpn == vpn + i && reused.ppn == i);
+	}
+	processor.invalidateTLB();
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Entries for the same page in two address spaces are both kept, and
+     * only the one of the current address space is found; switching address
+     * spaces leaves the TLB alone. The address space skews the set.
+     */
+    public static void testASIDs(Processor processor) {
+	final String METHOD_NAME = "TLBTest::testASIDs";
+
+	int sets = processor.getTLBSize() / processor.getTLBWays();
+	Lib.assertTrue(processor.getTLBSet(asid + 1, vpn) ==
+		       processor.getTLBSet(asid, vpn + 1));
+	Lib.assertTrue(processor.getTLBSet(asid + sets, vpn) ==
+		       processor.getTLBSet(asid, vpn));
+
+	processor.invalidateTLB();
+	int mine = processor.getTLBSet(asid, vpn);
+	int theirs = processor.getTLBSet(otherASID, vpn);
+	if (theirs == mine)
+	    theirs++;
+	TranslationEntry other = entry(otherASID, vpn, true);
+	other.ppn = 1;
+	processor.writeTLBEntry(mine, entry(asid, vpn, true));
+	processor.writeTLBEntry(theirs, other);
+
+	processor.setASID(asid);
+	Lib.assertTrue(processor.findTLBEntry(vpn) == mine);
+	Lib.assertTrue(processor.findTLBEntry(otherASID, vpn) == theirs);
+	Lib.assertTrue(processor.findTLBEntry(asid + 1, vpn) == -1);
+
+	TranslationEntry[] before = newEntries(processor.getTLBSize());
+	processor.readTLB(before);
+	processor.setASID(otherASID);
+	Lib.assertTrue(processor.getASID() == otherASID);
+	Lib.assertTrue(processor.findTLBEntry(vpn) == theirs);
+	TranslationEntry[] after = newEntries(processor.getTLBSize());
+	processor.readTLB(after);
+	for (int i=0; i<after.length; i++)
+	    Lib.assertTrue(same(before[i], after[i]), "entry " + i + " changed");
+
+	// dropping one address space's entry leaves the other's
+	processor.invalidateTLBEntry(theirs);
+	Lib.assertTrue(processor.findTLBEntry(vpn) == -1);
+	processor.setASID(asid);
+	Lib.assertTrue(processor.findTLBEntry(vpn) == mine);
+	processor.invalidateTLB();
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    private static TranslationEntry entry(int asid, int vpn, boolean valid) {
+	TranslationEntry entry = new TranslationEntry(vpn, 0, valid, false,
+						      false, false);
+	entry.asid = asid;
+	return entry;
+    }
+
+    private static TranslationEntry[] newEntries(int size) {
+	TranslationEntry[] entries = new TranslationEntry[size];
+	for (int i=0; i<size; i++)
+	    entries[i] = new TranslationEntry();
+	return entries;
+    }
+
+    private static boolean same(TranslationEntry a, TranslationEntry b) {
+	return a.vpn == b.vpn && a.ppn == b.ppn && a.valid == b.valid &&
+	    a.readOnly == b.readOnly && a.used == b.used &&
+	    a.dirty == b.dirty && a.asid == b.asid;
+    }
+
+    private static final int asid = 3;
+    private static final int otherASID = 8;
+    private static final int vpn = 5;
+}
@@ -0,0 +1,362 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The pending interrupts of an <tt>Interrupt</tt>, in a hierarchical timing
+ * wheel. Scheduling and cancelling an interrupt take constant time, and so
+ * does finding the next one due, but for a scan of the few interrupts that
+ * share its slot; the events are pooled, so none of it allocates once the
+ * pool is big enough.
+ *
+ * <p>
+ * Each of the <tt>levels</tt> wheels has 64 slots. An interrupt is kept on
+ * level <i>l</i> if its time and the wheel's current time differ in the
+ * <i>l</i>th group of 6 bits, but not above, in the slot given by the time's
+ * bits in that group; so each slot of level 0 holds the interrupts of a
+ * single tick, and a slot of level <i>l</i> spans 64<sup><i>l</i></sup>
+ * ticks. Interrupts further ahead than the top level can tell apart wait on
+ * an overflow list. When the current time moves into a slot above level 0,
+ * its interrupts are spread over the levels below. Interrupts due at the
+ * same time occur in the order they were scheduled.
+ */
+final class TimingWheel {
+    /**
+     * Allocate an empty timing wheel.
+     */
+    TimingWheel() {
+	for (int i=0; i<levels; i++)
+	    heads[i] = new Event[slots];
+    }
+
+    /**
+     * One scheduled interrupt; the fields are those given to
+     * <tt>add()</tt>.
+     */
+    static final class Event {
+	private Event(int index) {
+	    this.index = index;
+	}
+
+	long time;
+	String type;
+	Runnable handler;
+	/**
+	 * The creation order in the upper bits, and <tt>index</tt> in the
+	 * lower ones, or -1 if not scheduled.
+	 */
+	long id = -1;
+
+	private final int index;
+	private int level;
+	private int slot;
+	private Event prev, next;
+    }
+
+    /**
+     * Schedule an interrupt.
+     *
+     * @param	time	when it should occur; after the last time given to
+     *			<tt>poll()</tt>.
+     * @param	type	a name for the type of interrupt.
+     * @param	handler	the interrupt handler to call.
+     * @return	a handle for <tt>cancel()</tt>.
+     */
+    long add(long time, String type, Runnable handler) {
+	Lib.assertTrue(time > current);
+
+	Event e = allocate();
+	e.time = time;
+	e.type = type;
+	e.handler = handler;
+	e.id = (created++ << indexBits) | e.index;
+
+	insert(e);
+	size++;
+	if (nextKnown && time < nextDue)
+	    nextDue = time;
+
+	return e.id;
+    }
+
+    /**
+     * Cancel an interrupt, if it has not occurred yet.
+     *
+     * @param	handle	what <tt>add()</tt> returned for the interrupt.
+     * @return	<tt>true</tt> if it was still pending.
+     */
+    boolean cancel(long handle) {
+	int index = (int) (handle & indexMask);
+	if (handle < 0 || index >= numEvents || events[index].id != handle)
+	    return false;
+
+	Event e = events[index];
+	unlink(e);
+	if (e.time == nextDue)
+	    nextKnown = false;
+	free(e);
+	return true;
+    }
+
+    /**
+     * @return	whether no interrupts are pending.
+     */
+    boolean isEmpty() {
+	return size == 0;
+    }
+
+    /**
+     * Return the time of the next interrupt.
+     *
+     * @return	the time, or <tt>Long.MAX_VALUE</tt> if none is pending.
+     */
+    long nextTime() {
+	if (!nextKnown) {
+	    nextDue = findNext();
+	    nextKnown = true;
+	}
+	return nextDue;
+    }
+
+    /**
+     * Remove the next interrupt and return it. Once its fields have been
+     * read, hand it back with <tt>free()</tt>.
+     *
+     * @return	the event of the interrupt that is due first; of those due
+     *		at the same time, the one scheduled first.
+     */
+    Event poll() {
+	long time = nextTime();
+	Lib.assertTrue(time != Long.MAX_VALUE);
+	advance(time);
+
+	// it is on level 0 now, with any others due at the same time
+	int slot = (int) time & slotMask;
+	Event first = heads[0][slot];
+	for (Event e=first.next; e!=null; e=e.next) {
+	    if (e.id < first.id)
+		first = e;
+	}
+	unlink(first);
+	if (heads[0][slot] == null)
+	    nextKnown = false;
+	return first;
+    }
+
+    /**
+     * Return an event from <tt>poll()</tt> to the pool.
+     */
+    void free(Event e) {
+	e.id = -1;
+	e.type = null;
+	e.handler = null;
+	e.next = freeList;
+	freeList = e;
+	size--;
+    }
+
+    /**
+     * Move every pending interrupt <i>delta</i> ticks later, along with the
+     * current time.
+     */
+    void shift(long delta) {
+	List<Event> all = events();
+	clear();
+	current += delta;
+	for (Event e : all) {
+	    e.time += delta;
+	    insert(e);
+	}
+	nextKnown = false;
+    }
+
+    /**
+     * Return the pending interrupts, in the order they will occur.
+     */
+    List<Event> pending() {
+	List<Event> all = events();
+	Collections.sort(all, new Comparator<Event>() {
+		public int compare(Event a, Event b) {
+		    if (a.time != b.time)
+			return (a.time < b.time) ? -1 : 1;
+		    return (a.id < b.id) ? -1 : (a.id > b.id) ? 1 : 0;
+		}
+	    });
+	return all;
+    }
+
+    private List<Event> events() {
+	List<Event> all = new ArrayList<Event>(size);
+	for (int i=0; i<numEvents; i++) {
+	    if (events[i].id != -1)
+		all.add(events[i]);
+	}
+	return all;
+    }
+
+    private void clear() {
+	for (int i=0; i<levels; i++) {
+	    java.util.Arrays.fill(heads[i], null);
+	    occupied[i] = 0;
+	}
+	overflow = null;
+    }
+
+    /**
+     * Find the time of the next interrupt: the first occupied slot at or
+     * after the current time on the lowest level that has one holds it.
+     */
+    private long findNext() {
+	for (int l=0; l<levels; l++) {
+	    int index = (int) (current >>> (l*bits)) & slotMask;
+	    // on level 0 the current slot may still hold interrupts due now;
+	    // above it, the current slot is always empty
+	    long later = occupied[l] & (-1L << index);
+	    if (later == 0)
+		continue;
+
+	    int slot = Long.numberOfTrailingZeros(later);
+	    if (l == 0)
+		return (current & ~(long) slotMask) | slot;
+	    return earliest(heads[l][slot]);
+	}
+	return earliest(overflow);
+    }
+
+    private static long earliest(Event list) {
+	long time = Long.MAX_VALUE;
+	for (Event e=list; e!=null; e=e.next)
+	    time = Math.min(time, e.time);
+	return time;
+    }
+
+    /**
+     * Move the current time forward to <i>time</i>, which is no later than
+     * any pending interrupt, spreading the interrupts of the slots it moves
+     * into over the levels below.
+     */
+    private void advance(long time) {
+	if (time == current)
+	    return;
+
+	long old = current;
+	current = time;
+
+	if (overflow != null &&
+	    (time >>> (levels*bits)) != (old >>> (levels*bits))) {
+	    Event list = overflow;
+	    overflow = null;
+	    reinsert(list);
+	}
+
+	for (int l=levels-1; l>0; l--) {
+	    int slot = (int) (time >>> (l*bits)) & slotMask;
+	    if ((occupied[l] & (1L << slot)) != 0) {
+		Event list = heads[l][slot];
+		heads[l][slot] = null;
+		occupied[l] &= ~(1L << slot);
+		reinsert(list);
+	    }
+	}
+    }
+
+    private void reinsert(Event list) {
+	while (list != null) {
+	    Event e = list;
+	    list = list.next;
+	    insert(e);
+	}
+    }
+
+    private void insert(Event e) {
+	// the highest group of bits the times differ in
+	long diff = e.time ^ current;
+	int level = (diff == 0) ? 0 :
+	    (63 - Long.numberOfLeadingZeros(diff)) / bits;
+
+	e.prev = null;
+	if (level >= levels) {
+	    e.level = levels;
+	    e.next = overflow;
+	    if (overflow != null)
+		overflow.prev = e;
+	    overflow = e;
+	    return;
+	}
+
+	int slot = (int) (e.time >>> (level*bits)) & slotMask;
+	e.level = level;
+	e.slot = slot;
+	e.next = heads[level][slot];
+	if (e.next != null)
+	    e.next.prev = e;
+	heads[level][slot] = e;
+	occupied[level] |= 1L << slot;
+    }
+
+    private void unlink(Event e) {
+	if (e.next != null)
+	    e.next.prev = e.prev;
+	if (e.prev != null) {
+	    e.prev.next = e.next;
+	}
+	else if (e.level == levels) {
+	    overflow = e.next;
+	}
+	else {
+	    heads[e.level][e.slot] = e.next;
+	    if (e.next == null)
+		occupied[e.level] &= ~(1L << e.slot);
+	}
+	e.prev = e.next = null;
+    }
+
+    private Event allocate() {
+	if (freeList != null) {
+	    Event e = freeList;
+	    freeList = e.next;
+	    e.next = null;
+	    return e;
+	}
+
+	Lib.assertTrue(numEvents <= indexMask, "too many pending interrupts");
+	if (numEvents == events.length) {
+	    Event[] more = new Event[events.length * 2];
+	    System.arraycopy(events, 0, more, 0, events.length);
+	    events = more;
+	}
+	Event e = new Event(numEvents);
+	events[numEvents++] = e;
+	return e;
+    }
+
+    private static final int bits = 6;
+    private static final int slots = 1 << bits;
+    private static final int slotMask = slots - 1;
+    /** Enough levels for some 16 million ticks ahead. */
+    private static final int levels = 4;
+    private static final int indexBits = 20;
+    private static final long indexMask = (1L << indexBits) - 1;
+
+    private final Event[][] heads = new Event[levels][];
+    /** A bit for each slot of each level, set if the slot is not empty. */
+    private final long[] occupied = new long[levels];
+    private Event overflow = null;
+    /** The time the levels are relative to; no interrupt is due before it. */
+    private long current = 0;
+    /** The time of the next interrupt, if <tt>nextKnown</tt>. */
+    private long nextDue = Long.MAX_VALUE;
+    private boolean nextKnown = true;
+    private int size = 0;
+
+    /** Every event ever allocated, by index. */
+    private Event[] events = new Event[16];
+    private int numEvents = 0;
+    private Event freeList = null;
+    private long created = 0;
+}
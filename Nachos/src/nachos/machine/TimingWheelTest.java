@@ -0,0 +1,169 @@
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that a <tt>TimingWheel</tt> gives up its interrupts in time order,
+ * and in the order they were scheduled among those due together, wherever
+ * in its levels they were kept.
+ */
+public class TimingWheelTest {
+    public static void selfTest() {
+	testOrdering();
+	testCascading();
+	testCancel();
+	testShift();
+    }
+
+    /**
+     * Interrupts scheduled at random, some at the same time, and some while
+     * others occur, come out in order.
+     */
+    public static void testOrdering() {
+	final String METHOD_NAME = "TimingWheelTest::testOrdering";
+
+	TimingWheel wheel = new TimingWheel();
+	Random random = new Random(543);
+	List<Long> times = new ArrayList<Long>();
+	int scheduled = 0;
+	for (; scheduled<500; scheduled++)
+	    add(wheel, 1 + random.nextInt(20000), scheduled, times);
+
+	long lastTime = 0;
+	int lastOrder = -1;
+	for (int polled=0; !wheel.isEmpty(); polled++) {
+	    long next = wheel.nextTime();
+	    TimingWheel.Event e = wheel.poll();
+	    int order = Integer.parseInt(e.type);
+	    Lib.assertTrue(e.time == next);
+	    Lib.assertTrue(e.time == times.get(order));
+	    Lib.assertTrue(e.time > lastTime ||
+			   (e.time == lastTime && order > lastOrder),
+			   "event " + order + " at " + e.time + " out of order");
+	    lastTime = e.time;
+	    lastOrder = order;
+	    wheel.free(e);
+
+	    // more of them, some at times already taken
+	    if (polled % 3 == 0 && scheduled < 1000) {
+		add(wheel, lastTime + 1 + random.nextInt(200), scheduled++, times);
+		add(wheel, times.get(random.nextInt(scheduled)) + lastTime,
+		    scheduled++, times);
+	    }
+	}
+	Lib.assertTrue(wheel.nextTime() == Long.MAX_VALUE);
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Interrupts kept on every level, and beyond the top one, are moved
+     * down as the time reaches them, and still occur exactly on time.
+     */
+    public static void testCascading() {
+	final String METHOD_NAME = "TimingWheelTest::testCascading";
+
+	TimingWheel wheel = new TimingWheel();
+	List<Long> times = new ArrayList<Long>();
+	long[] due = {
+	    // level 0, 1, 2 and 3, then the overflow list
+	    5, 64 + 3, 4096 + 1, 262144 + 7, 3L * 16777216 + 2,
+	    // neighbours of the same slots, on either side of a boundary
+	    63, 64, 4095, 4096, 262143, 16777216
+	};
+	for (int i=0; i<due.length; i++)
+	    add(wheel, due[i], i, times);
+
+	long[] expected = {
+	    5, 63, 64, 64 + 3, 4095, 4096, 4096 + 1, 4096 + 1, 262143,
+	    262144 + 7, 16777216, 3L * 16777216 + 2
+	};
+	for (int i=0; i<expected.length; i++) {
+	    Lib.assertTrue(wheel.nextTime() == expected[i],
+			   "expected " + expected[i] + " next, not " +
+			   wheel.nextTime());
+	    TimingWheel.Event e = wheel.poll();
+	    Lib.assertTrue(e.time == expected[i]);
+	    int order = Integer.parseInt(e.type);
+	    Lib.assertTrue(e.time == times.get(order));
+	    Lib.assertTrue(i != 7 || order == due.length);
+	    wheel.free(e);
+
+	    // one due with an interrupt that has not come down yet, which
+	    // should still occur after it
+	    if (i == 3)
+		add(wheel, 4096 + 1, due.length, times);
+	}
+	Lib.assertTrue(wheel.isEmpty());
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * A cancelled interrupt never occurs, and a handle is no good once its
+     * interrupt has occurred, even when its event is used again.
+     */
+    public static void testCancel() {
+	final String METHOD_NAME = "TimingWheelTest::testCancel";
+
+	TimingWheel wheel = new TimingWheel();
+	List<Long> times = new ArrayList<Long>();
+	long early = add(wheel, 10, 0, times);
+	long late = add(wheel, 100000, 1, times);
+	add(wheel, 20, 2, times);
+
+	Lib.assertTrue(wheel.nextTime() == 10);
+	Lib.assertTrue(wheel.cancel(early));
+	Lib.assertTrue(!wheel.cancel(early));
+	Lib.assertTrue(wheel.nextTime() == 20);
+	Lib.assertTrue(wheel.cancel(late));
+
+	TimingWheel.Event e = wheel.poll();
+	Lib.assertTrue(e.time == 20);
+	wheel.free(e);
+	Lib.assertTrue(wheel.isEmpty());
+
+	// the freed events are handed out again, under new handles
+	long again = add(wheel, 30, 3, times);
+	Lib.assertTrue(again != early && again != late);
+	Lib.assertTrue(!wheel.cancel(early));
+	Lib.assertTrue(wheel.nextTime() == 30);
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Moving the clock forward moves every pending interrupt with it.
+     */
+    public static void testShift() {
+	final String METHOD_NAME = "TimingWheelTest::testShift";
+
+	TimingWheel wheel = new TimingWheel();
+	List<Long> times = new ArrayList<Long>();
+	add(wheel, 70, 0, times);
+	add(wheel, 5000, 1, times);
+	wheel.shift(1000000);
+
+	List<TimingWheel.Event> pending = wheel.pending();
+	Lib.assertTrue(pending.size() == 2);
+	Lib.assertTrue(pending.get(0).time == 1000070);
+	Lib.assertTrue(pending.get(1).time == 1005000);
+	Lib.assertTrue(wheel.nextTime() == 1000070);
+	TimingWheel.Event e = wheel.poll();
+	Lib.assertTrue(e.time == 1000070);
+	wheel.free(e);
+	Lib.assertTrue(wheel.poll().time == 1005000);
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Schedule an interrupt named after <i>order</i>, and note its time
+     * under that number.
+     */
+    private static long add(TimingWheel wheel, long time, int order,
+			    List<Long> times) {
+	while (times.size() <= order)
+	    times.add(null);
+	times.set(order, time);
+	return wheel.add(time, "" + order, null);
+    }
+}
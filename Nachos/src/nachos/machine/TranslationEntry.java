@@ -48,6 +48,22 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	asid = entry.asid;
+    }
+
+    /**
+     * Make this entry a copy of another, without allocating a new one.
+     *
+     * @param	entry	the translation entry to copy.
+     */
+    public void set(TranslationEntry entry) {
+	vpn = entry.vpn;
+	ppn = entry.ppn;
+	valid = entry.valid;
+	readOnly = entry.readOnly;
+	used = entry.used;
+	dirty = entry.dirty;
+	asid = entry.asid;
     }
 
     /** The virtual page number. */
@@ -78,4 +94,11 @@ public final class TranslationEntry {
      * user program.
      */
     public boolean dirty;
+
+    /**
+     * The address space this entry belongs to. In the TLB, an entry only
+     * translates addresses while its address space is the processor's
+     * current one; see <tt>Processor.setASID()</tt>.
+     */
+    public int asid;
 }
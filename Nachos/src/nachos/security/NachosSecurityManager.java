@@ -7,6 +7,7 @@ import nachos.machine.*;
 import java.io.File;
 import java.security.Permission;
 import java.io.FilePermission;
+import java.lang.reflect.ReflectPermission;
 import java.util.PropertyPermission;
 import java.net.NetPermission;
 import java.awt.AWTPermission;
@@ -52,6 +53,17 @@ public class NachosSecurityManager extends SecurityManager {
 		System.setSecurityManager(NachosSecurityManager.this);
 	    }
 	});
+	enabled = true;
+    }
+
+    /**
+     * Return the status Nachos exited with, when it did not exit the JVM
+     * because this security manager was never installed.
+     *
+     * @return	the exit status.
+     */
+    public int getExitStatus() {
+	return exitStatus;
     }
 
     private class PrivilegeProvider extends Privilege {
@@ -70,7 +82,7 @@ public class NachosSecurityManager extends SecurityManager {
 
 	public void exit(int exitStatus) {
 	    invokeExitNotificationHandlers();
-	    NachosSecurityManager.this.exit(exitStatus);
+	    NachosSecurityManager.this.exit(exitStatus, tcb);
 	}
     }
 
@@ -109,11 +121,61 @@ public class NachosSecurityManager extends SecurityManager {
 	privilegeCount = 1;
     }
 
-    private void exit(int exitStatus) {
+    private void exit(int exitStatus, Privilege.TCBPrivilege tcb) {
 	forcePrivilege();
+	this.exitStatus = exitStatus;
+
+	// if we were never installed, other simulations may be sharing the
+	// JVM, so only end this one
+	if (!enabled && tcb != null)
+	    tcb.destroyAll();
+
 	System.exit(exitStatus);
     }
 
+    /**
+     * Test if the JVM is creating a carrier thread to run virtual threads on.
+     * It does that whenever a virtual thread is started or unparked and no
+     * carrier is free, so when TCBs run in virtual threads, any Nachos thread
+     * can cause it, privileged or not.
+     */
+    private boolean isCreatingCarrierThread() {
+	Class<?>[] classes = getClassContext();
+	for (int i=0; i<classes.length; i++) {
+	    if (classes[i].getName().equals("jdk.internal.misc.CarrierThread"))
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * Test if the JVM needs the specified permission to create a carrier
+     * thread: to create and start a thread, or to let a subclass of
+     * <tt>Thread</tt> have a context class loader of its own. Checking that
+     * subclass may suppress access checks too, but only from within
+     * <tt>Thread.auditSubclass()</tt>, the first time.
+     *
+     * @param	perm	the permission being checked.
+     */
+    private boolean isCarrierPermission(Permission perm) {
+	String name = perm.getName();
+	if (perm instanceof RuntimePermission)
+	    return (name.equals("modifyThread") ||
+		    name.equals("modifyThreadGroup") ||
+		    name.equals("enableContextClassLoaderOverride"));
+
+	if (perm instanceof ReflectPermission &&
+	    name.equals("suppressAccessChecks")) {
+	    StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+	    for (int i=0; i<stack.length; i++) {
+		if (stack[i].getClassName().equals("java.lang.Thread") &&
+		    stack[i].getMethodName().equals("auditSubclass"))
+		    return true;
+	    }
+	}
+	return false;
+    }
+
     private boolean isPrivileged() {
 	// the autograder does not allow non-Nachos threads to be created, so..
 	if (!TCB.isNachosThread())
@@ -272,6 +334,12 @@ public class NachosSecurityManager extends SecurityManager {
 	    }
 	}
 
+	// the JVM starts carrier threads for virtual threads on its own, but
+	// gets nothing else that way
+	if (!isPrivileged() && isCarrierPermission(perm) &&
+	    isCreatingCarrierThread())
+	    return;
+
 	// default to requiring privilege
 	verifyPrivilege(perm);
     }
@@ -310,6 +378,8 @@ public class NachosSecurityManager extends SecurityManager {
 
     private File testDirectory;
     private boolean fullySecure;
+    private boolean enabled = false;
+    private int exitStatus = 0;
 
     private Thread privileged = null;
     private int privilegeCount = 0;
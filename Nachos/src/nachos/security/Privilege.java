@@ -147,8 +147,17 @@ public abstract class Privilege {
 	 * @param	type	a name for the type of interrupt being
 	 *			scheduled.
 	 * @param	handler	the interrupt handler to call.
+	 * @return	a handle to cancel the interrupt with.
 	 */
-	public void schedule(long when, String type, Runnable handler);
+	public long schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Cancel an interrupt scheduled earlier, if it has not occurred yet.
+	 *
+	 * @param	handle	what <tt>schedule()</tt> returned.
+	 * @return	<tt>true</tt> if the interrupt was cancelled.
+	 */
+	public boolean cancel(long handle);
 	
 	/**
 	 * Advance the simulated time.
@@ -191,5 +200,10 @@ public abstract class Privilege {
 	 * @param	thread	the thread whose TCB is about to be destroyed.
 	 */
 	public void authorizeDestroy(KThread thread);
+	/**
+	 * Destroy every TCB, including the current one, without exiting the
+	 * JVM. Never returns.
+	 */
+	public void destroyAll();
     }    
 }
@@ -298,7 +298,8 @@ public class KThread {
      * Create the idle thread. Whenever there are no threads ready to be run,
      * and <tt>runNextThread()</tt> is called, it will run the idle thread. The
      * idle thread must never block, and it will only be allowed to run when
-     * all other threads are blocked.
+     * all other threads are blocked. Rather than ticking towards the next
+     * interrupt, it skips straight to it.
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
@@ -307,7 +308,12 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    KThread.yield();
+		    Machine.interrupt().idle();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -1,7 +1,7 @@
 package nachos.threads;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import nachos.machine.Lib;
 import nachos.machine.Machine;
@@ -67,12 +67,8 @@ public class PriorityScheduler extends Scheduler {
     	
     	ThreadState threadState = getThreadState(thread);
     	boolean intStatus = Machine.interrupt().disable(); 
+    	// moves it to its new bucket, if it is waiting
     	threadState.setPriority(priority);
-    	if (threadState.waitingInQueue != null){
-    	threadState.waitingInQueue.queue.remove(threadState);
-    	
-    	threadState.waitingInQueue.queue.offer(threadState);
-    	}
     	Machine.interrupt().restore(intStatus);
     	
         }
@@ -325,7 +321,7 @@ public class PriorityScheduler extends Scheduler {
 	    ThreadState threadState = (queue.peek() == null) ? null : queue.poll();
 	    if (transferPriority) {
 	    	if (lockHolder != null){
-	    		lockHolder.donation = 0;
+	    		lockHolder.setDonation(0);
 	    	}
 	    	lockHolder = threadState;
 	    	if (threadState != null){
@@ -368,9 +364,169 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public boolean transferPriority;
     protected ThreadState lockHolder;
-    protected java.util.PriorityQueue<ThreadState> queue = new java.util.PriorityQueue<ThreadState>();
+    protected Buckets queue = new Buckets();
+	/**
+	 * The last <tt>donationPass</tt> that went through this queue, so that
+	 * a cycle of waiting threads is only followed once.
+	 */
+	private int lastDonationPass = 0;
 
     }
+
+    /**
+     * The threads waiting in a <tt>PriorityQueue</tt>, in a FIFO list for each
+     * effective priority (clamped to <tt>priorityMinimum</tt> through
+     * <tt>priorityMaximum</tt>), with a bitmap of the lists that are not
+     * empty. The lists are linked through the <tt>ThreadState</tt>s, so
+     * adding, removing and moving a thread allocate nothing; <tt>peek()</tt>
+     * and <tt>poll()</tt> find the highest list with one bit scan.
+     *
+     * <p>
+     * Each list is kept in the order the threads joined it. A thread that
+     * starts waiting goes at the tail, and so does one whose priority changes
+     * while it waits, of its new list, all in constant time.
+     */
+    protected static class Buckets implements Iterable<ThreadState> {
+	/**
+	 * Add a thread, which must not be waiting in any queue.
+	 *
+	 * @return	<tt>true</tt>.
+	 */
+	public boolean offer(ThreadState threadState) {
+	    Lib.assertTrue(threadState.buckets == null);
+
+	    int bucket = bucketOf(threadState);
+	    ThreadState tail = tails[bucket];
+
+	    threadState.buckets = this;
+	    threadState.bucket = bucket;
+	    threadState.prevWaiter = tail;
+	    threadState.nextWaiter = null;
+	    if (tail == null)
+		heads[bucket] = threadState;
+	    else
+		tail.nextWaiter = threadState;
+	    tails[bucket] = threadState;
+
+	    occupied |= 1 << bucket;
+	    size++;
+	    return true;
+	}
+
+	/**
+	 * @return	the thread with the highest effective priority that has
+	 *		waited longest, or <tt>null</tt> if there is none.
+	 */
+	public ThreadState peek() {
+	    if (occupied == 0)
+		return null;
+	    return heads[31 - Integer.numberOfLeadingZeros(occupied)];
+	}
+
+	/**
+	 * Remove the thread <tt>peek()</tt> would return, and return it.
+	 */
+	public ThreadState poll() {
+	    ThreadState threadState = peek();
+	    if (threadState != null)
+		remove(threadState);
+	    return threadState;
+	}
+
+	/**
+	 * Remove a thread, if it is waiting here.
+	 *
+	 * @return	<tt>true</tt> if it was.
+	 */
+	public boolean remove(ThreadState threadState) {
+	    if (threadState.buckets != this)
+		return false;
+
+	    int bucket = threadState.bucket;
+	    if (threadState.prevWaiter == null)
+		heads[bucket] = threadState.nextWaiter;
+	    else
+		threadState.prevWaiter.nextWaiter = threadState.nextWaiter;
+	    if (threadState.nextWaiter == null)
+		tails[bucket] = threadState.prevWaiter;
+	    else
+		threadState.nextWaiter.prevWaiter = threadState.prevWaiter;
+	    if (heads[bucket] == null)
+		occupied &= ~(1 << bucket);
+
+	    threadState.buckets = null;
+	    threadState.prevWaiter = threadState.nextWaiter = null;
+	    size--;
+	    return true;
+	}
+
+	/**
+	 * Move a thread waiting here to the tail of the list of its effective
+	 * priority, after it changed.
+	 */
+	public void reprioritize(ThreadState threadState) {
+	    Lib.assertTrue(threadState.buckets == this);
+	    if (bucketOf(threadState) == threadState.bucket)
+		return;
+
+	    remove(threadState);
+	    offer(threadState);
+	}
+
+	public int size() {
+	    return size;
+	}
+
+	/**
+	 * Iterate over the threads in the order <tt>poll()</tt> would return
+	 * them. The queue must not change while the iterator is in use.
+	 */
+	public Iterator<ThreadState> iterator() {
+	    return new Iterator<ThreadState>() {
+		    public boolean hasNext() {
+			return next != null;
+		    }
+
+		    public ThreadState next() {
+			if (next == null)
+			    throw new NoSuchElementException();
+
+			ThreadState threadState = next;
+			next = threadState.nextWaiter;
+			if (next == null) {
+			    int lower = occupied & ((1 << threadState.bucket) - 1);
+			    if (lower != 0)
+				next = heads[31 - Integer.numberOfLeadingZeros(lower)];
+			}
+			return threadState;
+		    }
+
+		    public void remove() {
+			throw new UnsupportedOperationException();
+		    }
+
+		    private ThreadState next = peek();
+		};
+	}
+
+	private static int bucketOf(ThreadState threadState) {
+	    return Math.max(priorityMinimum,
+			    Math.min(priorityMaximum,
+				     threadState.getEffectivePriority()));
+	}
+
+	private final ThreadState[] heads = new ThreadState[priorityMaximum+1];
+	private final ThreadState[] tails = new ThreadState[priorityMaximum+1];
+	/** Bit <i>p</i> is set if the list for priority <i>p</i> is not empty. */
+	private int occupied = 0;
+	private int size = 0;
+    }
+
+    /**
+     * Numbers each call to <tt>ThreadState.donatePriority()</tt>, which marks
+     * the queues it passes with it.
+     */
+    private int donationPass = 0;
     
  
 
@@ -437,6 +593,9 @@ public class PriorityScheduler extends Scheduler {
 	    if (this.priority >= this.donation){
 	    	this.donation = 0;
 	    }
+	    if (this.buckets != null){
+	    	this.buckets.reprioritize(this);
+	    }
 	    if (this.waitingInQueue != null){
 	    	donatePriority(this.waitingInQueue);
 	    }
@@ -464,45 +623,48 @@ public class PriorityScheduler extends Scheduler {
 		donatePriority(waitQueue);
 	}
 
-	protected void donatePriority(PriorityQueue waitQueue) {
-		donatePriority(waitQueue, new ArrayList<PriorityQueue>());
+	/**
+	 * Set the priority donated to the associated thread, and move it to the
+	 * matching bucket if it is waiting.
+	 *
+	 * @param	donation	the new donated priority, or 0 for none.
+	 */
+	protected void setDonation(int donation) {
+		this.donation = donation;
+		if (this.buckets != null){
+			this.buckets.reprioritize(this);
+		}
 	}
 
-	private void donatePriority(PriorityQueue waitQueue,
-			List<PriorityQueue> visitedQueues) {
-		if (waitQueue.lockHolder == null || visitedQueues.contains(waitQueue))
-			return;
-		
-		if (waitQueue.transferPriority 
-				&& (waitQueue.lockHolder.getEffectivePriority() < (this.priority)
-						|| waitQueue.lockHolder.getEffectivePriority() < (this.donation))){
-			
-			
-	    	boolean intStatus = Machine.interrupt().disable(); 
-	    	waitQueue.lockHolder.donation = getEffectivePriority();
-	    	if (waitQueue.lockHolder.waitingInQueue != null){
-	    		waitQueue.lockHolder.waitingInQueue.queue.remove(waitQueue.lockHolder);
-	    	
-	    		waitQueue.lockHolder.waitingInQueue.queue.offer(waitQueue.lockHolder);
-	    	}
-	    	Machine.interrupt().restore(intStatus);
+	/**
+	 * Donate the effective priority of the associated thread to the holder
+	 * of <tt>waitQueue</tt>, and on along the chain of holders each waiting
+	 * for a queue held by the next, where it is higher than theirs. The
+	 * chain is followed with a loop, and cycles are cut by marking each
+	 * queue with the number of this pass, so that nothing is allocated.
+	 *
+	 * @param	waitQueue	the queue the associated thread waits in.
+	 */
+	protected void donatePriority(PriorityQueue waitQueue) {
+		int pass = ++donationPass;
+		int effectivePriority = getEffectivePriority();
+
+		boolean intStatus = Machine.interrupt().disable();
+		while (waitQueue != null && waitQueue.lockHolder != null
+				&& waitQueue.lastDonationPass != pass) {
+			waitQueue.lastDonationPass = pass;
+			ThreadState lockHolder = waitQueue.lockHolder;
+
+			if (waitQueue.transferPriority
+					&& lockHolder.getEffectivePriority() < effectivePriority){
+				lockHolder.setDonation(effectivePriority);
+				Lib.debug(dbgThread, "Donating priority of " + lockHolder.donation
+						+" to " + lockHolder.thread.getName());
+			}
 
-			
-			
-			
-			waitQueue.lockHolder.donation = getEffectivePriority();
-			Lib.debug(dbgThread, "Donating priority of " + waitQueue.lockHolder.donation 
-					+" to " + waitQueue.lockHolder.thread.getName());
-		}
-		
-		visitedQueues.add(waitQueue);
-		
-		if (waitQueue.lockHolder.waitingInQueue != null){
-			donatePriority(waitQueue.lockHolder.waitingInQueue, visitedQueues);
+			waitQueue = lockHolder.waitingInQueue;
 		}
-		
-		 
-		
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -532,6 +694,12 @@ public class PriorityScheduler extends Scheduler {
 	protected int priority;
 	protected int donation;
 	protected long creationTime;
+	/** The <tt>Buckets</tt> the associated thread waits in, if any. */
+	private Buckets buckets;
+	/** The bucket it waits in, which is its effective priority then. */
+	private int bucket;
+	/** Its neighbours in that bucket. */
+	private ThreadState prevWaiter, nextWaiter;
 	@Override
 	
 	// jnz - comparator reverses the natural ordering so that the highest Effective Priority is at the head of the queue
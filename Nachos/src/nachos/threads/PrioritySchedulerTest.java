@@ -0,0 +1,160 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * Tests the order in which a <tt>PriorityScheduler</tt>'s queues give up
+ * their threads, when several wait at the same priority and their priorities
+ * change while they wait. The threads are never forked; they only wait in
+ * queues of a scheduler of the test's own, so the results do not depend on
+ * timing.
+ */
+public class PrioritySchedulerTest {
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+	testFifo();
+	testReprioritize();
+	testDonation();
+	testDonationChain();
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Threads of the same priority come out in the order they started
+     * waiting.
+     */
+    public static void testFifo() {
+	final String METHOD_NAME = "PrioritySchedulerTest::testFifo";
+
+	PriorityScheduler scheduler = new PriorityScheduler();
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread[] threads = newThreads(scheduler, 4, 3);
+	for (int i=0; i<threads.length; i++)
+	    queue.waitForAccess(threads[i]);
+
+	expect(queue, threads);
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * A thread whose priority changes while it waits goes to the tail of its
+     * new priority, behind the threads already there, whichever way it
+     * moved.
+     */
+    public static void testReprioritize() {
+	final String METHOD_NAME = "PrioritySchedulerTest::testReprioritize";
+
+	PriorityScheduler scheduler = new PriorityScheduler();
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread[] t = newThreads(scheduler, 5, 2);
+	for (int i=0; i<t.length; i++)
+	    queue.waitForAccess(t[i]);
+
+	// t3, then t1, join an empty bucket
+	scheduler.setPriority(t[3], 5);
+	scheduler.setPriority(t[1], 5);
+	// t0 goes up and back down, behind t4
+	scheduler.setPriority(t[0], 6);
+	scheduler.setPriority(t[0], 2);
+	// no change, so no move
+	scheduler.setPriority(t[2], 2);
+
+	expect(queue, new KThread[] { t[3], t[1], t[2], t[4], t[0] });
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * A donation moves the lock holder ahead of the threads of its own
+     * priority in the queue it waits in, and taking the donation back moves
+     * it behind them.
+     */
+    public static void testDonation() {
+	final String METHOD_NAME = "PrioritySchedulerTest::testDonation";
+
+	PriorityScheduler scheduler = new PriorityScheduler();
+	ThreadQueue ready = scheduler.newThreadQueue(false);
+	ThreadQueue lock = scheduler.newThreadQueue(true);
+	KThread[] t = newThreads(scheduler, 4, 2);
+	KThread holder = t[1];
+	KThread waiter = newThreads(scheduler, 1, 6)[0];
+
+	lock.acquire(holder);
+	for (int i=0; i<t.length; i++)
+	    ready.waitForAccess(t[i]);
+
+	lock.waitForAccess(waiter);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == 6);
+	Lib.assertTrue(scheduler.getPriority(holder) == 2);
+	Lib.assertTrue(((PriorityScheduler.PriorityQueue) ready)
+		       .pickNextThread().thread == holder);
+
+	// the lock goes to the waiter, and the holder loses the donation
+	Lib.assertTrue(lock.nextThread() == waiter);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == 2);
+
+	expect(ready, new KThread[] { t[0], t[2], t[3], holder });
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * A donation passes along a chain of lock holders, each waiting for the
+     * lock of the next, and moves each one where it waits.
+     */
+    public static void testDonationChain() {
+	final String METHOD_NAME = "PrioritySchedulerTest::testDonationChain";
+
+	PriorityScheduler scheduler = new PriorityScheduler();
+	ThreadQueue ready = scheduler.newThreadQueue(false);
+	ThreadQueue lockA = scheduler.newThreadQueue(true);
+	ThreadQueue lockB = scheduler.newThreadQueue(true);
+	KThread[] t = newThreads(scheduler, 4, 1);
+	KThread holderA = t[0], holderB = t[2];
+	KThread waiter = newThreads(scheduler, 1, 4)[0];
+
+	// holderA holds lockA and waits for lockB, behind another thread
+	lockA.acquire(holderA);
+	lockB.acquire(holderB);
+	lockB.waitForAccess(t[1]);
+	lockB.waitForAccess(holderA);
+	ready.waitForAccess(t[3]);
+	ready.waitForAccess(holderB);
+
+	lockA.waitForAccess(waiter);
+	Lib.assertTrue(scheduler.getEffectivePriority(holderA) == 4);
+	Lib.assertTrue(scheduler.getEffectivePriority(holderB) == 4);
+	Lib.assertTrue(scheduler.getEffectivePriority(t[1]) == 1);
+
+	// before lockB changes hands, which takes back holderB's donation
+	expect(ready, new KThread[] { holderB, t[3] });
+	expect(lockB, new KThread[] { holderA, t[1] });
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Make threads that are never forked, each with the given priority in
+     * <tt>scheduler</tt>.
+     */
+    private static KThread[] newThreads(PriorityScheduler scheduler,
+					int count, int priority) {
+	KThread[] threads = new KThread[count];
+	for (int i=0; i<count; i++) {
+	    threads[i] = new KThread().setName("PrioritySchedulerTest " + i);
+	    scheduler.setPriority(threads[i], priority);
+	}
+	return threads;
+    }
+
+    /**
+     * Check that <tt>queue</tt> gives up exactly <tt>threads</tt>, in order.
+     */
+    private static void expect(ThreadQueue queue, KThread[] threads) {
+	for (int i=0; i<threads.length; i++) {
+	    KThread thread = queue.nextThread();
+	    Lib.assertTrue(thread == threads[i],
+			   "expected " + threads[i].getName() + " but got " +
+			   (thread == null ? "nothing" : thread.getName()));
+	}
+	Lib.assertTrue(queue.nextThread() == null);
+    }
+}
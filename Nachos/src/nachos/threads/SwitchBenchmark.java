@@ -0,0 +1,113 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures how long a context switch takes in real time, for
+ * comparing TCB implementations. Two threads hand the processor back and
+ * forth, first with <tt>KThread.yield()</tt>, then through a pair of
+ * semaphores, which puts each thread to sleep and wakes the other; the
+ * average time per switch is printed for each.
+ *
+ * <p>
+ * To run it, in the <tt>proj1</tt> directory:
+ *
+ * <pre>
+ * java nachos.machine.Machine -c Kernel.kernel=nachos.threads.SwitchBenchmark
+ * </pre>
+ *
+ * <p>
+ * <tt>SwitchBenchmark.switches</tt> sets how many switches to time for each
+ * (100000 by default); as many again are done first, untimed, to warm up the
+ * JVM.
+ */
+public class SwitchBenchmark extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public SwitchBenchmark() {
+	super();
+    }
+
+    /**
+     * Run none of the usual self tests, so that only the switches are timed.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Time each way of switching.
+     */
+    public void run() {
+	int switches = Config.getInteger("SwitchBenchmark.switches", 100000);
+	Lib.assertTrue(switches >= 2);
+
+	yieldPingPong(switches);
+	report("yield", switches, yieldPingPong(switches));
+
+	semaphorePingPong(switches);
+	report("semaphore", switches, semaphorePingPong(switches));
+    }
+
+    private static void report(String name, int switches, long nanos) {
+	System.out.println("SwitchBenchmark: " + name + ": " + switches +
+			   " switches, " + (nanos / switches) + " ns each");
+    }
+
+    /**
+     * Two threads yield to each other, each yield switching to the other.
+     *
+     * @return	the time taken, in nanoseconds.
+     */
+    private static long yieldPingPong(int switches) {
+	final int rounds = switches / 2;
+
+	KThread other = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<rounds; i++)
+			KThread.yield();
+		}
+	    });
+	other.setName("yield partner");
+
+	long start = System.nanoTime();
+	other.fork();
+	for (int i=0; i<rounds; i++)
+	    KThread.yield();
+	other.join();
+
+	return System.nanoTime() - start;
+    }
+
+    /**
+     * Two threads take turns through a pair of semaphores, each going to
+     * sleep in <tt>P()</tt> once it has woken the other with <tt>V()</tt>.
+     *
+     * @return	the time taken, in nanoseconds.
+     */
+    private static long semaphorePingPong(int switches) {
+	final int rounds = switches / 2;
+	final Semaphore ping = new Semaphore(0);
+	final Semaphore pong = new Semaphore(0);
+
+	KThread other = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<rounds; i++) {
+			ping.P();
+			pong.V();
+		    }
+		}
+	    });
+	other.setName("semaphore partner");
+
+	long start = System.nanoTime();
+	other.fork();
+	for (int i=0; i<rounds; i++) {
+	    ping.V();
+	    pong.P();
+	}
+	other.join();
+
+	return System.nanoTime() - start;
+    }
+}
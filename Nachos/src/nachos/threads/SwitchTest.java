@@ -0,0 +1,137 @@
+package nachos.threads;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import nachos.machine.Lib;
+
+/**
+ * Tests that the TCBs under <tt>KThread</tt> hand the processor over
+ * correctly, whichever Java threads (<tt>TCB.threads</tt>) they run in: only
+ * one thread runs at a time, each always runs in its own Java thread, and
+ * no wakeup is lost. These are the switches <tt>SwitchBenchmark</tt> times.
+ */
+public class SwitchTest {
+    public static void selfTest() {
+	testSemaphoreHandoff();
+	testYieldHandoff();
+	testManyThreads();
+    }
+
+    /**
+     * Two threads taking turns through a pair of semaphores run strictly in
+     * turn, however the timer preempts them.
+     */
+    public static void testSemaphoreHandoff() {
+	final String METHOD_NAME = "SwitchTest::testSemaphoreHandoff";
+
+	final Semaphore ping = new Semaphore(0);
+	final Semaphore pong = new Semaphore(0);
+	final int[] trace = new int[2 * rounds];
+	final int[] next = new int[] { 0 };
+
+	KThread other = new KThread(new Runnable() {
+		public void run() {
+		    Thread javaThread = Thread.currentThread();
+		    for (int i=0; i<rounds; i++) {
+			ping.P();
+			Lib.assertTrue(Thread.currentThread() == javaThread);
+			trace[next[0]++] = 1;
+			pong.V();
+		    }
+		}
+	    });
+	other.setName("pong");
+	other.fork();
+
+	Thread javaThread = Thread.currentThread();
+	for (int i=0; i<rounds; i++) {
+	    trace[next[0]++] = 0;
+	    ping.V();
+	    pong.P();
+	    Lib.assertTrue(Thread.currentThread() == javaThread);
+	}
+	other.join();
+
+	Lib.assertTrue(next[0] == trace.length);
+	for (int i=0; i<trace.length; i++)
+	    Lib.assertTrue(trace[i] == i % 2, "turn " + i + " out of order");
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Two threads yielding to each other never run at the same time, and
+     * both finish.
+     */
+    public static void testYieldHandoff() {
+	final String METHOD_NAME = "SwitchTest::testYieldHandoff";
+
+	final Object[] owner = new Object[1];
+	final int[] turns = new int[2];
+	KThread other = new KThread(new Runnable() {
+		public void run() {
+		    yieldRounds(owner, turns, 1);
+		}
+	    });
+	other.setName("yield partner");
+	other.fork();
+	yieldRounds(owner, turns, 0);
+	other.join();
+
+	Lib.assertTrue(turns[0] == rounds && turns[1] == rounds);
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Yield <tt>rounds</tt> times, after each one claiming the processor and
+     * checking, a little later, that no other thread took it meanwhile.
+     */
+    private static void yieldRounds(Object[] owner, int[] turns, int which) {
+	Thread javaThread = Thread.currentThread();
+	for (int i=0; i<rounds; i++) {
+	    KThread.yield();
+	    Lib.assertTrue(Thread.currentThread() == javaThread);
+
+	    owner[0] = javaThread;
+	    for (int j=0; j<10; j++)
+		Thread.yield();
+	    Lib.assertTrue(owner[0] == javaThread,
+			   "two threads ran at the same time");
+	    turns[which]++;
+	}
+    }
+
+    /**
+     * Many threads started at once each run once, each in a Java thread of
+     * its own, and all of them can be joined.
+     */
+    public static void testManyThreads() {
+	final String METHOD_NAME = "SwitchTest::testManyThreads";
+
+	final Set<Thread> javaThreads = new HashSet<Thread>();
+	final Semaphore done = new Semaphore(0);
+	KThread[] threads = new KThread[100];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			Lib.assertTrue(javaThreads.add(Thread.currentThread()));
+			KThread.yield();
+			done.V();
+		    }
+		});
+	    threads[i].setName("switch test " + i);
+	    threads[i].fork();
+	}
+
+	for (int i=0; i<threads.length; i++)
+	    done.P();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	Lib.assertTrue(javaThreads.size() == threads.length);
+	Lib.assertTrue(!javaThreads.contains(Thread.currentThread()));
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    private static final int rounds = 1000;
+}
@@ -41,9 +41,11 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes, and, if
+     * <tt>Kernel.unitTests</tt> is true, the unit tests of this package and
+     * of the machine's timing wheel. Note
+     * that the autograder never calls this method, so it is safe to put
+     * additional tests here.
      */	
     public void selfTest() {
 	KThread.selfTest();
@@ -53,6 +55,11 @@ public class ThreadedKernel extends Kernel {
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
+	if (Config.getBoolean("Kernel.unitTests", false)) {
+	    PrioritySchedulerTest.selfTest();
+	    TimingWheelTest.selfTest();
+	    SwitchTest.selfTest();
+	}
     }
     
     /**
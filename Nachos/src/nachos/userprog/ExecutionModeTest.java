@@ -0,0 +1,104 @@
+package nachos.userprog;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Processor;
+import nachos.machine.Stats;
+
+/**
+ * Tests that the processor runs a program the same whichever way it runs
+ * it: one instruction at a time or from decoded blocks, compiled or not,
+ * and with user ticks accounted for one by one or in bulk. The program is
+ * run as the child of a process which is loaded but never run, so that the
+ * machine does not halt when the child exits.
+ */
+public class ExecutionModeTest {
+    public static void selfTest() {
+	testSameTicks();
+    }
+
+    /**
+     * The program exits with the same status, having executed the same
+     * number of instructions, in every mode.
+     */
+    public static void testSameTicks() {
+	final String METHOD_NAME = "ExecutionModeTest::testSameTicks";
+
+	Processor processor = Machine.processor();
+	UserProcess parent = UserProcess.newUserProcess();
+	Lib.assertTrue(parent.load(program, new String[] { }),
+		       "unable to load " + program);
+
+	// the parent's stack holds the name, and gets the exit status
+	int nameAddress = (parent.numPages - 2) * Processor.pageSize;
+	int statusAddress = nameAddress + 64;
+	byte[] name = (program + "\0").getBytes();
+	Lib.assertTrue(parent.writeVirtualMemory(nameAddress, name)
+		       == name.length);
+
+	long expected = -1;
+	for (int i=0; i<modes.length; i++) {
+	    processor.setExecutionMode(modes[i][0] != 0, modes[i][1],
+				       modes[i][2] != 0);
+	    long instructions = run(parent, nameAddress, statusAddress);
+	    Lib.assertTrue(expected == -1 || instructions == expected,
+			   "mode " + i + " took " + instructions +
+			   " instructions, not " + expected);
+	    expected = instructions;
+	}
+
+	// as the processor was created
+	processor.setExecutionMode(
+	    Config.getBoolean("Processor.decodeCache", true),
+	    Config.getInteger("Processor.hotBlockThreshold", 32),
+	    Config.getBoolean("Processor.batchTicks", true));
+	parent.unloadSections();
+	parent.discard();
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Run the program as a child of <i>parent</i>, and wait for it to exit
+     * successfully.
+     *
+     * @return	the number of instructions it executed: its user ticks, less
+     *		one for each instruction which missed in the TLB or page
+     *		table and was started again, since how many do depends on
+     *		memory rather than on the mode.
+     */
+    private static long run(UserProcess parent, int nameAddress,
+			    int statusAddress) {
+	Stats before = Machine.getStats();
+	int pid = parent.handleSyscall(UserProcess.syscallExec,
+				       nameAddress, 0, 0, 0);
+	Lib.assertTrue(pid != -1, "unable to run " + program);
+	Lib.assertTrue(parent.handleSyscall(UserProcess.syscallJoin, pid,
+					    statusAddress, 0, 0) == 1);
+	Stats after = Machine.getStats();
+
+	byte[] status = new byte[4];
+	Lib.assertTrue(parent.readVirtualMemory(statusAddress, status) == 4);
+	Lib.assertTrue(Lib.bytesToInt(status, 0) == 0, program + " failed");
+
+	return (after.userTicks - before.userTicks) -
+	    (after.numTLBMisses - before.numTLBMisses) -
+	    (after.numPageFaults - before.numPageFaults);
+    }
+
+    /**
+     * Whether to run decoded blocks (0 or 1), the hot block threshold, and
+     * whether to batch user ticks (0 or 1).
+     */
+    private static final int[][] modes = {
+	{ 0, 0, 0 },	// one instruction at a time, ticking after each
+	{ 1, 0, 0 },	// decoded blocks, never compiled
+	{ 1, 1, 0 },	// every block compiled the first time it runs
+	{ 0, 0, 1 },	// one instruction at a time, ticks in bulk
+	{ 1, 1, 1 },	// compiled blocks, ticks in bulk
+	{ 1, 32, 1 },	// the defaults
+    };
+
+    /** It checks its own result, and prints nothing. */
+    private static final String program = "sort.coff";
+}
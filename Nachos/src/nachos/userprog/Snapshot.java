@@ -0,0 +1,175 @@
+package nachos.userprog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import nachos.machine.Config;
+import nachos.machine.Kernel;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+import nachos.machine.Stats;
+
+/**
+ * Saves a running user program to a file, and starts a later run from that
+ * file rather than from the beginning.
+ *
+ * <p>
+ * Kernel threads are Java threads, whose stacks cannot be saved, so rather
+ * than the raw machine (physical memory, TLB contents, pending interrupts)
+ * a snapshot holds what the kernel would need to rebuild it: the registers
+ * of the process, the contents of every page it may have written to, whether
+ * in memory or in the swap file, its open files, and the statistics,
+ * including the simulated time. A restored run reloads the executable,
+ * writes the saved pages back over it, moves the clock forward, and carries
+ * on; physical memory, the TLB and the page replacement algorithm start out
+ * cold, so the ticks that follow are not exactly those of the original run.
+ *
+ * <p>
+ * A snapshot is taken in the exception handler, when only one process is
+ * left (e.g. after a shell has exited, or before it forks anything). It is
+ * controlled by these <tt>nachos.conf</tt> keys, which can also be given
+ * with the <tt>-c</tt> switch:
+ *
+ * <dl>
+ * <dt><tt>Snapshot.save</tt>
+ * <dd>the file, in the test directory, to save a snapshot to.
+ * <dt><tt>Snapshot.tick</tt>
+ * <dd>the earliest tick to take it at; by default, the first exception.
+ * <dt><tt>Snapshot.exit</tt>
+ * <dd>whether to terminate once it is saved.
+ * <dt><tt>Snapshot.restore</tt>
+ * <dd>the file to start from, rather than running the shell program.
+ * </dl>
+ */
+public final class Snapshot {
+    private Snapshot() {
+    }
+
+    /**
+     * Save a snapshot of a process if one was asked for, and this is the
+     * first opportunity to take it. Called by the exception handler, before
+     * the exception is handled, so that the restored process raises it again.
+     *
+     * @param	process	the process that raised the exception.
+     */
+    public static void saveIfDue(UserProcess process) {
+	if (saveFileName == null || saved ||
+	    Machine.timer().getTime() < saveTick ||
+	    UserProcess.getNumActiveProcesses() != 1)
+	    return;
+	saved = true;
+
+	Stats stats = Machine.getStats();
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	try {
+	    DataOutputStream out =
+		new DataOutputStream(new DeflaterOutputStream(bytes));
+	    out.writeInt(magic);
+	    writeStats(out, stats);
+	    process.writeSnapshot(out);
+	    out.close();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("unable to save snapshot: " + e);
+	}
+
+	OpenFile file = Machine.stubFileSystem().open(saveFileName, true);
+	Lib.assertTrue(file != null, "unable to create " + saveFileName);
+	Lib.assertTrue(file.write(bytes.toByteArray(), 0, bytes.size())
+		       == bytes.size(), "unable to write " + saveFileName);
+	file.close();
+
+	System.out.println("Snapshot: saved " + process + " to " +
+			   saveFileName + " at tick " + stats.totalTicks);
+
+	if (Config.getBoolean("Snapshot.exit", false))
+	    Kernel.kernel.terminate();
+    }
+
+    /**
+     * Start running the process saved in the snapshot named by
+     * <tt>Snapshot.restore</tt>, if there is one.
+     *
+     * @return	<tt>true</tt> if a snapshot was restored, or <tt>false</tt> if
+     *		the shell program should be run instead.
+     */
+    public static boolean restore() {
+	String fileName = Config.getString("Snapshot.restore");
+	if (fileName == null)
+	    return false;
+
+	OpenFile file = Machine.stubFileSystem().open(fileName, false);
+	Lib.assertTrue(file != null, "unable to open " + fileName);
+	byte[] bytes = new byte[file.length()];
+	Lib.assertTrue(file.read(0, bytes, 0, bytes.length) == bytes.length,
+		       "unable to read " + fileName);
+	file.close();
+
+	try {
+	    DataInputStream in = new DataInputStream(
+		new InflaterInputStream(new ByteArrayInputStream(bytes)));
+	    Lib.assertTrue(in.readInt() == magic, fileName + " is no snapshot");
+	    Stats stats = readStats(in);
+
+	    UserProcess process = UserProcess.newUserProcess();
+	    Lib.assertTrue(process.restoreSnapshot(in),
+			   "unable to restore " + fileName);
+
+	    // last, so that none of the work above shows
+	    Machine.interrupt().restoreStats(stats);
+	    System.out.println("Snapshot: restored " + process + " from " +
+			       fileName + " at tick " + stats.totalTicks);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("unable to restore " + fileName + ": " + e);
+	}
+
+	return true;
+    }
+
+    private static void writeStats(DataOutputStream out, Stats stats)
+	throws IOException {
+	out.writeLong(stats.totalTicks);
+	out.writeLong(stats.kernelTicks);
+	out.writeLong(stats.userTicks);
+	out.writeInt(stats.numDiskReads);
+	out.writeInt(stats.numDiskWrites);
+	out.writeInt(stats.numConsoleReads);
+	out.writeInt(stats.numConsoleWrites);
+	out.writeInt(stats.numPageFaults);
+	out.writeInt(stats.numTLBMisses);
+	out.writeInt(stats.numPacketsSent);
+	out.writeInt(stats.numPacketsReceived);
+    }
+
+    private static Stats readStats(DataInputStream in) throws IOException {
+	Stats stats = new Stats();
+	stats.totalTicks = in.readLong();
+	stats.kernelTicks = in.readLong();
+	stats.userTicks = in.readLong();
+	stats.numDiskReads = in.readInt();
+	stats.numDiskWrites = in.readInt();
+	stats.numConsoleReads = in.readInt();
+	stats.numConsoleWrites = in.readInt();
+	stats.numPageFaults = in.readInt();
+	stats.numTLBMisses = in.readInt();
+	stats.numPacketsSent = in.readInt();
+	stats.numPacketsReceived = in.readInt();
+	return stats;
+    }
+
+    /** Identifies a snapshot file, and the version of its format. */
+    private static final int magic = 0x4e530001;
+
+    private static final String saveFileName =
+	Config.getString("Snapshot.save");
+    private static final long saveTick =
+	Long.parseLong(Config.getString("Snapshot.tick", "0"));
+    private static boolean saved = false;
+}
@@ -0,0 +1,106 @@
+package nachos.userprog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+import nachos.machine.Processor;
+
+/**
+ * Tests that a process restored from a snapshot has the registers, memory
+ * and open files the original had when the snapshot was taken. The process
+ * is loaded but never run; the test writes its registers and memory itself.
+ */
+public class SnapshotTest {
+    public static void selfTest() {
+	try {
+	    testRoundTrip();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("SnapshotTest: " + e);
+	}
+    }
+
+    /**
+     * Save a process, throw it away, and restore it into a new one.
+     */
+    public static void testRoundTrip() throws IOException {
+	final String METHOD_NAME = "SnapshotTest::testRoundTrip";
+
+	Processor processor = Machine.processor();
+	UserProcess original = UserProcess.newUserProcess();
+	int pid = original.getPid();
+	Lib.assertTrue(original.load(program, new String[] { }),
+		       "unable to load " + program);
+
+	// a page of the program's own, and one of its stack
+	int dataAddress = (original.numPages - original.stackPages - 2)
+	    * Processor.pageSize + 100;
+	int stackAddress = (original.numPages - 2) * Processor.pageSize;
+	byte[] data = "snapshot data".getBytes();
+	Lib.assertTrue(original.writeVirtualMemory(dataAddress, data)
+		       == data.length);
+	byte[] name = (file + "\0").getBytes();
+	Lib.assertTrue(original.writeVirtualMemory(stackAddress, name)
+		       == name.length);
+	int fd = original.handleSyscall(UserProcess.syscallOpen,
+					stackAddress, 0, 0, 0);
+	Lib.assertTrue(fd >= 2, "unable to open " + file);
+	Lib.assertTrue(original.handleSyscall(UserProcess.syscallRead, fd,
+					      stackAddress + 64, 10, 0) == 10);
+	// register 0 is always zero
+	for (int i=1; i<Processor.numUserRegisters; i++)
+	    processor.writeRegister(i, 0x1000 + i);
+
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(bytes);
+	original.writeSnapshot(out);
+	out.close();
+
+	original.handleSyscall(UserProcess.syscallClose, fd, 0, 0, 0);
+	original.unloadSections();
+	original.discard();
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    processor.writeRegister(i, 0);
+
+	UserProcess restored = UserProcess.newUserProcess();
+	Lib.assertTrue(restored.readSnapshot(new DataInputStream(
+	    new ByteArrayInputStream(bytes.toByteArray()))));
+	Lib.assertTrue(restored.getPid() == pid);
+
+	restored.initRegisters();
+	for (int i=1; i<Processor.numUserRegisters; i++)
+	    Lib.assertTrue(processor.readRegister(i) == 0x1000 + i,
+			   "register " + i + " was not restored");
+
+	byte[] readBack = new byte[data.length];
+	Lib.assertTrue(restored.readVirtualMemory(dataAddress, readBack)
+		       == data.length);
+	Lib.assertTrue(Arrays.equals(data, readBack), "memory was not restored");
+
+	// the file carries on where the original left it
+	byte[] expected = new byte[10];
+	OpenFile direct = Machine.stubFileSystem().open(file, false);
+	Lib.assertTrue(direct.read(10, expected, 0, 10) == 10);
+	direct.close();
+	Lib.assertTrue(restored.handleSyscall(UserProcess.syscallRead, fd,
+					      stackAddress + 64, 10, 0) == 10);
+	byte[] read = new byte[10];
+	restored.readVirtualMemory(stackAddress + 64, read);
+	Lib.assertTrue(Arrays.equals(expected, read), "file was not restored");
+
+	restored.handleSyscall(UserProcess.syscallClose, fd, 0, 0, 0);
+	restored.unloadSections();
+	restored.discard();
+	System.out.println(METHOD_NAME + " OK");
+    }
+
+    private static final String program = "matmult.coff";
+    private static final String file = "echo.coff";
+}
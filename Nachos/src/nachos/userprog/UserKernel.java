@@ -3,9 +3,11 @@ package nachos.userprog;
 import java.util.LinkedList;
 
 import nachos.machine.Coff;
+import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.Processor;
+import nachos.machine.TLBTest;
 import nachos.threads.KThread;
 import nachos.threads.Lock;
 import nachos.threads.ThreadedKernel;
@@ -46,9 +48,15 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Test the console device.
+     * Test this kernel, if <tt>Kernel.unitTests</tt> is set. The console
+     * test is <tt>selfTest1()</tt>.
      */	
     public void selfTest() {
+	if (Config.getBoolean("Kernel.unitTests", false)) {
+	    TLBTest.selfTest();
+	    SnapshotTest.selfTest();
+	    ExecutionModeTest.selfTest();
+	}
     }
 
     // disabled because does not work with paged memory
@@ -122,23 +130,28 @@ public class UserKernel extends ThreadedKernel {
 
 	UserProcess process = ((UThread) KThread.currentThread()).process;
 	int cause = Machine.processor().readRegister(Processor.regCause);
+	Snapshot.saveIfDue(process);
 	process.handleException(cause);
     }
 
     /**
      * Start running user programs, by creating a process and running a shell
      * program in it. The name of the shell program it must run is returned by
-     * <tt>Machine.getShellProgramName()</tt>.
+     * <tt>Machine.getShellProgramName()</tt>. If a snapshot is to be
+     * restored, the process saved in it is run instead.
      *
      * @see	nachos.machine.Machine#getShellProgramName
+     * @see	Snapshot
      */
     public void run() {
 	super.run();
 
-	UserProcess process = UserProcess.newUserProcess();
-	
-	String shellProgram = Machine.getShellProgramName();	
-	Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+	if (!Snapshot.restore()) {
+	    UserProcess process = UserProcess.newUserProcess();
+
+	    String shellProgram = Machine.getShellProgramName();
+	    Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+	}
 
 	KThread.finish();
     }
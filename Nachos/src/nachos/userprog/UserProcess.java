@@ -1,6 +1,9 @@
 package nachos.userprog;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -161,9 +164,10 @@ public class UserProcess {
 		return 0;
 	}
 	
-	byte[] memory = Machine.processor().getMemory();
-	int amount = Math.min(length, memory.length - paddr);
-	System.arraycopy(memory, paddr, data, offset, amount);
+	Processor processor = Machine.processor();
+	int memorySize = processor.getNumPhysPages() * pageSize;
+	int amount = Math.min(length, memorySize - paddr);
+	processor.readMemory(paddr, data, offset, amount);
 
 	return amount;
     }
@@ -216,13 +220,14 @@ public class UserProcess {
 		return 0;
 	}
 	
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
+	int memorySize = processor.getNumPhysPages() * pageSize;
 	
-	if (paddr < 0 || paddr >= memory.length)
+	if (paddr < 0 || paddr >= memorySize)
 	    return 0;
 
-	int amount = Math.min(length, memory.length-paddr);
-	System.arraycopy(data, offset, memory, paddr, amount);
+	int amount = Math.min(length, memorySize-paddr);
+	processor.writeMemory(paddr, data, offset, amount);
 
 	return amount;
     }
@@ -280,6 +285,7 @@ public class UserProcess {
      */
     protected boolean load(String name, String[] args) {
 	debug( "UserProcess.load(\"" + name + "\")");
+	programName = name;
 	
 	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
 	if (executable == null) {
@@ -455,6 +461,14 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a restored process carries on where its snapshot was taken
+	if (restoredRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, restoredRegisters[i]);
+	    restoredRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<Processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -975,6 +989,193 @@ public class UserProcess {
     public int getPid() {
     	return pid;
     }
+
+    /**
+     * Return the name of the executable this process was loaded from, or
+     * <tt>null</tt> before it is loaded.
+     */
+    public String getProgramName() {
+	return programName;
+    }
+
+    /**
+     * Return the number of processes that have not exited yet.
+     */
+    static int getNumActiveProcesses() {
+	return numActiveProcesses;
+    }
+
+    /**
+     * Forget a process which was never run, such as one made up by a test,
+     * so that it neither keeps the machine from halting once the real
+     * processes exit nor takes the pid of the first one. Processes must be
+     * discarded in the reverse order of their creation.
+     */
+    public void discard() {
+	mutex.acquire();
+	numActiveProcesses--;
+	if (pid == currentPID - 1)
+	    currentPID--;
+	mutex.release();
+    }
+
+    /**
+     * Write the state of this process to a snapshot: its registers, the
+     * contents of every page the program can have written to, wherever the
+     * page is at the moment, and its open files. Must be called by the
+     * thread of this process, while the processor still holds its user
+     * registers, i.e. from the exception handler.
+     *
+     * @param	out	the stream to write the snapshot to.
+     * @see	Snapshot
+     */
+    void writeSnapshot(DataOutputStream out) throws IOException {
+	Processor processor = Machine.processor();
+
+	out.writeUTF(programName);
+	out.writeInt(pid);
+	mutex.acquire();
+	out.writeInt(currentPID);
+	mutex.release();
+
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    out.writeInt(processor.readRegister(i));
+
+	// the code comes from the executable again, and so do stack pages
+	// that are still zero, so neither is saved
+	int coffPages = numPages - stackPages - 1;
+	byte[] page = new byte[pageSize];
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (vpn < coffPages && isReadOnlySection(vpn))
+		continue;
+	    Lib.assertTrue(readVirtualMemory(vpn*pageSize, page) == pageSize);
+	    if (vpn >= coffPages && isZero(page))
+		continue;
+	    out.writeInt(vpn);
+	    out.write(page);
+	}
+	out.writeInt(-1);
+
+	for (int fd=0; fd<maxNumFiles; fd++) {
+	    OpenFile file = fileDescriptors[fd];
+	    if (null == file)
+		continue;
+	    out.writeInt(fd);
+	    // the console has no file system, and a name of its own
+	    out.writeUTF(null == file.getFileSystem() ? "" : file.getName());
+	    out.writeInt(file.tell());
+	}
+	out.writeInt(-1);
+
+	instanceMutex.acquire();
+	out.writeInt(terminatedChildren.size());
+	for (Map.Entry<Integer, Integer> child : terminatedChildren.entrySet()) {
+	    out.writeInt(child.getKey());
+	    out.writeInt(child.getValue());
+	}
+	instanceMutex.release();
+    }
+
+    /**
+     * Restore the state written by <tt>writeSnapshot()</tt> into this new
+     * process, and fork a thread to carry on running it.
+     *
+     * @param	in	the stream to read the snapshot from.
+     * @return	<tt>true</tt> if the process was successfully restored.
+     * @see	Snapshot
+     */
+    boolean restoreSnapshot(DataInputStream in) throws IOException {
+	if (!readSnapshot(in))
+	    return false;
+
+	new UThread(this).setName(programName).fork();
+	return true;
+    }
+
+    /**
+     * Restore the state written by <tt>writeSnapshot()</tt> into this new
+     * process, without running it. Its registers are loaded by the next
+     * <tt>initRegisters()</tt>.
+     *
+     * @param	in	the stream to read the snapshot from.
+     * @return	<tt>true</tt> if the process was successfully restored.
+     */
+    boolean readSnapshot(DataInputStream in) throws IOException {
+	String name = in.readUTF();
+	mutex.acquire();
+	pid = in.readInt();
+	currentPID = Math.max(currentPID, in.readInt());
+	mutex.release();
+
+	int[] registers = new int[Processor.numUserRegisters];
+	for (int i=0; i<registers.length; i++)
+	    registers[i] = in.readInt();
+
+	if (!load(name, new String[] { })) {
+	    error("unable to load " + name + " to restore it");
+	    return false;
+	}
+
+	byte[] page = new byte[pageSize];
+	for (int vpn; (vpn = in.readInt()) != -1; ) {
+	    in.readFully(page);
+	    if (vpn < 0 || vpn >= numPages ||
+		writeVirtualMemory(vpn*pageSize, page) != pageSize) {
+		error("unable to restore page " + vpn);
+		return false;
+	    }
+	}
+
+	// load() opened the console, which may have been closed since
+	for (int fd=0; fd<maxNumFiles; fd++) {
+	    if (null != fileDescriptors[fd])
+		handleClose(fd);
+	}
+	for (int fd; (fd = in.readInt()) != -1; ) {
+	    String fileName = in.readUTF();
+	    int position = in.readInt();
+	    OpenFile file;
+	    if (0 == fileName.length()) {
+		file = (0 == fd) ? UserKernel.console.openForReading()
+		    : UserKernel.console.openForWriting();
+	    }
+	    else {
+		file = Machine.stubFileSystem().open(fileName, false);
+		if (null == file) {
+		    error("unable to reopen " + fileName);
+		    return false;
+		}
+		file.seek(position);
+	    }
+	    fileDescriptors[fd] = file;
+	    filePositions[fd] = 0;
+	    numOpenFiles++;
+	}
+
+	for (int i=in.readInt(); i>0; i--)
+	    terminatedChildren.put(in.readInt(), in.readInt());
+
+	restoredRegisters = registers;
+	return true;
+    }
+
+    private boolean isReadOnlySection(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn >= section.getFirstVPN() &&
+		vpn < section.getFirstVPN() + section.getLength())
+		return section.isReadOnly();
+	}
+	return false;
+    }
+
+    private static boolean isZero(byte[] data) {
+	for (int i=0; i<data.length; i++) {
+	    if (0 != data[i])
+		return false;
+	}
+	return true;
+    }
     
     /**
      * Returns true iff the virtual address provided could be reasonable.
@@ -1100,6 +1301,10 @@ public class UserProcess {
     protected final int stackPages = 8;
     
     private int initialPC, initialSP;
+    /** The name of the executable this process was loaded from. */
+    private String programName;
+    /** The registers to start with instead, if restored from a snapshot. */
+    private int[] restoredRegisters = null;
     private int argc, argv;
     private OpenFile[] fileDescriptors;
     private int[] filePositions;
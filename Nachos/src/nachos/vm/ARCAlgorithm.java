@@ -0,0 +1,185 @@
+package nachos.vm;
+
+import nachos.machine.Machine;
+
+/**
+ * Adaptive Replacement Cache, selected with
+ * <tt>Algorithm = nachos.vm.ARCAlgorithm</tt>. Resident pages live in T1
+ * (seen once recently) or T2 (seen at least twice), and the pages recently
+ * evicted from each are remembered in the ghost lists B1 and B2. A fault on
+ * a B1 ghost means T1 was too small, a fault on a B2 ghost means T2 was, and
+ * the target size p of T1 moves accordingly. Since only T1 absorbs new
+ * pages, a sequential scan cannot flush T2.
+ * <p>
+ * As with {@link LRUKAlgorithm}, references arriving before the next page
+ * fault are correlated with the one that loaded the page, and do not count
+ * as a second hit.
+ */
+public class ARCAlgorithm extends AbstractAlgorithm
+{
+    @Override
+    public int findVictim() {
+        InvertedPageTable.syncAllProcTlb();
+        final int numPhysPages = Machine.processor().getNumPhysPages();
+        init(numPhysPages);
+        if (t1.isEmpty() && t2.isEmpty()) {
+            victim = 0;
+        } else if (! t1.isEmpty() && (t1.size() > p
+                    || (faultHit == HIT_B2 && t1.size() == p)
+                    || t2.isEmpty())) {
+            victim = (int) t1.peekLast();
+        } else {
+            victim = (int) t2.peekLast();
+        }
+        return victim;
+    }
+
+    @Override
+    public void faulted(int pid, int vpn) {
+        init(Machine.processor().getNumPhysPages());
+        now++;
+        faultKey = VirtualPageHash.makeKey(pid, vpn);
+        if (b1.remove(faultKey)) {
+            faultHit = HIT_B1;
+            p = Math.min(capacity, p + Math.max(b2.size() / Math.max(1, b1.size()), 1));
+        } else if (b2.remove(faultKey)) {
+            faultHit = HIT_B2;
+            p = Math.max(0, p - Math.max(b1.size() / Math.max(1, b2.size()), 1));
+        } else {
+            faultHit = HIT_NONE;
+        }
+    }
+
+    @Override
+    public void pageIn(int ppn, int pid, int vpn) {
+        init(Machine.processor().getNumPhysPages());
+        final long key = VirtualPageHash.makeKey(pid, vpn);
+        load(ppn, key);
+        if (HIT_NONE != faultHit && key == faultKey) {
+            t2.addFirst(ppn);
+        } else {
+            t1.addFirst(ppn);
+        }
+        faultHit = HIT_NONE;
+    }
+
+    /**
+     * A page read ahead of its process has not been asked for, so it goes
+     * in T1 like a new page even if it has a ghost, and p stays put.
+     */
+    @Override
+    public void prefetched(int ppn, int pid, int vpn) {
+        init(Machine.processor().getNumPhysPages());
+        load(ppn, VirtualPageHash.makeKey(pid, vpn));
+        t1.addFirst(ppn);
+    }
+
+    @Override
+    public void referenced(int ppn) {
+        if (null == t1 || loadedAt[ppn] == now) {
+            return;
+        }
+        if (t1.remove(ppn)) {
+            t2.addFirst(ppn);
+        } else {
+            t2.moveToFirst(ppn);
+        }
+    }
+
+    @Override
+    public void evicted(int ppn) {
+        if (null == t1) {
+            return;
+        }
+        // a frame shared copy-on-write keeps the key of the page first
+        // loaded into it, which may have left a ghost already
+        final boolean chosen = (ppn == victim);
+        final long key = frameKeys[ppn];
+        final boolean ghost = chosen && ! b1.contains(key) && ! b2.contains(key);
+        if (t1.remove(ppn)) {
+            if (ghost) {
+                b1.addFirst(key);
+            }
+        } else if (t2.remove(ppn)) {
+            if (ghost) {
+                b2.addFirst(key);
+            }
+        }
+        if (chosen) {
+            victim = -1;
+        }
+        trimGhosts();
+    }
+
+    /**
+     * Records that the page is resident in ppn. A resident page has no
+     * ghost, so that its next eviction can leave a fresh one.
+     */
+    private void load(int ppn, long key) {
+        forget(ppn);
+        b1.remove(key);
+        b2.remove(key);
+        frameKeys[ppn] = key;
+        loadedAt[ppn] = now;
+    }
+
+    private void forget(int ppn) {
+        if (! t1.remove(ppn)) {
+            t2.remove(ppn);
+        }
+    }
+
+    /**
+     * Keeps the directory within ARC's bounds: T1 and B1 together hold at
+     * most c pages, and all four lists together at most 2c.
+     */
+    private void trimGhosts() {
+        while (t1.size() + b1.size() > capacity && ! b1.isEmpty()) {
+            b1.removeLast();
+        }
+        while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * capacity
+                && ! b2.isEmpty()) {
+            b2.removeLast();
+        }
+    }
+
+    private void init(int numPhysPages) {
+        if (null != t1 && capacity == numPhysPages) {
+            return;
+        }
+        capacity = numPhysPages;
+        t1 = new PageQueue(numPhysPages);
+        t2 = new PageQueue(numPhysPages);
+        b1 = new PageQueue(numPhysPages);
+        b2 = new PageQueue(numPhysPages);
+        frameKeys = new long[numPhysPages];
+        loadedAt = new long[numPhysPages];
+        p = 0;
+    }
+
+    private static final int HIT_NONE = 0;
+    private static final int HIT_B1 = 1;
+    private static final int HIT_B2 = 2;
+    /** c, the number of physical pages. */
+    private int capacity;
+    /** The target size of T1. */
+    private int p;
+    /** Resident frames seen once, by ppn, most recent first. */
+    private PageQueue t1;
+    /** Resident frames seen at least twice, by ppn, most recent first. */
+    private PageQueue t2;
+    /** Ghosts of pages evicted from T1, by (pid,vpn). */
+    private PageQueue b1;
+    /** Ghosts of pages evicted from T2, by (pid,vpn). */
+    private PageQueue b2;
+    /** The (pid,vpn) key of the page in each frame. */
+    private long[] frameKeys;
+    /** The page fault count when each frame was loaded. */
+    private long[] loadedAt;
+    private long now = 0;
+    /** The page being faulted in, and which ghost list it was found on. */
+    private long faultKey;
+    private int faultHit = HIT_NONE;
+    /** The frame we last chose, so its eviction leaves a ghost behind. */
+    private int victim = -1;
+}
@@ -0,0 +1,36 @@
+package nachos.vm;
+
+/**
+ * An {@link Algorithm} which ignores every event, so that a policy only has
+ * to override the ones it needs on top of {@link #findVictim()}.
+ */
+public abstract class AbstractAlgorithm implements Algorithm
+{
+    @Override
+    public void faulted(int pid, int vpn) {
+    }
+
+    @Override
+    public void pageIn(int ppn, int pid, int vpn) {
+    }
+
+    /**
+     * Treats a prefetched page as if it had been faulted in.
+     */
+    @Override
+    public void prefetched(int ppn, int pid, int vpn) {
+        pageIn(ppn, pid, vpn);
+    }
+
+    @Override
+    public void referenced(int ppn) {
+    }
+
+    @Override
+    public void dirtied(int ppn) {
+    }
+
+    @Override
+    public void evicted(int ppn) {
+    }
+}
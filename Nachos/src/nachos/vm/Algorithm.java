@@ -1,7 +1,59 @@
 package nachos.vm;
 
+/**
+ * A page replacement policy. {@link InvertedPageTable} keeps the policy
+ * informed of everything that happens to the physical frames, so that it
+ * can build whatever history it needs, and asks it for a victim whenever a
+ * page fault finds memory full. The events arrive in this order for every
+ * fault: {@link #faulted(int, int)}, then {@link #findVictim()} and
+ * {@link #evicted(int)} if memory was full, then {@link #pageIn(int, int, int)}.
+ * Pages which are brought in without a fault of their own, by readahead or
+ * along with a faulted page in the same swap cluster, arrive through
+ * {@link #prefetched(int, int, int)} instead, with no {@link #faulted(int, int)}
+ * before them.
+ * <p>
+ * Events may be delivered on the context switch path with interrupts
+ * disabled, so an implementation must never block.
+ * Extend {@link AbstractAlgorithm} if you only care about some of them.
+ */
 public interface Algorithm {
-	
+
+	/**
+	 * Chooses the physical page to be evicted next.
+	 * @return the victim ppn, from 0 to numPhysPages-1.
+	 */
 	int findVictim();
 
+	/**
+	 * A page fault for (pid,vpn) is about to need a frame.
+	 */
+	void faulted(int pid, int vpn);
+
+	/**
+	 * The page (pid,vpn) has just been loaded into the physical page ppn.
+	 */
+	void pageIn(int ppn, int pid, int vpn);
+
+	/**
+	 * The page (pid,vpn) has just been loaded into the physical page ppn
+	 * ahead of its process, which has not touched it yet.
+	 */
+	void prefetched(int ppn, int pid, int vpn);
+
+	/**
+	 * The page living at ppn has been touched since we last looked.
+	 */
+	void referenced(int ppn);
+
+	/**
+	 * The page living at ppn has been written to.
+	 */
+	void dirtied(int ppn);
+
+	/**
+	 * The physical page ppn no longer holds anything, either because it was
+	 * chosen as a victim or because its process exited.
+	 */
+	void evicted(int ppn);
+
 }
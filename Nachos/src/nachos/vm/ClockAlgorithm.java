@@ -1,82 +1,49 @@
 package nachos.vm;
 
-import java.util.HashMap;
-import java.util.Map;
-
-import nachos.machine.Lib;
 import nachos.machine.Machine;
 
-public class ClockAlgorithm implements Algorithm{
-
-	private final Map<Integer,Integer> victims = new HashMap<Integer, Integer>();
+/**
+ * The classic second-chance clock. The hand remembers where it stopped, so
+ * each call picks up where the last one left off instead of starting over at
+ * PPN 0, and the reference bits live in a per-frame array inside
+ * {@link InvertedPageTable}. Every frame the hand passes over has its bit
+ * cleared, so a frame is examined at most twice per eviction and, on
+ * average, only a handful of times.
+ */
+public class ClockAlgorithm extends AbstractAlgorithm {
 
 	@Override
 	public int findVictim() {
-		// get the TLB all synced up
+		// get the TLB all synced up, so the reference bits are current
 		InvertedPageTable.syncAllProcTlb();
-		int longestUnused = 0;
-		int nextVictim = -1;
-		int anyUnused = -1;
-        final int numPhysPages = Machine.processor().getNumPhysPages();
-        // look through all physical pages (clock starting at 0)
-        for (int i=0; i < numPhysPages; i++){
-			boolean used = false;
-			for (CoreMap.CoreMapEntry coreEntry : CoreMap.findEntriesForPpn(i)){
-                SwapAwareTranslationEntry entry
-                        = InvertedPageTable.findEntryForVpn(
-                            coreEntry.getPid(), coreEntry.getVpn());
-				// If it is used, but not dirty, mark it not used, so that next time we know whether it is used.
-				if (entry.isUsed() && !entry.isDirty()){
-					used = true;
-					entry.clearUsedMark();
-				}
-			}
-			// If not used, make a possible victim
-			if (used == false){
-				if (victims.containsKey(i)){
-					int value = victims.get(i);
-					value++;
-					victims.put(i, value);
-				}else{
-					victims.put(i, 1);
-				}
-				// In case we don't know the longest unused, we'll pick the last one examined.
-				anyUnused = i;
-			// If used, make it less likely of a victim
-			}else {
-				if (victims.containsKey(i)){
-					int value = victims.get(i);
-					if (value == 1){
-						victims.remove(i);
-					}else{
-						value--;
-						victims.put(i, value);
-					}
-				}
+		final int numPhysPages = Machine.processor().getNumPhysPages();
+		// the first lap clears every bit it sees, so the second lap must stop
+		for (int i = 0; i < 2 * numPhysPages; i++) {
+			final int ppn = advance(numPhysPages);
+			// an unmapped frame is the cheapest victim of all
+			if (null == InvertedPageTable.findEntryForPpn(ppn)) {
+				return ppn;
 			}
-			// Since we are iterating anyway, get the longest unused victim
-			if (victims.containsKey(i) && longestUnused < victims.get(i)){
-				longestUnused = victims.get(i);
-				nextVictim = i;
-				
-			}
-
-		}
-		// no unused pages??
-		if (nextVictim == -1){
-			//TODO find minimally used?
-			if (anyUnused > -1){
-				nextVictim = anyUnused;
-			}else{
-				// NO Unused pages??  OK.  I pick this one.
-				nextVictim = Lib.random(numPhysPages);
+			if (! InvertedPageTable.testAndClearReferenced(ppn)) {
+				return ppn;
 			}
 		}
-
-        victims.remove(Integer.valueOf(nextVictim));
- 		return nextVictim;
+		// someone kept touching pages behind our back; take the next one
+		return advance(numPhysPages);
 	}
 
+	/**
+	 * @return the frame under the hand, moving the hand past it.
+	 */
+	private int advance(int numPhysPages) {
+		if (hand >= numPhysPages) {
+			hand = 0;
+		}
+		final int result = hand;
+		hand++;
+		return result;
+	}
 
-
+	/** The next frame the hand will examine. */
+	private int hand = 0;
 }
@@ -0,0 +1,189 @@
+package nachos.vm;
+
+import nachos.machine.Machine;
+
+/**
+ * A CLOCK-Pro style replacement policy, selected with
+ * <tt>Algorithm = nachos.vm.ClockProAlgorithm</tt>. It tells hot pages
+ * (re-referenced while still being watched) from cold ones (seen once), and
+ * only ever evicts cold pages, so a one-pass scan through a large array
+ * cannot push out a process's working set the way it does with plain
+ * {@link ClockAlgorithm}.
+ * <ul>
+ * <li>A newly loaded page is cold and starts a <em>test period</em>.</li>
+ * <li>The cold hand promotes a cold page which is referenced again during
+ * its test period to hot, gives a referenced cold page outside its test
+ * period a new one, and evicts the first unreferenced cold page.</li>
+ * <li>The hot hand runs whenever there are too many hot pages. It demotes
+ * the first unreferenced hot page to cold and ends the test period of any
+ * cold page it passes.</li>
+ * <li>Evicted pages still in their test period are remembered for a while.
+ * If one is faulted back in, it comes back hot, and we grow the share of
+ * memory given to cold pages. A test period which expires unused shrinks
+ * that share again.</li>
+ * </ul>
+ * All of the per-frame state lives in primitive arrays indexed by PPN and
+ * both hands keep their position between calls.
+ */
+public class ClockProAlgorithm extends AbstractAlgorithm
+{
+    @Override
+    public int findVictim() {
+        // get the TLB all synced up, so the reference bits are current
+        InvertedPageTable.syncAllProcTlb();
+        final int numPhysPages = Machine.processor().getNumPhysPages();
+        init(numPhysPages);
+        for (int i = 0; i < 4 * numPhysPages; i++) {
+            if (hotCount > numPhysPages - coldTarget
+                    || (i > 0 && 0 == i % numPhysPages)) {
+                // too many hot pages, or a whole lap without a cold victim
+                runHotHand(numPhysPages);
+            }
+            final int ppn = coldHand;
+            coldHand = (coldHand + 1) % numPhysPages;
+            final SwapAwareTranslationEntry entry
+                    = InvertedPageTable.findEntryForPpn(ppn);
+            if (null == entry) {
+                forget(ppn);
+                return ppn;
+            }
+            notice(ppn, entry);
+            if (hot[ppn]) {
+                continue;
+            }
+            if (InvertedPageTable.testAndClearReferenced(ppn)) {
+                if (inTest[ppn]) {
+                    hot[ppn] = true;
+                    inTest[ppn] = false;
+                    hotCount++;
+                } else {
+                    inTest[ppn] = true;
+                }
+                continue;
+            }
+            if (inTest[ppn]) {
+                rememberGhost(InvertedPageTable.findPidForPpn(ppn), entry);
+            }
+            forget(ppn);
+            return ppn;
+        }
+        // nothing but hot, busy pages; just take the one under the hand
+        final int ppn = coldHand;
+        coldHand = (coldHand + 1) % numPhysPages;
+        forget(ppn);
+        return ppn;
+    }
+
+    /**
+     * Moves the hot hand until it has demoted one hot page to cold, ending
+     * the test period of every cold page it passes along the way.
+     */
+    private void runHotHand(int numPhysPages) {
+        for (int i = 0; i < 2 * numPhysPages; i++) {
+            final int ppn = hotHand;
+            hotHand = (hotHand + 1) % numPhysPages;
+            final SwapAwareTranslationEntry entry
+                    = InvertedPageTable.findEntryForPpn(ppn);
+            if (null == entry) {
+                continue;
+            }
+            notice(ppn, entry);
+            if (hot[ppn]) {
+                if (! InvertedPageTable.testAndClearReferenced(ppn)) {
+                    hot[ppn] = false;
+                    hotCount--;
+                    return;
+                }
+            } else if (inTest[ppn]) {
+                inTest[ppn] = false;
+                if (coldTarget > 1) {
+                    coldTarget--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether the frame has been handed to a new page since we last
+     * looked at it, and if so starts that page off as cold (or as hot, if it
+     * is a ghost returning within its test period).
+     */
+    private void notice(int ppn, SwapAwareTranslationEntry entry) {
+        if (resident[ppn] == entry) {
+            return;
+        }
+        forget(ppn);
+        resident[ppn] = entry;
+        final int pid = InvertedPageTable.findPidForPpn(ppn);
+        final SwapAwareTranslationEntry ghost = ghosts.remove(pid, entry.getVpn());
+        if (null != ghost) {
+            ghostOrder.remove(VirtualPageHash.makeKey(pid, entry.getVpn()));
+        }
+        if (entry == ghost) {
+            hot[ppn] = true;
+            hotCount++;
+            if (coldTarget < resident.length - 1) {
+                coldTarget++;
+            }
+        } else {
+            inTest[ppn] = true;
+        }
+    }
+
+    private void forget(int ppn) {
+        if (hot[ppn]) {
+            hotCount--;
+        }
+        hot[ppn] = false;
+        inTest[ppn] = false;
+        resident[ppn] = null;
+    }
+
+    /**
+     * Remembers an evicted page which was still in its test period. We keep
+     * as many of these as there are frames, forgetting the oldest first. A
+     * page which is already a ghost becomes the newest one again.
+     */
+    private void rememberGhost(int pid, SwapAwareTranslationEntry entry) {
+        final long key = VirtualPageHash.makeKey(pid, entry.getVpn());
+        if (! ghostOrder.remove(key) && ghostOrder.size() >= resident.length) {
+            final long oldest = ghostOrder.removeLast();
+            ghosts.remove((int) (oldest >>> 32), (int) oldest);
+        }
+        ghostOrder.addFirst(key);
+        ghosts.put(pid, entry.getVpn(), entry);
+    }
+
+    /**
+     * Sizes the tables from the running Machine, which does not exist yet
+     * when this class is constructed from nachos.conf.
+     */
+    private void init(int numPhysPages) {
+        if (null != resident && resident.length == numPhysPages) {
+            return;
+        }
+        resident = new SwapAwareTranslationEntry[numPhysPages];
+        hot = new boolean[numPhysPages];
+        inTest = new boolean[numPhysPages];
+        ghostOrder = new PageQueue(numPhysPages);
+        ghosts = new VirtualPageHash(numPhysPages);
+        hotCount = 0;
+        coldHand = 0;
+        hotHand = 0;
+        coldTarget = Math.max(1, numPhysPages / 4);
+    }
+
+    /** The page each frame held when one of the hands last passed it. */
+    private SwapAwareTranslationEntry[] resident;
+    private boolean[] hot;
+    private boolean[] inTest;
+    /** Evicted pages still in their test period, keyed by (pid,vpn). */
+    private VirtualPageHash ghosts;
+    /** The (pid,vpn) keys of {@link #ghosts}, newest first. */
+    private PageQueue ghostOrder;
+    private int hotCount;
+    /** How many frames we try to keep cold; adapts as ghosts are seen. */
+    private int coldTarget;
+    private int coldHand;
+    private int hotHand;
+}
@@ -1,11 +1,14 @@
 package nachos.vm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.threads.Lock;
 
@@ -13,68 +16,245 @@ public class CoreMap
 {
     public static void addToCoreMap(int ppn, int pid, int vpn) {
         _lock.acquire();
-        List<CoreMapEntry> pages;
-        if (! TABLE.containsKey(ppn)) {
-            pages = new ArrayList<CoreMapEntry>();
-            TABLE.put(ppn, pages);
-        } else {
-            pages = TABLE.get(ppn);
+        init();
+        Lib.assertTrue(-1 == pids[ppn] || (pid == pids[ppn] && vpn == vpns[ppn]),
+                "PPN "+ppn+" already belongs to ("+pids[ppn]+","+vpns[ppn]+")");
+        // the frame may come straight from a roll-out rather than malloc
+        frames.claim(ppn);
+        pids[ppn] = pid;
+        vpns[ppn] = vpn;
+        _lock.release();
+    }
+
+    /**
+     * Adds another (PID,VPN) tuple to a page which is already in the core
+     * map, as when processes running the same executable share a page.
+     */
+    public static void share(int ppn, int pid, int vpn) {
+        _lock.acquire();
+        init();
+        Lib.assertTrue(-1 != pids[ppn], "PPN "+ppn+" has nobody to share with");
+        List<CoreMapEntry> list = sharers.get(ppn);
+        if (null == list) {
+            list = new ArrayList<CoreMapEntry>();
+            sharers.put(ppn, list);
+        }
+        list.add(new CoreMapEntry(pid, vpn));
+        _lock.release();
+    }
+
+    /**
+     * Removes one (PID,VPN) tuple from a page. Should it have been the
+     * first one, one of the others takes its place. The page is freed along
+     * with its last tuple.
+     * @return how many tuples are left on the page.
+     */
+    public static int unshare(int ppn, int pid, int vpn) {
+        _lock.acquire();
+        init();
+        final List<CoreMapEntry> list = sharers.get(ppn);
+        int result = 0;
+        if (pid == pids[ppn] && vpn == vpns[ppn]) {
+            if (null == list) {
+                pids[ppn] = -1;
+                vpns[ppn] = -1;
+                frames.release(ppn);
+            } else {
+                final CoreMapEntry next = list.remove(list.size() - 1);
+                pids[ppn] = next.getPid();
+                vpns[ppn] = next.getVpn();
+            }
+        } else if (null != list) {
+            for (Iterator<CoreMapEntry> it = list.iterator(); it.hasNext(); ) {
+                final CoreMapEntry entry = it.next();
+                if (pid == entry.getPid() && vpn == entry.getVpn()) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+        if (null != list) {
+            result = 1 + list.size();
+            if (list.isEmpty()) {
+                sharers.remove(ppn);
+            }
+        } else if (-1 != pids[ppn]) {
+            result = 1;
+        }
+        _lock.release();
+        return result;
+    }
+
+    /**
+     * @return how many (PID,VPN) tuples use the page.
+     */
+    public static int getRefCount(int ppn) {
+        _lock.acquire();
+        init();
+        int result = 0;
+        if (-1 != pids[ppn]) {
+            final List<CoreMapEntry> list = sharers.get(ppn);
+            result = 1 + (null == list ? 0 : list.size());
         }
-        pages.add(new CoreMapEntry(pid, vpn));
         _lock.release();
+        return result;
     }
 
     public static boolean containsPpn(int ppn) {
         boolean result;
         _lock.acquire();
-        result = TABLE.containsKey(ppn);
+        init();
+        result = frames.isAllocated(ppn);
         _lock.release();
         return result;
     }
 
     public static Iterable<CoreMapEntry> findEntriesForPpn(int ppn) {
         _lock.acquire();
-        if (! TABLE.containsKey(ppn)) {
+        init();
+        if (-1 == pids[ppn]) {
             _lock.release();
             return EMPTY_ITER;
         }
-        Iterable<CoreMapEntry> results = TABLE.get(ppn);
+        final CoreMapEntry first = new CoreMapEntry(pids[ppn], vpns[ppn]);
+        final List<CoreMapEntry> list = sharers.get(ppn);
+        Iterable<CoreMapEntry> results;
+        if (null == list) {
+            results = Collections.singletonList(first);
+        } else {
+            final List<CoreMapEntry> all
+                    = new ArrayList<CoreMapEntry>(1 + list.size());
+            all.add(first);
+            all.addAll(list);
+            results = all;
+        }
         _lock.release();
         return results;
     }
 
     /**
-     * <B>ENSURE</b> you update the core map with your (PID,VPN) tuple or
-     * it'll double-allocate PPN.
+     * Reserves a free physical page. The page is off the free list from
+     * this point on, but you should still
+     * update the core map with your (PID,VPN) tuple.
      * @return the free ppn or -1 if no free memory.
      */
     public static int malloc() {
         _lock.acquire();
-        int result = -1;
-        final int numPhysPages = Machine.processor().getNumPhysPages();
-        for (int i = 0; i < numPhysPages; i++) {
-        	if (! TABLE.containsKey(i)) {
-        		result = i;
-                break;
-        	}
-        }
+        init();
+        int result = frames.allocate();
         _lock.release();
         return result;
     }
 
+    /**
+     * Reserves up to <tt>count</tt> free physical pages under a single
+     * acquisition of the lock. The same rules as {@link #malloc()} apply to
+     * each of them.
+     * @param count how many pages you would like.
+     * @return the reserved ppns, which may be fewer than you asked for
+     * (or even none) when memory is nearly full.
+     */
+    public static int[] malloc(int count) {
+        _lock.acquire();
+        init();
+        int[] results = new int[Math.min(count, frames.getFreeCount())];
+        frames.allocate(results);
+        _lock.release();
+        return results;
+    }
+
     public static void free(int ppn) {
+        if (ppn < 0) {
+            return;
+        }
+        _lock.acquire();
+        init();
+        pids[ppn] = -1;
+        vpns[ppn] = -1;
+        sharers.remove(ppn);
+        setReclaimable(ppn, false);
+        frames.release(ppn);
+        _lock.release();
+    }
+
+    /**
+     * @return how many physical pages are currently on the free list.
+     */
+    public static int getFreeCount() {
         _lock.acquire();
-        TABLE.remove(ppn);
+        init();
+        int result = frames.getFreeCount();
         _lock.release();
+        return result;
+    }
+
+    /**
+     * Records whether a page in use could be handed to a fault without any
+     * disk I/O: one which is clean, unpinned and not in use lately, and so
+     * is what the replacement policy will pick. The InvertedPageTable tells
+     * us whenever that changes, so that {@link #getReclaimableCount()} need
+     * not look at every page. It does so holding its own lock, as it does
+     * for {@link #malloc()} and {@link #free(int)}, so we take none here:
+     * this is called several times per fault, and taking a lock costs
+     * simulated time.
+     */
+    public static void setReclaimable(int ppn, boolean reclaimable) {
+        Lib.assertTrue(null != reclaimables, "No page was ever handed out");
+        if (reclaimables[ppn] != reclaimable) {
+            reclaimables[ppn] = reclaimable;
+            reclaimableCount += reclaimable ? 1 : -1;
+        }
     }
 
     /**
-     * Indexes the PPN and the list of (pid,vpn) pairs stored there.
-     * Since we did not implement shared loading, the size of the list will
-     * always be 1.
+     * @return how many physical pages a fault could have without any disk
+     * I/O: the free ones, and those in use which are reclaimable.
+     */
+    public static int getReclaimableCount() {
+        _lock.acquire();
+        init();
+        int result = frames.getFreeCount() + reclaimableCount;
+        _lock.release();
+        return result;
+    }
+
+    /**
+     * Sizes the tables from the running Machine, which does not exist yet
+     * when this class is loaded.
+     */
+    private static void init() {
+        Lib.assertTrue(_lock.isHeldByCurrentThread());
+        if (null != frames) {
+            return;
+        }
+        final int numPhysPages = Machine.processor().getNumPhysPages();
+        frames = new FrameAllocator(numPhysPages);
+        pids = new int[numPhysPages];
+        vpns = new int[numPhysPages];
+        reclaimables = new boolean[numPhysPages];
+        reclaimableCount = 0;
+        Arrays.fill(pids, -1);
+        Arrays.fill(vpns, -1);
+    }
+
+    /**
+     * Tracks which PPN are free, and hands them out in O(1).
+     */
+    private static FrameAllocator frames;
+    /**
+     * Indexes the PPN and the (pid,vpn) pair stored there, or -1 if the page
+     * is unmapped. A page shared by several processes keeps the rest of its
+     * pairs in {@link #sharers}, so the reference count of a page is one
+     * plus the length of that list.
      */
-    private static Map<Integer, List<CoreMapEntry>>
-        TABLE = new HashMap<Integer, List<CoreMapEntry>>();
+    private static int[] pids;
+    private static int[] vpns;
+    /** Which pages in use are reclaimable, and how many. */
+    private static boolean[] reclaimables;
+    private static int reclaimableCount;
+    /** The pairs after the first one, only for pages which have them. */
+    private static final Map<Integer, List<CoreMapEntry>>
+        sharers = new HashMap<Integer, List<CoreMapEntry>>();
     private static Iterable<CoreMapEntry> EMPTY_ITER = new EmptyIterator();
     private static Lock _lock = new Lock();
     public static class CoreMapEntry
@@ -0,0 +1,196 @@
+package nachos.vm;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import nachos.machine.Lib;
+
+/**
+ * Tests that {@link FrameAllocator} hands out every frame exactly once and
+ * keeps its bitmap and free list in step, and that {@link CoreMap} reserves
+ * batches of pages and frees a shared page only with its last user. The
+ * core map part uses the real memory, and gives back all it takes.
+ */
+public class CoreMapTest {
+    public static void selfTest() {
+        testAllocateAll();
+        testClaimAndRelease();
+        testAgainstModel();
+        testMallocBatch();
+        testSharing();
+    }
+
+    /**
+     * A fresh allocator hands out its frames in ascending order, across the
+     * words of its bitmap, then nothing once they are all gone.
+     */
+    public static void testAllocateAll() {
+        final String METHOD_NAME = "CoreMapTest::testAllocateAll";
+
+        FrameAllocator frames = new FrameAllocator(FRAMES);
+        Lib.assertTrue(FRAMES == frames.getFreeCount());
+        for (int ppn = 0; ppn < FRAMES; ppn++) {
+            Lib.assertTrue(! frames.isAllocated(ppn));
+            Lib.assertTrue(ppn == frames.allocate(), "frame " + ppn);
+            Lib.assertTrue(frames.isAllocated(ppn));
+        }
+        Lib.assertTrue(0 == frames.getFreeCount());
+        Lib.assertTrue(-1 == frames.allocate());
+        Lib.assertTrue(0 == frames.allocate(new int[4]));
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Released frames come back first, most recent first; a frame can be
+     * claimed from the middle of the free list; and releasing or claiming
+     * a frame twice changes nothing.
+     */
+    public static void testClaimAndRelease() {
+        final String METHOD_NAME = "CoreMapTest::testClaimAndRelease";
+
+        FrameAllocator frames = new FrameAllocator(FRAMES);
+        int[] batch = new int[FRAMES];
+        Lib.assertTrue(FRAMES == frames.allocate(batch));
+
+        frames.release(3);
+        frames.release(64);
+        frames.release(100);
+        frames.release(100);
+        Lib.assertTrue(3 == frames.getFreeCount());
+
+        frames.claim(64);
+        frames.claim(64);
+        Lib.assertTrue(frames.isAllocated(64));
+        Lib.assertTrue(2 == frames.getFreeCount());
+
+        int[] two = new int[5];
+        Lib.assertTrue(2 == frames.allocate(two));
+        Lib.assertTrue(100 == two[0] && 3 == two[1]);
+        Lib.assertTrue(-1 == frames.allocate());
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Random allocations, claims and releases agree with a plain array of
+     * which frames are in use, and no frame is ever handed out twice.
+     */
+    public static void testAgainstModel() {
+        final String METHOD_NAME = "CoreMapTest::testAgainstModel";
+
+        FrameAllocator frames = new FrameAllocator(FRAMES);
+        boolean[] inUse = new boolean[FRAMES];
+        int used = 0;
+        Random random = new Random(2002);
+        int[] batch = new int[7];
+        for (int i = 0; i < 5000; i++) {
+            final int ppn = random.nextInt(FRAMES);
+            switch (random.nextInt(4)) {
+            case 0:
+                final int got = frames.allocate();
+                Lib.assertTrue((-1 == got) == (FRAMES == used));
+                if (-1 != got) {
+                    Lib.assertTrue(! inUse[got], "frame " + got + " twice");
+                    inUse[got] = true;
+                    used++;
+                }
+                break;
+            case 1:
+                final int count = frames.allocate(batch);
+                Lib.assertTrue(Math.min(batch.length, FRAMES - used) == count);
+                for (int j = 0; j < count; j++) {
+                    Lib.assertTrue(! inUse[batch[j]], "frame " + batch[j] + " twice");
+                    inUse[batch[j]] = true;
+                    used++;
+                }
+                break;
+            case 2:
+                frames.claim(ppn);
+                if (! inUse[ppn]) {
+                    inUse[ppn] = true;
+                    used++;
+                }
+                break;
+            default:
+                frames.release(ppn);
+                if (inUse[ppn]) {
+                    inUse[ppn] = false;
+                    used--;
+                }
+                break;
+            }
+            Lib.assertTrue(FRAMES - used == frames.getFreeCount());
+        }
+        for (int ppn = 0; ppn < FRAMES; ppn++) {
+            Lib.assertTrue(inUse[ppn] == frames.isAllocated(ppn), "frame " + ppn);
+        }
+
+        // the free list holds exactly the frames the bitmap says are free
+        Set<Integer> rest = new HashSet<Integer>();
+        for (int ppn; -1 != (ppn = frames.allocate()); ) {
+            Lib.assertTrue(! inUse[ppn] && rest.add(ppn), "frame " + ppn);
+        }
+        Lib.assertTrue(FRAMES - used == rest.size());
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * A batch is never more than the free pages, holds no page twice, and
+     * the pages go back to the free count when freed.
+     */
+    public static void testMallocBatch() {
+        final String METHOD_NAME = "CoreMapTest::testMallocBatch";
+
+        final int free = CoreMap.getFreeCount();
+        int[] ppns = CoreMap.malloc(free + 5);
+        Lib.assertTrue(free == ppns.length);
+        Lib.assertTrue(0 == CoreMap.getFreeCount());
+        Lib.assertTrue(-1 == CoreMap.malloc());
+        Set<Integer> distinct = new HashSet<Integer>();
+        for (int ppn : ppns) {
+            Lib.assertTrue(CoreMap.containsPpn(ppn));
+            Lib.assertTrue(distinct.add(ppn), "page " + ppn + " twice");
+        }
+        for (int ppn : ppns) {
+            CoreMap.free(ppn);
+        }
+        Lib.assertTrue(free == CoreMap.getFreeCount());
+        Lib.assertTrue(0 == CoreMap.malloc(0).length);
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * A page shared by two processes stays in use until both let it go,
+     * whichever of them goes first.
+     */
+    public static void testSharing() {
+        final String METHOD_NAME = "CoreMapTest::testSharing";
+
+        final int free = CoreMap.getFreeCount();
+        final int ppn = CoreMap.malloc();
+        Lib.assertTrue(-1 != ppn);
+        CoreMap.addToCoreMap(ppn, PID, 4);
+        CoreMap.share(ppn, PID + 1, 9);
+        Lib.assertTrue(2 == CoreMap.getRefCount(ppn));
+
+        // the first user leaves, and the other one takes its place
+        Lib.assertTrue(1 == CoreMap.unshare(ppn, PID, 4));
+        Lib.assertTrue(CoreMap.containsPpn(ppn));
+        int entries = 0;
+        for (CoreMap.CoreMapEntry entry : CoreMap.findEntriesForPpn(ppn)) {
+            Lib.assertTrue(PID + 1 == entry.getPid() && 9 == entry.getVpn());
+            entries++;
+        }
+        Lib.assertTrue(1 == entries);
+
+        Lib.assertTrue(0 == CoreMap.unshare(ppn, PID + 1, 9));
+        Lib.assertTrue(! CoreMap.containsPpn(ppn));
+        Lib.assertTrue(0 == CoreMap.getRefCount(ppn));
+        Lib.assertTrue(free == CoreMap.getFreeCount());
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /** More than two words of bitmap, the last one partly used. */
+    private static final int FRAMES = 130;
+    private static final int PID = 10000;
+}
@@ -0,0 +1,133 @@
+package nachos.vm;
+
+import nachos.machine.Lib;
+
+/**
+ * Tracks which physical frames are free. A bitmap answers "is this frame in
+ * use?" in constant time, and the free frames are additionally threaded onto
+ * an intrusive doubly-linked list (stored in two <tt>int</tt> arrays indexed
+ * by ppn), so that handing out a frame, returning one, or claiming a specific
+ * frame are all O(1) no matter how full memory is.
+ * <p>
+ * This class does no locking of its own; {@link CoreMap} guards it.
+ */
+class FrameAllocator
+{
+    /**
+     * Creates an allocator with every frame free. The free list starts out
+     * in ascending order, so an idle machine hands out low frames first.
+     * @param numFrames how many physical frames there are.
+     */
+    public FrameAllocator(int numFrames) {
+        this.numFrames = numFrames;
+        inUse = new long[(numFrames + 63) >>> 6];
+        nextFree = new int[numFrames];
+        prevFree = new int[numFrames];
+        head = NIL;
+        for (int ppn = numFrames - 1; ppn >= 0; ppn--) {
+            push(ppn);
+        }
+    }
+
+    /**
+     * Removes a frame from the free list.
+     * @return the allocated ppn, or -1 if every frame is in use.
+     */
+    public int allocate() {
+        final int ppn = head;
+        if (NIL != ppn) {
+            claim(ppn);
+        }
+        return ppn;
+    }
+
+    /**
+     * Removes up to <tt>into.length</tt> frames from the free list in one go.
+     * @param into receives the allocated ppns, starting at index 0.
+     * @return how many frames were actually allocated.
+     */
+    public int allocate(int[] into) {
+        int count = 0;
+        while (count < into.length && NIL != head) {
+            final int ppn = head;
+            claim(ppn);
+            into[count++] = ppn;
+        }
+        return count;
+    }
+
+    /**
+     * Marks a specific frame as in use, whether or not it was handed out by
+     * {@link #allocate()}.
+     * @param ppn the frame to claim.
+     */
+    public void claim(int ppn) {
+        if (isAllocated(ppn)) {
+            return;
+        }
+        unlink(ppn);
+        inUse[ppn >>> 6] |= 1L << ppn;
+        freeCount--;
+    }
+
+    /**
+     * Returns a frame to the front of the free list. Releasing a frame which
+     * is already free has no effect.
+     * @param ppn the frame to release.
+     */
+    public void release(int ppn) {
+        if (! isAllocated(ppn)) {
+            return;
+        }
+        inUse[ppn >>> 6] &= ~(1L << ppn);
+        push(ppn);
+    }
+
+    public boolean isAllocated(int ppn) {
+        Lib.assertTrue(0 <= ppn && ppn < numFrames, "Bogus ppn "+ppn);
+        return 0 != (inUse[ppn >>> 6] & (1L << ppn));
+    }
+
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    private void push(int ppn) {
+        prevFree[ppn] = NIL;
+        nextFree[ppn] = head;
+        if (NIL != head) {
+            prevFree[head] = ppn;
+        }
+        head = ppn;
+        freeCount++;
+    }
+
+    private void unlink(int ppn) {
+        final int prev = prevFree[ppn];
+        final int next = nextFree[ppn];
+        if (NIL == prev) {
+            head = next;
+        } else {
+            nextFree[prev] = next;
+        }
+        if (NIL != next) {
+            prevFree[next] = prev;
+        }
+        nextFree[ppn] = NIL;
+        prevFree[ppn] = NIL;
+    }
+
+    private static final int NIL = -1;
+    private final int numFrames;
+    /** One bit per frame, set when the frame is in use. */
+    private final long[] inUse;
+    /** Links of the free list, only meaningful for free frames. */
+    private final int[] nextFree;
+    private final int[] prevFree;
+    private int head;
+    private int freeCount;
+}
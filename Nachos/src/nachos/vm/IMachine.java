@@ -1,13 +1,37 @@
 package nachos.vm;
 
+import java.nio.ByteBuffer;
+
 import nachos.machine.TranslationEntry;
 
 interface IMachine
 {
     public byte[] getMemory();
+    /** Copies length bytes of physical memory at paddr into data. */
+    public void readMemory(int paddr, byte[] data, int offset, int length);
+    /** Copies length bytes of data into physical memory at paddr. */
+    public void writeMemory(int paddr, byte[] data, int offset, int length);
+    /** Zeroes length bytes of physical memory at paddr. */
+    public void zeroMemory(int paddr, int length);
+    /** @return a view of length bytes of physical memory at paddr, to do I/O straight into or out of. */
+    public ByteBuffer getMemoryBuffer(int paddr, int length);
     public int getNumPhysPages();
     public int getPageSize();
     public int getTlbSize();
     public TranslationEntry readTlbEntry(int i);
     public void writeTlbEntry(int i, TranslationEntry entry);
+    /** @return how many TLB entries each set has (the TLB size, if one). */
+    public int getTlbWays();
+    /** @return the first TLB entry of the set (asid,vpn) has to be written to. */
+    public int getTlbSet(int asid, int vpn);
+    /** Copies TLB entry i into entry, allocating nothing. */
+    public void readTlbEntry(int i, TranslationEntry entry);
+    /** Copies the whole TLB into entries, allocating nothing. */
+    public void readTlb(TranslationEntry[] entries);
+    /** @return the index of the valid TLB entry for (asid,vpn), or -1. */
+    public int findTlbEntry(int asid, int vpn);
+    public void invalidateTlbEntry(int i);
+    public void invalidateTlb();
+    /** Tags every translation from now on with asid; the TLB is left alone. */
+    public void setAsid(int asid);
 }
@@ -1,14 +1,14 @@
 package nachos.vm;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import nachos.machine.Coff;
 import nachos.machine.CoffSection;
 import nachos.machine.Config;
 import nachos.machine.Lib;
+import nachos.machine.Machine;
 import nachos.machine.TranslationEntry;
 import nachos.threads.Lock;
 
@@ -43,14 +43,14 @@ public class InvertedPageTable
         final SwapAwareTranslationEntry entry = findMainEntryForVpn(pid, page);
         Lib.assertTrue(null != entry,
                     "loadEntry OK but no getEntryFor ("+pid+","+page+")"
-                            +"\r\nIPT:="+TABLE.get(pid)
-                            +"\r\nSWAP:="+SWAP_TABLE.get(pid));
+                            +"\r\nIPT:="+findEntryForVpn(pid, page));
         if (null == entry) {
             _lock.release();
             return false;
         }
         // we have already synced up the processor TLB in VMProcess#handleException
-        overwriteRandomTLB(entry);
+        restoreProcTlb(pid, process.getSavedTlb());
+        overwriteRandomTLB(pid, entry);
         _lock.release();
         return result;
     }
@@ -72,35 +72,65 @@ public class InvertedPageTable
 
         if (entry.isValid()) {
         	debug("("+pid+","+page+") requested a load for what we think is a live frame ("+entry.getVpn()+","+entry.getPpn()+")");
+            final int ppn = entry.getPpn();
+            if (framePrefetched[ppn]) {
+                // the first touch of a page we read ahead
+                final Readahead stream = touchPrefetched(ppn);
+                markReferenced(ppn);
+                if (null != stream) {
+                    readAhead(process, pid, stream);
+                }
+            }
             return true;
         }
-        VMKernel.recordPageFault();
+        VMKernel.recordPageFault(pid);
+        algorithm.faulted(pid, page);
+        if (! pageIn(process, pid, entry)) {
+            return false;
+        }
+        if (Readahead.getMaxWindow() > 0) {
+            Readahead stream = READAHEAD.get(pid);
+            if (null == stream) {
+                stream = new Readahead(Readahead.getMaxWindow());
+                READAHEAD.put(pid, stream);
+            }
+            if (stream.faulted(page)) {
+                readAhead(process, pid, stream);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Brings a faulted page into memory, from wherever it lives.
+     */
+    private static boolean pageIn(
+            VMProcess process, int pid, SwapAwareTranslationEntry entry) {
+        final long startTime = VMStats.now();
         /// WARNING: the order matters here!
         if (entry.isInSwap()) {
             debug("Rolling pid="+pid+"'s back in from: "+entry);
-            Lib.assertTrue(SWAP_TABLE.containsKey(pid),
-                    "Swap doesn't know about your PID("+pid+"):="
-                            +TABLE.get(pid)+"\r\n\r\n"
-                            +SWAP_TABLE+"\r\n"+entry);
-            Lib.assertTrue(SWAP_TABLE.get(pid).containsKey(entry.getVpn()),
-                    "How did you get an entry in swap pid="+pid+"::"+entry
-                    +"when SWAP:=\r\n"+SWAP_TABLE);
+            Lib.assertTrue(entry == findSwapEntryForVpn(pid, entry.getVpn()),
+                    "How did you get an entry in swap pid="+pid+"::"+entry);
             int ppn = mallocOrSwap();
-            SwapFile.rollIn(entry.getSwapPageNumber(), ppn);
-            CoreMap.addToCoreMap(ppn, pid, entry.getVpn());
-            entry.restoredToMemory(ppn);
-            // FIXME: we are just dispensing with the "it's in swap until it's overwritten" idea
-            entry.removedFromSwapfile();
-            moveEntryFromSwapToMainTable(pid, entry);
+            rollInCluster(pid, entry, ppn);
+            VMStats.faultServed(pid, VMStats.Cause.SWAP_IN, startTime);
             debug("Rolled pid="+pid+"'s back in from: "+entry);
             return true;
         }
+        final long shareKey = findShareKey(process, entry);
+        if (shareFrame(pid, entry, shareKey)) {
+            VMStats.faultServed(pid, VMStats.Cause.SHARED_MAP, startTime);
+            debug("Shared pid="+pid+"'s page "+entry);
+            return true;
+        }
         if (entry.isStack()) {
             debug("allocing pid="+pid+"'s stack page "+entry);
             int ppn = mallocOrSwap();
             initializePage(ppn);
-            entry.restoredToMemory(ppn);
-            CoreMap.addToCoreMap(ppn, pid, entry.getVpn());
+            mapFrame(ppn, pid, entry);
+            publishFrame(ppn, entry, shareKey);
+            VMStats.faultServed(pid, VMStats.Cause.ZERO_FILL, startTime);
             debug("Alloced pid="+pid+"'s stack page "+entry);
             return true;
         }
@@ -111,15 +141,166 @@ public class InvertedPageTable
             final CoffSection section = process.getCoff()
                     .getSection(entry.getCoffSection());
             section.loadPage(entry.getCoffPage(), ppn);
-            entry.restoredToMemory(ppn);
-            CoreMap.addToCoreMap(ppn, pid, entry.getVpn());
+            mapFrame(ppn, pid, entry);
+            publishFrame(ppn, entry, shareKey);
+            VMStats.faultServed(pid, section.isInitialzed()
+                    ? VMStats.Cause.COFF_FILL : VMStats.Cause.ZERO_FILL,
+                    startTime);
             debug("Rolled pid="+pid+"'s coffSection in from: "+entry);
             return true;
         }
-        Lib.assertTrue(false, "("+pid+","+page+"):: Unhandled case!");
+        Lib.assertTrue(false, "("+pid+","+entry.getVpn()+"):: Unhandled case!");
         return false;
     }
 
+    /**
+     * Reads up to a window of pages along the process's fault stream into
+     * free frames; nobody is evicted to make room for them. Only pages in
+     * swap, or in the same COFF section as the first COFF page, are read,
+     * and the stream stops at any other page which is not yet resident.
+     * Consecutive swap pages are read with a single request.
+     */
+    private static void readAhead(VMProcess process, int pid, Readahead stream) {
+        final int stride = stream.getStride();
+        final int window = stream.getWindow();
+        SwapAwareTranslationEntry[] pages = new SwapAwareTranslationEntry[window];
+        int[] steps = new int[window];
+        long[] shareKeys = new long[window];
+        int count = 0;
+        int section = -1;
+        for (int step = 0; step < window; step++) {
+            final SwapAwareTranslationEntry next
+                    = TABLE.get(pid, stream.getNext() + step * stride);
+            if (null == next) {
+                break;
+            }
+            if (next.isValid()) {
+                continue;
+            }
+            if (! next.isInSwap()) {
+                if (! next.isCoff() || (-1 != section
+                        && section != next.getCoffSection())) {
+                    break;
+                }
+                section = next.getCoffSection();
+                shareKeys[count] = findShareKey(process, next);
+                if (shareFrame(pid, next, shareKeys[count])) {
+                    VMStats.count(pid, VMStats.Cause.SHARED_MAP);
+                    continue;
+                }
+            }
+            pages[count] = next;
+            steps[count] = step;
+            count++;
+        }
+        final int[] ppns = CoreMap.malloc(count);
+        if (0 == ppns.length) {
+            return;
+        }
+        stream.advance(steps[ppns.length - 1] + 1);
+        debug("reading ahead "+ppns.length+" pages of pid="+pid
+                +" from vpn "+pages[0].getVpn()+" by "+stride);
+        VMStats.count(pid, VMStats.Cause.READAHEAD, ppns.length);
+        for (int i = 0; i < ppns.length; ) {
+            if (! pages[i].isInSwap()) {
+                process.getCoff().getSection(pages[i].getCoffSection())
+                        .loadPage(pages[i].getCoffPage(), ppns[i]);
+                VMStats.count(pid, VMStats.Cause.COFF_FILL);
+                mapPrefetched(ppns[i], pid, pages[i]);
+                publishFrame(ppns[i], pages[i], shareKeys[i]);
+                i++;
+                continue;
+            }
+            // the run of pages which also sit next to each other in swap
+            final int spn = pages[i].getSwapPageNumber();
+            int run = 1;
+            while (i + run < ppns.length && run < SwapFile.MAX_CLUSTER
+                    && pages[i + run].isInSwap()
+                    && spn + run == pages[i + run].getSwapPageNumber()) {
+                run++;
+            }
+            SwapFile.rollInCluster(spn, Arrays.copyOfRange(ppns, i, i + run));
+            VMStats.count(pid, VMStats.Cause.SWAP_IN, run);
+            for (int j = i; j < i + run; j++) {
+                mapPrefetched(ppns[j], pid, pages[j]);
+                moveEntryFromSwapToMainTable(pid, pages[j]);
+            }
+            i += run;
+        }
+    }
+
+    /**
+     * Reads a page back in from swap, along with the pages which follow it
+     * both in its process and in swap, for as long as there are free frames
+     * to put them in: they ride along on the same read.
+     */
+    private static void rollInCluster(
+            int pid, SwapAwareTranslationEntry entry, int ppn) {
+        final int spn = entry.getSwapPageNumber();
+        final int vpn = entry.getVpn();
+        int count = 1;
+        while (count < SwapFile.MAX_CLUSTER) {
+            final SwapAwareTranslationEntry next
+                    = findSwapEntryForVpn(pid, vpn + count);
+            if (null == next || spn + count != next.getSwapPageNumber()) {
+                break;
+            }
+            count++;
+        }
+        // a victim frame is already off our books but not yet claimed, so
+        // claim it before asking for more, lest we be handed it twice
+        CoreMap.addToCoreMap(ppn, pid, vpn);
+        final int[] extra = (count > 1) ? CoreMap.malloc(count - 1) : new int[0];
+        final int[] ppns = new int[1 + extra.length];
+        ppns[0] = ppn;
+        System.arraycopy(extra, 0, ppns, 1, extra.length);
+        SwapFile.rollInCluster(spn, ppns);
+        // the faulted page itself is counted by our caller
+        VMStats.count(pid, VMStats.Cause.SWAP_IN, ppns.length - 1);
+        VMStats.count(pid, VMStats.Cause.READAHEAD, ppns.length - 1);
+        for (int i = 0; i < ppns.length; i++) {
+            final SwapAwareTranslationEntry page
+                    = (0 == i) ? entry : findSwapEntryForVpn(pid, vpn + i);
+            if (0 == i) {
+                mapFrame(ppns[i], pid, page);
+            } else {
+                mapPrefetched(ppns[i], pid, page);
+            }
+            moveEntryFromSwapToMainTable(pid, page);
+        }
+    }
+
+    /**
+     * Finds the dirty pages which follow the given one in its process, and
+     * can be written out along with it. None of them are evicted; they just
+     * come out of the write clean.
+     * @return the given ppn, followed by those of its dirty neighbours,
+     * whose dirty bits we have cleared.
+     */
+    private static int[] findDirtyCluster(int ppn) {
+        final SwapAwareTranslationEntry victim = findEntryForPpn(ppn);
+        if (null == victim) {
+            return new int[] { ppn };
+        }
+        final int pid = framePids[ppn];
+        int[] cluster = new int[SwapFile.MAX_CLUSTER];
+        cluster[0] = ppn;
+        int count = 1;
+        while (count < cluster.length) {
+            final SwapAwareTranslationEntry next
+                    = findMainEntryForVpn(pid, victim.getVpn() + count);
+            if (null == next || ! next.isValid() || ! next.isDirty()
+                    || framePinned[next.getPpn()]) {
+                break;
+            }
+            next.clearDirtyMark();
+            clearTlbDirtyForPpn(next.getPpn());
+            updateReclaimable(next.getPpn());
+            cluster[count++] = next.getPpn();
+        }
+        return Arrays.copyOf(cluster, count);
+    }
+
     private static int mallocOrSwap() {
         int ppn = CoreMap.malloc();
         if (-1 == ppn) {
@@ -127,6 +308,10 @@ public class InvertedPageTable
             ppn = swap();
             debug("and our lucky winner is "+ppn);
         }
+        if (PageoutDaemon.isRunning()
+                && countReclaimableFrames() < PageoutDaemon.getLowWater()) {
+            PageoutDaemon.wake();
+        }
         return ppn;
     }
 
@@ -140,19 +325,53 @@ public class InvertedPageTable
     public static int swap() {
         int result = chooseVictimPage();
         debug("swap victim page := "+result);
+        // other processes keep their translations across context switches,
+        // so they could write the victim while we wait on the disk; take the
+        // translations (and with them, their dirty bits) away first
+        invalidateTlbForPpn(result);
+        final SwapAwareTranslationEntry victim = findEntryForPpn(result);
+        final int victimPid = (null == victim) ? -1 : framePids[result];
         if (doesNeedRollOut(result)) {
             debug("rolling-out PPN "+result);
             Lib.assertTrue(CoreMap.containsPpn(result),
                     "You're persisting ("+result+") non-Core memory?!");
-            // move the existing memory out of the way
-            int spn = SwapFile.rollOut(result);
-            // invalidate the cached entries who lived in that SPN
-            ejectSwapTableEntriesForSpn(spn);
+            int spn;
+            if (null != victim && victim.hasSwapPage()) {
+                // it already owns a swap page, which is merely stale
+                spn = SwapFile.rollOut(result, victim.getSwapPageNumber());
+                VMStats.count(victimPid, VMStats.Cause.SWAP_OUT);
+            } else {
+                // move the existing memory out of the way, taking along
+                // the dirty pages which follow it in its process, since
+                // they ride along on the same write
+                final int[] cluster = findDirtyCluster(result);
+                spn = SwapFile.rollOutBatch(cluster);
+                VMStats.count(victimPid, VMStats.Cause.SWAP_OUT, cluster.length);
+                for (int i = 1; i < cluster.length; i++) {
+                    final SwapAwareTranslationEntry entry = frameEntries[cluster[i]];
+                    if (-1 == spn) {
+                        markDirtied(entry);
+                    } else {
+                        ejectSwapTableEntriesForSpn(spn + i);
+                        replaceSwapPage(framePids[cluster[i]], entry, spn + i);
+                    }
+                }
+                // invalidate the cached entries who lived in that SPN
+                ejectSwapTableEntriesForSpn(spn);
+            }
             // notify everyone who used that page that they are now in swap
             movePpnEntriesToSwap(result, spn);
+            // we just made a fault wait on a write; let the daemon get ahead
+            PageoutDaemon.wake();
+        } else if (null != victim && victim.hasSwapPage()) {
+            // its swap page is still an exact copy, so there is nothing to write
+            debug("dropping PPN "+result+" since swap has a clean copy");
+            VMStats.count(victimPid, VMStats.Cause.CLEAN_EJECT);
+            movePpnEntriesToSwap(result, victim.getSwapPageNumber());
         } else {
             // just eject them
             debug("ejecting PPN "+result+" because is not dirty");
+            VMStats.count(victimPid, VMStats.Cause.CLEAN_EJECT);
             ejectEntriesForPpn(result);
         }
         CoreMap.free(result);
@@ -162,14 +381,14 @@ public class InvertedPageTable
 
     private static void movePpnEntriesToSwap(int ppn, int spn) {
         Lib.assertTrue(_lock.isHeldByCurrentThread());
-        for (Integer pid : TABLE.keySet()) {
-            for (SwapAwareTranslationEntry entry : TABLE.get(pid).values().toArray(new SwapAwareTranslationEntry[0])) {
-                if (entry.getPpn() == ppn) {
-                    entry.movedToSwap(spn);
-                    moveEntryFromMainToSwapTable(pid, entry);
-                }
-            }
+        final SwapAwareTranslationEntry entry = findEntryForPpn(ppn);
+        if (null == entry) {
+            return;
         }
+        final int pid = framePids[ppn];
+        unmapFrame(ppn);
+        entry.movedToSwap(spn);
+        moveEntryFromMainToSwapTable(pid, entry);
     }
 
     private static void moveEntryFromSwapToMainTable(
@@ -179,19 +398,14 @@ public class InvertedPageTable
                 "You can't move NULL Entry to the Main table");
         Lib.assertTrue(entry.isValid(),
                 "I would expect a valid frame before marking it as live: "+entry);
-        final Map<Integer, SwapAwareTranslationEntry> entryMap
-                = SWAP_TABLE.get(pid);
-        Lib.assertTrue(null != entryMap,
-                "No such Entry in SWAP for pid "+pid
-                        +"\r\nEntry:"+entry
-                        +"\r\n"+SWAP_TABLE);
-        Lib.assertTrue(entryMap.containsKey(entry.getVpn()),
+        final int spn = entry.getSwapPageNumber();
+        Lib.assertTrue(entry.isInSwap() && entry == findEntryForSpn(spn),
                 "Unable to find Swap Entry pid("+pid+")\r\n"
-                +"Entry: "+entry
-                +"\r\n"+SWAP_TABLE);
-        entryMap.remove(entry.getVpn());
-        entry.removedFromSwapfile();
-        addToMainTable(pid, entry);
+                +"Entry: "+entry);
+        // keep the swap page, so that if the page is evicted again before
+        // anyone writes to it, we won't have to write it out again
+        entry.rolledInFromSwapfile();
+        updateReclaimable(entry.getPpn());
     }
 
     private static void moveEntryFromMainToSwapTable(
@@ -203,12 +417,8 @@ public class InvertedPageTable
                 "Moving a non-swap entry, are we?");
         Lib.assertTrue(! entry.isValid(),
                 "Moving a valid entry, are we?");
-        final Map<Integer, SwapAwareTranslationEntry> entryMap = TABLE.get(pid);
-        Lib.assertTrue(null != entryMap,
-                "No such Entry in Main Table for pid "+pid+"\r\n"+TABLE);
-        // increase atomicy; remove it (so it doesn't exist in either)
-        // before adding it in case we get context-swapped
-        entryMap.remove(entry.getVpn());
+        Lib.assertTrue(entry == TABLE.get(pid, entry.getVpn()),
+                "No such Entry in Main Table for ("+pid+","+entry.getVpn()+")");
         entry.ejectedFromMemory();
         addToSwapTable(pid, entry);
     }
@@ -217,71 +427,101 @@ public class InvertedPageTable
         debug("ENTER:free("+pid+")");
         _lock.acquire();
         freeByPid(pid);
-        freeFromMain(pid);
-        freeFromSwap(pid);
         _lock.release();
     }
 
+    /**
+     * Releases every frame, swap page and table entry owned by pid.
+     * This costs one hash removal per page of the process, regardless of
+     * how many other processes are resident. The swap pages are released
+     * under our lock, so that the {@link PageoutDaemon} cannot hand the
+     * process a new one in between.
+     */
     private static void freeByPid(int pid) {
         Lib.assertTrue(_lock.isHeldByCurrentThread());
-        for (SwapAwareTranslationEntry sate : TABLE.get(pid).values()) {
-            CoreMap.free(sate.getPpn());
-        }
-    }
-
-    protected static void freeFromMain(int pid) {
-        Lib.assertTrue(_lock.isHeldByCurrentThread());
-        freeFromTable(TABLE, pid);
-    }
-
-    protected static void freeFromSwap(int pid) {
-        Lib.assertTrue(_lock.isHeldByCurrentThread());
-        freeFromTable(SWAP_TABLE, pid);
-    }
-
-    private static void freeFromTable(
-            Map<Integer, Map<Integer, SwapAwareTranslationEntry>> theTable, int pid) {
-    	Lib.assertTrue(_lock.isHeldByCurrentThread());
-        if (!theTable.containsKey(pid)) {
+        final Integer pageCount = PAGE_COUNTS.remove(pid);
+        if (null == pageCount) {
             return;
         }
-        theTable.get(pid).clear();
-        theTable.remove(pid);
+        READAHEAD.remove(pid);
+        // before the frames go, so that no translation outlives them
+        flushProcTlb(pid);
+        int[] swapPages = new int[pageCount];
+        int swapCount = 0;
+        for (int vpn = 0; vpn < pageCount; vpn++) {
+            final SwapAwareTranslationEntry sate = TABLE.remove(pid, vpn);
+            if (null == sate) {
+                continue;
+            }
+            if (sate.isValid()) {
+                releaseFrame(sate.getPpn(), pid, sate);
+            }
+            final int spn = sate.getSwapPageNumber();
+            if (sate.hasSwapPage() && sate == findEntryForSpn(spn)) {
+                swapEntries[spn] = null;
+                swapPages[swapCount++] = spn;
+            }
+        }
+        SwapFile.free(Arrays.copyOf(swapPages, swapCount));
+        MemoryBalancer.exited(pid);
     }
 
     /**
      * Replaces the Processor's TLB entry with the value of the provided one.
      * Technically, we're cheating you with this method name, since it only
      * reverts to random ejection if it is unable to find a better heuristic
-     * choice. It tries to eject the existing ppn if found, followed by any
-     * already invalid TLB entry, and only then does it revert to random.
+     * choice. It tries to eject the existing translation of (pid,vpn) if
+     * found, followed by any already invalid TLB entry, then one of another
+     * process, and only then does it revert to random.
+     * @param pid the process the entry belongs to, which tags it in the TLB.
      * @param entry the values to inject into the Processor's TLB at a location
      * of my choosing.
      */
-    private static void overwriteRandomTLB(SwapAwareTranslationEntry entry) {
+    private static void overwriteRandomTLB(int pid, SwapAwareTranslationEntry entry) {
     	Lib.assertTrue(_lock.isHeldByCurrentThread());
-        debug("ENTER:overwriteRandomTLB("+entry+")");
-        final int ppn = entry.getPpn();
-        final int tlbSize = machine.getTlbSize();
+        debug("ENTER:overwriteRandomTLB("+pid+","+entry+")");
+        final int vpn = entry.getVpn();
+        final int ways = machine.getTlbWays();
+        final int first = machine.getTlbSet(pid, vpn);
+        final TranslationEntry te = TLB_ENTRY;
         int victim = -1;
-        for (int i = 0; i < tlbSize; i++) {
-            TranslationEntry te = machine.readTlbEntry(i);
-            // always choose to overwrite an existing PPN mapping
+        for (int i = first; i < first + ways; i++) {
+            machine.readTlbEntry(i, te);
+            // always choose to overwrite an existing mapping of the page
             // regardless of its existing validity because if we
-            // are in this method, we have updated information about that ppn
-            if (te.ppn == ppn) {
+            // are in this method, we have updated information about it
+            if (te.vpn == vpn && te.asid == pid) {
                 victim = i;
                 break;
             }
-            if (! te.valid) {
+            if (-1 == victim && ! te.valid) {
                 victim = i;
-                break;
             }
         }
         if (-1 == victim) {
-            victim = Lib.random(tlbSize);
+            // another process's entry goes first, since the process we load
+            // for is the one about to run
+            final int start = Lib.random(ways);
+            for (int j = 0; j < ways && -1 == victim; j++) {
+                final int i = first + (start + j) % ways;
+                machine.readTlbEntry(i, te);
+                if (te.asid != pid) {
+                    victim = i;
+                }
+            }
+            if (-1 == victim) {
+                victim = first + start;
+            }
+        }
+        machine.readTlbEntry(victim, te);
+        if (te.valid && te.used && te.asid != pid) {
+            // another process may well have used it since the last sync (we
+            // could have waited for our lock meanwhile), and its bits would
+            // be lost with it; ours were synced when we entered the kernel
+            syncProcTlb(te);
         }
         final TranslationEntry tlbEntry = entry.toTranslationEntry();
+        tlbEntry.asid = pid;
         debug("Overwriting TLB["+victim+"] with "+tlbEntry);
         machine.writeTlbEntry(victim, tlbEntry);
     }
@@ -290,18 +530,13 @@ public class InvertedPageTable
     	Lib.assertTrue(_lock.isHeldByCurrentThread());
         debug("ENTER:initializePage("+ppn+")");
         final int pageSize = machine.getPageSize();
-		int offset = ppn * pageSize;
-        byte[] memory = machine.getMemory();
-        for (int i = 0; i < pageSize; i++) {
-            int addr = offset + i;
-            memory[addr] = 0;
-        }
+        machine.zeroMemory(ppn * pageSize, pageSize);
     }
 
     protected static void addToMainTable(int forPid, SwapAwareTranslationEntry entry) {
         debug("ENTER:addToMainTable("+forPid+","+entry+")");
         Lib.assertTrue(null != entry, "You can't add a NULL Entry to the Main table");
-        addToTable(TABLE, forPid, entry);
+        TABLE.put(forPid, entry.getVpn(), entry);
     }
 
     protected static void addToSwapTable(int forPid, SwapAwareTranslationEntry entry) {
@@ -314,92 +549,600 @@ public class InvertedPageTable
             "Why are you adding a non-swap entry to the Swap Table?");
         Lib.assertTrue(-1 != entry.getSwapPageNumber(),
             "Why does your entry not have a swap page number?");
-        addToTable(SWAP_TABLE, forPid, entry);
+        TABLE.put(forPid, entry.getVpn(), entry);
+        recordSwapPage(forPid, entry, entry.getSwapPageNumber());
+    }
+
+    /**
+     * Records which entry owns a swap page. This is true both of the
+     * entries in swap and of the resident entries which kept a copy there.
+     */
+    private static void recordSwapPage(
+            int forPid, SwapAwareTranslationEntry entry, int spn) {
+        if (spn >= swapEntries.length) {
+            int capacity = swapEntries.length;
+            while (capacity <= spn) {
+                capacity <<= 1;
+            }
+            swapEntries = Arrays.copyOf(swapEntries, capacity);
+            swapPids = Arrays.copyOf(swapPids, capacity);
+        }
+        swapEntries[spn] = entry;
+        swapPids[spn] = forPid;
+    }
+
+    /**
+     * Records that the faulted entry now lives in the given physical page,
+     * and tells the replacement policy.
+     */
+    private static void mapFrame(int ppn, int pid, SwapAwareTranslationEntry entry) {
+        claimFrame(ppn, pid, entry);
+        algorithm.pageIn(ppn, pid, entry.getVpn());
     }
 
-    private static void addToTable(
-            Map<Integer, Map<Integer, SwapAwareTranslationEntry>> theTable,
-            int forPid, SwapAwareTranslationEntry entry) {
-        Map<Integer, SwapAwareTranslationEntry> map;
-        if (! theTable.containsKey(forPid)) {
-            map = new HashMap<Integer, SwapAwareTranslationEntry>();
-            theTable.put(forPid, map);
+    /**
+     * Records that the entry now lives in the given physical page, both in
+     * the entry itself, the frame table and the {@link CoreMap}.
+     */
+    private static void claimFrame(int ppn, int pid, SwapAwareTranslationEntry entry) {
+        Lib.assertTrue(_lock.isHeldByCurrentThread());
+        final int numPhysPages = machine.getNumPhysPages();
+        if (frameEntries.length < numPhysPages) {
+            frameEntries = Arrays.copyOf(frameEntries, numPhysPages);
+            framePids = Arrays.copyOf(framePids, numPhysPages);
+            frameReferenced = Arrays.copyOf(frameReferenced, numPhysPages);
+            framePinned = Arrays.copyOf(framePinned, numPhysPages);
+            frameActive = Arrays.copyOf(frameActive, numPhysPages);
+            frameGenerations = Arrays.copyOf(frameGenerations, numPhysPages);
+            framePrefetched = Arrays.copyOf(framePrefetched, numPhysPages);
+            frameShareKeys = Arrays.copyOf(frameShareKeys, numPhysPages);
+        }
+        Lib.assertTrue(null == frameEntries[ppn],
+                "PPN "+ppn+" is already home to "+frameEntries[ppn]);
+        frameEntries[ppn] = entry;
+        framePids[ppn] = pid;
+        frameGenerations[ppn]++;
+        // being paged in counts as a reference
+        frameReferenced[ppn] = true;
+        frameActive[ppn] = true;
+        entry.restoredToMemory(ppn);
+        CoreMap.addToCoreMap(ppn, pid, entry.getVpn());
+        updateReclaimable(ppn);
+        MemoryBalancer.pageIn(ppn, pid);
+    }
+
+    /**
+     * Handles a write to a page which the Processor has been told is
+     * read-only, which is fine if the page is only shared copy-on-write.
+     * @return false if the page really is read-only.
+     */
+    public static boolean handleWriteFault(VMProcess process, int vpn) {
+        _lock.acquire();
+        final int pid = process.getPid();
+        final SwapAwareTranslationEntry entry = findEntryForVpn(pid, vpn);
+        if (null == entry || entry.isReadOnly()) {
+            _lock.release();
+            return false;
+        }
+        if (entry.isValid() && entry.isCopyOnWrite()) {
+            copyOnWrite(pid, entry);
+        } else {
+            // the TLB entry is stale; let the retry miss and reload it
+            invalidateTlbForVpn(pid, vpn);
+        }
+        _lock.release();
+        return true;
+    }
+
+    /**
+     * Gives the page a frame of its own, so that it may be written, and
+     * reloads its TLB entry.
+     */
+    private static void copyOnWrite(int pid, SwapAwareTranslationEntry entry) {
+        Lib.assertTrue(_lock.isHeldByCurrentThread());
+        final int ppn = entry.getPpn();
+        invalidateTlbForVpn(pid, entry.getVpn());
+        if (1 == CoreMap.getRefCount(ppn)) {
+            // nobody else uses it any more, so the frame is ours to write
+            debug("taking over shared PPN "+ppn+" for "+entry);
+            unpublishFrame(ppn);
+            entry.clearCopyOnWrite();
         } else {
-            map = theTable.get(forPid);
+            debug("copying shared PPN "+ppn+" for "+entry);
+            VMStats.count(pid, VMStats.Cause.COW_COPY);
+            final int pageSize = machine.getPageSize();
+            // copy it out first, since the frame may be our victim
+            byte[] copy = null;
+            if (ZERO_KEY != frameShareKeys[ppn]) {
+                copy = new byte[pageSize];
+                machine.readMemory(ppn * pageSize, copy, 0, pageSize);
+            }
+            releaseFrame(ppn, pid, entry);
+            entry.ejectedFromMemory();
+            // a fault like any other to the policy, which sees the copy
+            // come in
+            algorithm.faulted(pid, entry.getVpn());
+            final int newPpn = mallocOrSwap();
+            if (null == copy) {
+                initializePage(newPpn);
+            } else {
+                machine.writeMemory(newPpn * pageSize, copy, 0, pageSize);
+            }
+            mapFrame(newPpn, pid, entry);
+        }
+        overwriteRandomTLB(pid, entry);
+    }
+
+    /**
+     * Finds the key under which processes share a page which is about to
+     * be loaded. Stack pages and pages of uninitialized COFF sections all
+     * start out as the zero page, and the other COFF pages are shared by
+     * the processes running the same executable. A page which has been in
+     * swap was written to, and is nobody's business but its own.
+     * @return the key, or NOT_SHARED if the page is not to be shared.
+     */
+    private static long findShareKey(
+            VMProcess process, SwapAwareTranslationEntry entry) {
+        if (! SHARE_PAGES || entry.isInSwap() || entry.hasSwapPage()) {
+            return NOT_SHARED;
+        }
+        if (entry.isStack()) {
+            return ZERO_KEY;
+        }
+        if (! entry.isCoff()) {
+            return NOT_SHARED;
+        }
+        final CoffSection section
+                = process.getCoff().getSection(entry.getCoffSection());
+        if (! section.isInitialzed()) {
+            return ZERO_KEY;
+        }
+        final String name = process.getProgramName();
+        if (null == name) {
+            return NOT_SHARED;
+        }
+        Integer executable = EXECUTABLES.get(name);
+        if (null == executable) {
+            // start at 1, so that no key is NOT_SHARED
+            executable = EXECUTABLES.size() + 1;
+            EXECUTABLES.put(name, executable);
+        }
+        return ((long) executable << 32)
+                | ((long) entry.getCoffSection() << 16) | entry.getCoffPage();
+    }
+
+    /**
+     * Maps the page onto the frame in which another page with the same
+     * share key already lives.
+     * @return false if there is no such frame.
+     */
+    private static boolean shareFrame(
+            int pid, SwapAwareTranslationEntry entry, long shareKey) {
+        if (NOT_SHARED == shareKey) {
+            return false;
+        }
+        final Integer ppn = SHARED_FRAMES.get(shareKey);
+        if (null == ppn) {
+            return false;
+        }
+        entry.restoredToMemory(ppn);
+        if (! entry.isReadOnly()) {
+            entry.markCopyOnWrite();
+        }
+        CoreMap.share(ppn, pid, entry.getVpn());
+        markReferenced(ppn);
+        return true;
+    }
+
+    /**
+     * Offers a frame which was just loaded to any other page with the same
+     * share key. From now on, the page must not write to it.
+     */
+    private static void publishFrame(
+            int ppn, SwapAwareTranslationEntry entry, long shareKey) {
+        if (NOT_SHARED == shareKey || SHARED_FRAMES.containsKey(shareKey)) {
+            return;
+        }
+        SHARED_FRAMES.put(shareKey, ppn);
+        frameShareKeys[ppn] = shareKey;
+        if (! entry.isReadOnly()) {
+            entry.markCopyOnWrite();
+        }
+    }
+
+    private static void unpublishFrame(int ppn) {
+        if (ppn < frameShareKeys.length && NOT_SHARED != frameShareKeys[ppn]) {
+            SHARED_FRAMES.remove(frameShareKeys[ppn]);
+            frameShareKeys[ppn] = NOT_SHARED;
+        }
+    }
+
+    /**
+     * Takes the page off its frame. A frame which other pages share stays
+     * with them, otherwise it is freed.
+     */
+    private static void releaseFrame(
+            int ppn, int pid, SwapAwareTranslationEntry entry) {
+        if (0 == CoreMap.unshare(ppn, pid, entry.getVpn())) {
+            unmapFrame(ppn);
+            return;
+        }
+        if (frameEntries[ppn] == entry) {
+            // hand the frame over to the page the CoreMap now lists first
+            for (CoreMap.CoreMapEntry sharer : CoreMap.findEntriesForPpn(ppn)) {
+                frameEntries[ppn] = TABLE.get(sharer.getPid(), sharer.getVpn());
+                MemoryBalancer.transferred(framePids[ppn], sharer.getPid());
+                framePids[ppn] = sharer.getPid();
+                break;
+            }
+            updateReclaimable(ppn);
         }
-        map.put(entry.getVpn(), entry);
     }
 
     /**
-     * Notifies all the SATE living at the given ppn that they have been
+     * Maps a page which was read ahead of its process, or came in with a
+     * faulted page from the same swap cluster. It stays unreferenced until
+     * the process touches it, so that an unused one goes first, and the
+     * replacement policy hears of it as prefetched, since it never saw a
+     * fault for it.
+     */
+    private static void mapPrefetched(
+            int ppn, int pid, SwapAwareTranslationEntry entry) {
+        claimFrame(ppn, pid, entry);
+        frameReferenced[ppn] = false;
+        frameActive[ppn] = false;
+        framePrefetched[ppn] = true;
+        updateReclaimable(ppn);
+        algorithm.prefetched(ppn, pid, entry.getVpn());
+    }
+
+    /**
+     * Credits the stream of a prefetched page with its first touch.
+     * @return the stream, if it would like us to read further ahead,
+     * otherwise null.
+     */
+    private static Readahead touchPrefetched(int ppn) {
+        framePrefetched[ppn] = false;
+        final Readahead stream = READAHEAD.get(framePids[ppn]);
+        if (null != stream && stream.touched(frameEntries[ppn].getVpn())) {
+            return stream;
+        }
+        return null;
+    }
+
+    private static void unmapFrame(int ppn) {
+        if (0 <= ppn && ppn < frameEntries.length && null != frameEntries[ppn]) {
+            if (framePrefetched[ppn]) {
+                // read ahead for nothing
+                framePrefetched[ppn] = false;
+                final Readahead stream = READAHEAD.get(framePids[ppn]);
+                if (null != stream) {
+                    stream.wasted();
+                }
+            }
+            frameEntries[ppn] = null;
+            frameReferenced[ppn] = false;
+            updateReclaimable(ppn);
+            invalidateTlbForPpn(ppn);
+            unpublishFrame(ppn);
+            MemoryBalancer.evicted(ppn, framePids[ppn]);
+            algorithm.evicted(ppn);
+        }
+    }
+
+    private static void markReferenced(int ppn) {
+        if (0 <= ppn && ppn < frameReferenced.length) {
+            if (framePrefetched[ppn]) {
+                touchPrefetched(ppn);
+            }
+            frameReferenced[ppn] = true;
+            frameActive[ppn] = true;
+            if (null != frameEntries[ppn]) {
+                updateReclaimable(ppn);
+                MemoryBalancer.referenced(ppn, framePids[ppn]);
+            }
+            algorithm.referenced(ppn);
+        }
+    }
+
+    private static void markDirtied(SwapAwareTranslationEntry entry) {
+        entry.markAsDirty();
+        if (entry.isValid()) {
+            updateReclaimable(entry.getPpn());
+        }
+        algorithm.dirtied(entry.getPpn());
+    }
+
+    /**
+     * Tells the {@link CoreMap} whether a fault could now have this page
+     * without any disk I/O, after something it depends on changed: which
+     * page lives there, whether it is dirty, pinned or active.
+     */
+    private static void updateReclaimable(int ppn) {
+        final SwapAwareTranslationEntry entry = frameEntries[ppn];
+        CoreMap.setReclaimable(ppn, null != entry && ! entry.isDirty()
+                && ! framePinned[ppn] && ! frameActive[ppn]);
+    }
+
+    /**
+     * Reads and then clears the reference bit of a physical page, the way a
+     * clock hand would. The bit is set whenever the page is loaded and
+     * whenever we learn (from the TLB or a syscall) that it was touched.
+     * @param ppn the physical page to examine.
+     * @return true if the page was referenced since the last call.
+     */
+    public static boolean testAndClearReferenced(int ppn) {
+        if (ppn < 0 || ppn >= frameReferenced.length) {
+            return false;
+        }
+        final boolean result = frameReferenced[ppn];
+        frameReferenced[ppn] = false;
+        return result;
+    }
+
+    /**
+     * @param ppn the physical page to examine.
+     * @return the pid owning the page, or -1 if the page is not mapped.
+     */
+    public static int findPidForPpn(int ppn) {
+        if (null == findEntryForPpn(ppn)) {
+            return -1;
+        }
+        return framePids[ppn];
+    }
+
+    /**
+     * Counts the physical pages a fault could likely have without any disk
+     * I/O: the free ones, and the resident ones which are neither dirty nor
+     * in use lately (and so are what the replacement policy will pick).
+     * The {@link CoreMap} keeps count of them as they change, so this is
+     * cheap enough to ask on every fault.
+     */
+    public static int countReclaimableFrames() {
+        return CoreMap.getReclaimableCount();
+    }
+
+    /**
+     * Writes inactive dirty physical pages to swap, on behalf of the
+     * {@link PageoutDaemon}, until {@link #countReclaimableFrames()} reaches
+     * the target. A page is inactive once it goes unreferenced for a whole
+     * lap of the daemon's hand, since a page still in use would only be
+     * dirtied again. We do not hold our lock during each write, so faults
+     * carry on meanwhile: the page is pinned, which makes {@link #swap()}
+     * write it out itself should it pick the page anyway, and its dirty bit
+     * is cleared up front, so a store during the write dirties it again
+     * rather than being lost.
+     * @param target how many reclaimable pages we would like.
+     * @param limit the most pages to write.
+     * @return how many pages were written.
+     */
+    public static int launderFrames(int target, int limit) {
+        _lock.acquire();
+        syncAllProcTlb();
+        int written = 0;
+        while (written < limit && countReclaimableFrames() < target) {
+            final int[] batch = findLaundryBatch(
+                    Math.min(limit - written, SwapFile.MAX_CLUSTER));
+            if (0 == batch.length) {
+                break;
+            }
+            launderBatch(batch);
+            written += batch.length;
+        }
+        _lock.release();
+        return written;
+    }
+
+    /**
+     * Pins up to <tt>max</tt> inactive dirty pages from under the daemon's
+     * hand. They are sorted by (pid,vpn), so that the neighbouring pages of
+     * a process also sit next to each other in swap.
+     * @return the pinned pages, possibly none.
+     */
+    private static int[] findLaundryBatch(int max) {
+        int[] batch = new int[max];
+        int count = 0;
+        while (count < max) {
+            final int ppn = findLaundryFrame();
+            if (-1 == ppn) {
+                break;
+            }
+            framePinned[ppn] = true;
+            updateReclaimable(ppn);
+            // insertion sort; there are only a handful
+            final long key = frameKey(ppn);
+            int i = count++;
+            for ( ; i > 0 && frameKey(batch[i - 1]) > key; i--) {
+                batch[i] = batch[i - 1];
+            }
+            batch[i] = ppn;
+        }
+        return Arrays.copyOf(batch, count);
+    }
+
+    private static long frameKey(int ppn) {
+        return VirtualPageHash.makeKey(framePids[ppn], frameEntries[ppn].getVpn());
+    }
+
+    /**
+     * @return the next inactive dirty page under the daemon's hand, or -1
+     * if a whole lap found none.
+     */
+    private static int findLaundryFrame() {
+        final int numFrames = frameEntries.length;
+        for (int i = 0; i < 2 * numFrames; i++) {
+            final int ppn = laundryHand;
+            laundryHand = (laundryHand + 1) % numFrames;
+            final SwapAwareTranslationEntry entry = frameEntries[ppn];
+            if (null == entry || ! entry.isDirty() || framePinned[ppn]) {
+                continue;
+            }
+            if (! frameActive[ppn]) {
+                return ppn;
+            }
+            frameActive[ppn] = false;
+            updateReclaimable(ppn);
+        }
+        return -1;
+    }
+
+    /**
+     * Writes a batch of pinned pages with a single write, releasing our
+     * lock for the duration.
+     */
+    private static void launderBatch(int[] ppns) {
+        Lib.assertTrue(_lock.isHeldByCurrentThread());
+        final SwapAwareTranslationEntry[] entries
+                = new SwapAwareTranslationEntry[ppns.length];
+        final int[] generations = new int[ppns.length];
+        for (int i = 0; i < ppns.length; i++) {
+            final int ppn = ppns[i];
+            entries[i] = frameEntries[ppn];
+            generations[i] = frameGenerations[ppn];
+            debug("laundering PPN "+ppn+" := "+entries[i]);
+            VMStats.count(framePids[ppn], VMStats.Cause.SWAP_OUT);
+            entries[i].clearDirtyMark();
+            clearTlbDirtyForPpn(ppn);
+        }
+        _lock.release();
+
+        final int spn = SwapFile.writeBehind(ppns);
+
+        _lock.acquire();
+        for (int i = 0; i < ppns.length; i++) {
+            final int ppn = ppns[i];
+            final SwapAwareTranslationEntry entry = entries[i];
+            framePinned[ppn] = false;
+            updateReclaimable(ppn);
+            // the page may have been evicted (and even come back) meanwhile,
+            // in which case what we wrote is worthless
+            final boolean stillHere = (generations[i] == frameGenerations[ppn]
+                    && entry == frameEntries[ppn]);
+            if (-1 == spn) {
+                if (stillHere) {
+                    markDirtied(entry);
+                }
+            } else if (stillHere) {
+                replaceSwapPage(framePids[ppn], entry, spn + i);
+            } else {
+                SwapFile.free(new int[] { spn + i });
+            }
+        }
+    }
+
+    /**
+     * Gives a resident entry a new copy in swap, freeing its old one.
+     */
+    private static void replaceSwapPage(
+            int pid, SwapAwareTranslationEntry entry, int spn) {
+        final int oldSpn = entry.getSwapPageNumber();
+        if (entry.hasSwapPage() && entry == findEntryForSpn(oldSpn)) {
+            swapEntries[oldSpn] = null;
+            SwapFile.free(new int[] { oldSpn });
+        }
+        entry.writtenToSwapfile(spn);
+        recordSwapPage(pid, entry, spn);
+    }
+
+    private static void clearTlbDirtyForPpn(int ppn) {
+        final int tlbSize = machine.getTlbSize();
+        final TranslationEntry entry = TLB_ENTRY;
+        for (int i = 0; i < tlbSize; i++) {
+            machine.readTlbEntry(i, entry);
+            if (entry.valid && entry.ppn == ppn && entry.dirty) {
+                entry.dirty = false;
+                machine.writeTlbEntry(i, entry);
+            }
+        }
+    }
+
+    /**
+     * Notifies the SATE living at the given ppn that it has been
      * ejected from memory.
      * @param ppn the physical page which has been cleared.
      */
     private static void ejectEntriesForPpn(int ppn) {
-        for (Integer pid : TABLE.keySet()) {
-            for (SwapAwareTranslationEntry entry : TABLE.get(pid).values()) {
-                if (entry.getPpn() == ppn) {
-                    entry.ejectedFromMemory();
-                }
+        if (CoreMap.getRefCount(ppn) > 1) {
+            // everybody sharing it has to go, including any page of any
+            // process which the TLB still maps onto it
+            for (CoreMap.CoreMapEntry sharer : CoreMap.findEntriesForPpn(ppn)) {
+                TABLE.get(sharer.getPid(), sharer.getVpn()).ejectedFromMemory();
+            }
+            invalidateTlbForPpn(ppn);
+        } else {
+            final SwapAwareTranslationEntry entry = findEntryForPpn(ppn);
+            if (null != entry) {
+                entry.ejectedFromMemory();
             }
         }
+        unmapFrame(ppn);
     }
 
     /**
-     * Finds all Swap Table entries who claim to live at the provided spn
-     * and notifies them they have been ejected from swap. This most often
+     * Finds the Swap Table entry who claims to live at the provided spn
+     * and notifies it that it has been ejected from swap. This most often
      * occurs when SwapFile re-allocates their swap page.
      * @param spn the swap page number that has just been allocated.
      */
     protected static void ejectSwapTableEntriesForSpn(int spn) {
         debug("ENTER:invalidateSwapCacheForSpn("+spn+")");
         Lib.assertTrue(_lock.isHeldByCurrentThread());
-        for (Integer pid : TABLE.keySet()) {
-            List<SwapAwareTranslationEntry> killed
-                    = new ArrayList<SwapAwareTranslationEntry>();
-            final Map<Integer, SwapAwareTranslationEntry> entryMap
-                    = TABLE.get(pid);
-            for (SwapAwareTranslationEntry entry : entryMap.values()) {
-                Lib.assertTrue(!entry.isInSwap(),
-                        "A Swap Entry in Main("+pid+")? Scandal!:"+entry+"\r\n"+entryMap);
-                if (entry.isInSwap() && entry.getSwapPageNumber() == spn) {
-                    entry.removedFromSwapfile();
-                    killed.add(entry);
-                }
-            }
-            for (SwapAwareTranslationEntry entry : killed) {
-                entryMap.remove(entry.getVpn());
-            }
+        final SwapAwareTranslationEntry entry = findEntryForSpn(spn);
+        if (null == entry) {
+            return;
         }
-        for (Integer pid : SWAP_TABLE.keySet()) {
-            List<SwapAwareTranslationEntry> killed
-                    = new ArrayList<SwapAwareTranslationEntry>();
-            final Map<Integer, SwapAwareTranslationEntry> entryMap
-                    = SWAP_TABLE.get(pid);
-            for (SwapAwareTranslationEntry entry : entryMap.values()) {
-                if (entry.isInSwap() && entry.getSwapPageNumber() == spn) {
-                    entry.removedFromSwapfile();
-                    killed.add(entry);
-                }
-            }
-            for (SwapAwareTranslationEntry entry : killed) {
-                entryMap.remove(entry.getVpn());
-            }
+        swapEntries[spn] = null;
+        if (entry.isInSwap() && entry.getSwapPageNumber() == spn) {
+            entry.removedFromSwapfile();
+            TABLE.remove(swapPids[spn], entry.getVpn());
         }
     }
 
+    /**
+     * Invalidates every TLB entry for ppn, whichever process it belongs to,
+     * keeping the dirty bit of any which was written through.
+     */
     protected static void invalidateTlbForPpn(int ppn) {
         debug("ENTER:invalidateTlbForPpn("+ppn+")");
-        TranslationEntry tlbEntry = findProcTLBforPpn(ppn);
-        if (null != tlbEntry) {
-            debug("Malloc claimed the life of ProcTLB[ppn="+ppn+"]:="+tlbEntry);
-            tlbEntry.valid = false;
-		}
+        final int tlbSize = machine.getTlbSize();
+        final TranslationEntry tlbEntry = TLB_ENTRY;
+        for (int i = 0; i < tlbSize; i++) {
+            machine.readTlbEntry(i, tlbEntry);
+            if (tlbEntry.valid && tlbEntry.ppn == ppn) {
+                debug("Malloc claimed the life of ProcTLB[ppn="+ppn+"]:="+tlbEntry);
+                if (tlbEntry.dirty) {
+                    final SwapAwareTranslationEntry sate
+                            = findMainEntryForVpn(tlbEntry.asid, tlbEntry.vpn);
+                    if (null != sate && sate.isValid() && sate.getPpn() == ppn
+                            && ! sate.isDirty()) {
+                        markDirtied(sate);
+                    }
+                }
+                VMStats.count(-1, VMStats.Cause.TLB_SHOOTDOWN);
+                machine.invalidateTlbEntry(i);
+            }
+        }
+    }
+
+    private static void invalidateTlbForVpn(int pid, int vpn) {
+        // a translation for (pid,vpn) can only be in its own set
+        final int first = machine.getTlbSet(pid, vpn);
+        final int ways = machine.getTlbWays();
+        final TranslationEntry tlbEntry = TLB_ENTRY;
+        for (int i = first; i < first + ways; i++) {
+            machine.readTlbEntry(i, tlbEntry);
+            if (tlbEntry.valid && tlbEntry.vpn == vpn && tlbEntry.asid == pid) {
+                VMStats.count(-1, VMStats.Cause.TLB_SHOOTDOWN);
+                machine.invalidateTlbEntry(i);
+            }
+        }
     }
 
     protected static boolean doesNeedRollOut(int ppn) {
         debug("ENTER:doesNeedRollOut("+ppn+")");
-        boolean result = false;
+        // the PageoutDaemon cleared the dirty bit of a page it is writing,
+        // but we can't count on that write having finished yet
+        boolean result = 0 <= ppn && ppn < framePinned.length && framePinned[ppn];
         TranslationEntry tlbEntry = findProcTLBforPpn(ppn);
         if (null != tlbEntry) {
             debug("ProcTLB[ppn="+ppn+"]:="+tlbEntry);
@@ -408,52 +1151,93 @@ public class InvertedPageTable
         	}
 		}
         if (! result) {
-        	// check our copies
-            for (Integer pid : TABLE.keySet()) {
-                for (SwapAwareTranslationEntry entry : TABLE.get(pid).values()) {
-                    if (entry.isValid() && entry.isDirty()) {
-                        result = true;
-                        break;
-                    }
-                }
+        	// check our copy
+            final SwapAwareTranslationEntry entry = findEntryForPpn(ppn);
+            if (null != entry && entry.isValid() && entry.isDirty()) {
+                result = true;
             }
         }
         debug("RETURN:doesNeedRollOut("+ppn+"):"+result);
         return result;
     }
 
-	public static TranslationEntry findProcTLBforVpn(int vpn) {
-		final int tlbSize = machine.getTlbSize();
-		TranslationEntry result = null;
-        for (int i = 0; i < tlbSize; i++) {
-			final TranslationEntry entry = machine.readTlbEntry(i);
-			if (entry.vpn == vpn) {
-				result = entry;
-				break;
-			}
+    /**
+     * @return the valid TLB entry for (pid,vpn), or null. The entry is only
+     * good until the next call; it is not a copy of its own.
+     */
+	public static TranslationEntry findProcTLBforVpn(int pid, int vpn) {
+		final int i = machine.findTlbEntry(pid, vpn);
+		if (-1 == i) {
+			return null;
 		}
-		return result;
+        final TranslationEntry entry = TLB_ENTRY;
+		machine.readTlbEntry(i, entry);
+		return entry;
 	}
 
+    /**
+     * @return the first TLB entry for ppn, valid or not, or null. The entry
+     * is only good until the next call; it is not a copy of its own.
+     */
     protected static TranslationEntry findProcTLBforPpn(int ppn) {
         final int tlbSize = machine.getTlbSize();
-        TranslationEntry result = null;
+        final TranslationEntry entry = TLB_ENTRY;
         for (int i = 0; i < tlbSize; i++) {
-            final TranslationEntry entry = machine.readTlbEntry(i);
+            machine.readTlbEntry(i, entry);
             if (entry.ppn == ppn) {
-                result = entry;
-                break;
+                return entry;
             }
         }
-        return result;
+        return null;
     }
 
     protected static int chooseVictimPage() {
-        int result;
-        result = algorithm.findVictim();
+        int result = findOverQuotaVictim();
+        if (-1 == result) {
+            result = algorithm.findVictim();
+        }
         return result;
     }
 
+    /**
+     * Looks for a frame the {@link MemoryBalancer} would rather see go: a
+     * clean and unreferenced one, held by a process which is over its quota
+     * or suspended. Dirty ones are left to the PageoutDaemon, since making
+     * the fault write them costs more than a bad choice of victim. The hand
+     * keeps its place between calls, like the clock's.
+     * @return the victim ppn, or -1 if there is none.
+     */
+    private static int findOverQuotaVictim() {
+        if (! MemoryBalancer.hasOverQuota()) {
+            return -1;
+        }
+        syncAllProcTlb();
+        final int numPhysPages = Math.min(machine.getNumPhysPages(),
+                frameEntries.length);
+        boolean dirty = false;
+        for (int i = 0; i < numPhysPages; i++) {
+            if (balancerHand >= numPhysPages) {
+                balancerHand = 0;
+            }
+            final int ppn = balancerHand++;
+            if (null == frameEntries[ppn] || frameReferenced[ppn]
+                    || framePinned[ppn]
+                    || ! MemoryBalancer.isOverQuota(framePids[ppn])) {
+                continue;
+            }
+            if (frameEntries[ppn].isDirty()) {
+                dirty = true;
+                continue;
+            }
+            debug("balancer victim "+ppn+" of pid="+framePids[ppn]);
+            return ppn;
+        }
+        if (dirty && PageoutDaemon.isRunning()) {
+            PageoutDaemon.wake();
+        }
+        return -1;
+    }
+
     public static void addCoff(VMProcess process, int stackSize) {
         _lock.acquire();
         debug("ENTER:addCoff("+process+","+stackSize+")");
@@ -476,7 +1260,9 @@ public class InvertedPageTable
                     = new SwapAwareTranslationEntry(vpn, isStack);
             addToMainTable(pid, sate);
         }
-        debug("CoffLoad:PAGES="+TABLE.get(pid));
+        // our vpns are dense, so this is all free() needs to find them again
+        PAGE_COUNTS.put(pid, pageCount + stackFrameCount);
+        debug("CoffLoad:PAGES="+(pageCount + stackFrameCount));
         _lock.release();
     }
 
@@ -499,16 +1285,14 @@ public class InvertedPageTable
         debug("ENTER:setVirtualUsed("+process+","+vpn+")");
         final int pid = process.getPid();
 
-		final int tlbSize = machine.getTlbSize();
         boolean tlbLoaded = false;
-        for (int i = 0; i < tlbSize; i++) {
-			final TranslationEntry entry = machine.readTlbEntry(i);
-			if (entry.vpn == vpn) {
-	        	entry.used = true;
-	        	machine.writeTlbEntry(i, entry);
-                tlbLoaded = true;
-				break;
-			}
+        final int loaded = machine.findTlbEntry(pid, vpn);
+        if (-1 != loaded) {
+			final TranslationEntry entry = TLB_ENTRY;
+			machine.readTlbEntry(loaded, entry);
+        	entry.used = true;
+        	machine.writeTlbEntry(loaded, entry);
+            tlbLoaded = true;
 		}
         if (!tlbLoaded) {
             debug("Used page ("+pid+","+vpn+") isn't in the TLB");
@@ -519,7 +1303,7 @@ public class InvertedPageTable
         /// the Processor's TLB
         SwapAwareTranslationEntry entry = findEntryForVpn(pid, vpn);
         if (null == entry) {
-            Lib.assertTrue(false, "no entry for ("+pid+","+vpn+"):\r\n"+TABLE.get(pid));
+            Lib.assertTrue(false, "no entry for ("+pid+","+vpn+")");
         	_lock.release();
             return;
         }
@@ -528,12 +1312,13 @@ public class InvertedPageTable
             if (!loadEntry(process, vpn)) {
                 Lib.assertTrue(false,
                     "unable to load \"used\" entry for ("+pid+","+vpn+"):\r\n"
-                                +TABLE.get(pid));
+                                +entry);
             }
         }
         entry.markAsUsed();
+        markReferenced(entry.getPpn());
         if (!tlbLoaded) {
-            overwriteRandomTLB(entry);
+            overwriteRandomTLB(pid, entry);
         }
         _lock.release();
     }
@@ -546,23 +1331,25 @@ public class InvertedPageTable
         // plus being stored in the TLB; so no need for checking that here
         setVirtualUsed(process, vpn);
         _lock.acquire();
+        final SwapAwareTranslationEntry shared = findMainEntryForVpn(pid, vpn);
+        if (null != shared && shared.isCopyOnWrite()) {
+            copyOnWrite(pid, shared);
+        }
 
-		final int tlbSize = machine.getTlbSize();
-        for (int i = 0; i < tlbSize; i++) {
-			final TranslationEntry entry = machine.readTlbEntry(i);
-			if (entry.valid && entry.vpn == vpn) {
-                Lib.assertTrue(!entry.readOnly,
-                        "PROC:Attempt to write to readOnly memory ("+pid+","+vpn+")");
-	        	entry.dirty = true;
-	        	machine.writeTlbEntry(i, entry);
-				break;
-			}
-		}
+        final int loaded = machine.findTlbEntry(pid, vpn);
+        if (-1 != loaded) {
+            final TranslationEntry tlbEntry = TLB_ENTRY;
+            machine.readTlbEntry(loaded, tlbEntry);
+            Lib.assertTrue(!tlbEntry.readOnly,
+                    "PROC:Attempt to write to readOnly memory ("+pid+","+vpn+")");
+            tlbEntry.dirty = true;
+            machine.writeTlbEntry(loaded, tlbEntry);
+        }
 
         SwapAwareTranslationEntry entry = findEntryForVpn(pid, vpn);
         if (null == entry) {
             Lib.assertTrue(false,
-                    "no entry for ("+pid+","+vpn+"):\r\n"+TABLE.get(pid));
+                    "no entry for ("+pid+","+vpn+")");
         	_lock.release();
             return;
         }
@@ -575,7 +1362,7 @@ public class InvertedPageTable
             }
             Lib.assertTrue(!entry.isReadOnly(),
                 "CORE_MAP:Attempt to write to readOnly memory ("+pid+","+vpn+")");
-            entry.markAsDirty();
+            markDirtied(entry);
         }
         _lock.release();
     }
@@ -583,7 +1370,7 @@ public class InvertedPageTable
     /**
      * Consults only my own tables to find the vpn belonging to that pid.
      * If you want to ask the Processor,
-     * use {@link InvertedPageTable#findProcTLBforVpn(int)} instead.
+     * use {@link InvertedPageTable#findProcTLBforVpn(int, int)} instead.
      * @param pid the process id whose page you seek.
      * @param vpn the virtual page number you are looking for.
      * @return the entry if it exists, null otherwise.
@@ -591,64 +1378,78 @@ public class InvertedPageTable
     protected static TranslationEntry findIPTEntryForVpn(int pid, int vpn) {
         SwapAwareTranslationEntry entry = findEntryForVpn(pid, vpn);
         if (null == entry) {
-            error("no entry for ("+pid+","+vpn+"):\r\n"+TABLE.get(pid));
+            error("no entry for ("+pid+","+vpn+")");
             return null;
         }
         return entry.toTranslationEntry();
     }
 
     /**
-     * Consults the IPT table first, then checks to see if the provided vpn
-     * lives in the SWAP table.
+     * Consults the single (pid,vpn) hash, which houses both the live and the
+     * swapped-out entries.
      * @param pid the process id whose table we should consult.
      * @param vpn the virtual page number you seek.
      * @return the entry if found in either table, or null if not.
      */
     protected static SwapAwareTranslationEntry findEntryForVpn(int pid, int vpn) {
-        SwapAwareTranslationEntry result;
-        result = findMainEntryForVpn(pid, vpn);
-        if (null == result) {
-            result = findSwapEntryForVpn(pid, vpn);
+        return TABLE.get(pid, vpn);
+    }
+
+    /**
+     * Provides the entry currently resident in the given physical page.
+     * @param ppn the physical page number.
+     * @return the resident entry, or null if the frame is not mapped.
+     */
+    protected static SwapAwareTranslationEntry findEntryForPpn(int ppn) {
+        if (ppn < 0 || ppn >= frameEntries.length) {
+            return null;
         }
-        return result;
+        return frameEntries[ppn];
+    }
+
+    private static SwapAwareTranslationEntry findEntryForSpn(int spn) {
+        if (spn < 0 || spn >= swapEntries.length) {
+            return null;
+        }
+        return swapEntries[spn];
     }
 
     public static int[] findAllSwapPagesByPid(int pid) {
-        java.util.Set<Integer> pages = new java.util.HashSet<Integer>();
-        if (! SWAP_TABLE.containsKey(pid)) {
+        _lock.acquire();
+        final Integer pageCount = PAGE_COUNTS.get(pid);
+        if (null == pageCount) {
+            _lock.release();
             return new int[0];
         }
-        for (SwapAwareTranslationEntry entry : SWAP_TABLE.get(pid).values()) {
-            if (entry.isInSwap() && -1 != entry.getSwapPageNumber()) {
-                pages.add(entry.getSwapPageNumber());
+        int[] pages = new int[pageCount];
+        int count = 0;
+        for (int vpn = 0; vpn < pageCount; vpn++) {
+            final SwapAwareTranslationEntry entry = findEntryForVpn(pid, vpn);
+            // only report the pages which nobody else has since claimed;
+            // resident pages may own a swap page too
+            if (null != entry && entry.hasSwapPage()
+                    && entry == findEntryForSpn(entry.getSwapPageNumber())) {
+                pages[count++] = entry.getSwapPageNumber();
             }
         }
-        // now remove the keys which belong to other PIDs
-        for (Integer key : SWAP_TABLE.keySet()) {
-            if (key == pid) {
-                continue;
-            }
-            for (SwapAwareTranslationEntry entry : SWAP_TABLE.get(key).values()) {
-                if (entry.isInSwap() && -1 != entry.getSwapPageNumber()) {
-                    pages.remove(entry.getSwapPageNumber());
-                }
-            }
-        }
-        int[] results = new int[pages.size()];
-        int i = 0;
-        for (Integer value : pages) {
-            results[i] = value;
-            i++;
-        }
-        return results;
+        _lock.release();
+        return Arrays.copyOf(pages, count);
     }
 
     protected static SwapAwareTranslationEntry findMainEntryForVpn(int pid, int vpn) {
-        return getTableEntryForVpn(TABLE, pid, vpn);
+        final SwapAwareTranslationEntry entry = TABLE.get(pid, vpn);
+        if (null == entry || entry.isInSwap()) {
+            return null;
+        }
+        return entry;
     }
 
     protected static SwapAwareTranslationEntry findSwapEntryForVpn(int pid, int vpn) {
-        return getTableEntryForVpn(SWAP_TABLE, pid, vpn);
+        final SwapAwareTranslationEntry entry = TABLE.get(pid, vpn);
+        if (null == entry || ! entry.isInSwap()) {
+            return null;
+        }
+        return entry;
     }
 
     public static void syncAllProcTlb() {
@@ -657,11 +1458,20 @@ public class InvertedPageTable
     		_lock.acquire();
     	}
         int tlbSize = machine.getTlbSize();
+        final TranslationEntry[] tlb = getTlbCopy();
+        machine.readTlb(tlb);
         for (int i = 0; i < tlbSize; i++) {
-            final TranslationEntry entry = machine.readTlbEntry(i);
+            final TranslationEntry entry = tlb[i];
             debug("SYNC:ProcTLB["+i+"]:="+entry);
-            if (entry.valid) {
+            // an entry not used since the last sync has nothing new to tell
+            // (a write sets the used bit too); the TLB holds the entries of
+            // every process, so this saves most of the lookups
+            if (entry.valid && entry.used) {
                 syncProcTlb(entry);
+                // clear the used bit we just harvested, so that the next sync
+                // only reports pages which were touched again since this one
+                entry.used = false;
+                machine.writeTlbEntry(i, entry);
             }
         }
         if (needLock){
@@ -678,56 +1488,138 @@ public class InvertedPageTable
         Lib.assertTrue(CoreMap.containsPpn(tlbEntry.ppn),
                 "Cannot sync up a TLB for non-core "+tlbEntry);
         boolean result = false;
-        for (CoreMap.CoreMapEntry coreEntry : CoreMap.findEntriesForPpn(tlbEntry.ppn)) {
-            final SwapAwareTranslationEntry sate
-                    = findEntryForVpn(coreEntry.getPid(), coreEntry.getVpn());
-            Lib.assertTrue(null != sate,
-                    "Core Map contains "+coreEntry+" but IPT does not");
-            Lib.assertTrue(sate.getPpn() == tlbEntry.ppn, "Bogus SATE "+sate);
-            if (sate.getVpn() == tlbEntry.vpn) {
-                if (tlbEntry.used) {
-                    if (! sate.isUsed()) {
-                        result = true;
-                        sate.markAsUsed();
-                    }
+        // the entry may belong to any process, and on a shared frame it need
+        // not be the one the frame table lists, so go by its own (pid,vpn)
+        final SwapAwareTranslationEntry sate
+                = findMainEntryForVpn(tlbEntry.asid, tlbEntry.vpn);
+        if (null != sate && sate.getPpn() == tlbEntry.ppn) {
+            if (tlbEntry.used) {
+                markReferenced(tlbEntry.ppn);
+                if (! sate.isUsed()) {
+                    result = true;
+                    sate.markAsUsed();
                 }
-                if (tlbEntry.dirty) {
-                    if (! sate.isDirty()) {
-                        result = true;
-                        sate.markAsDirty();
-                    }
+            }
+            if (tlbEntry.dirty) {
+                if (! sate.isDirty()) {
+                    result = true;
+                    markDirtied(sate);
                 }
-                // specifically check this after the prior, so we'll benefit
-                // from its knowledge as well as our own
-                if (sate.isDirty()) {
-                    // clear the swap backing page since it needs to be re-writen now
-                    if (sate.isInSwap()) {
-//                        final int spn = sate.getSwapPageNumber();
-//                        invalidateSwapCacheForSpn(spn);
-                        sate.removedFromSwapfile();
-                        result = true;
-                    }
+            }
+            // specifically check this after the prior, so we'll benefit
+            // from its knowledge as well as our own
+            if (sate.isDirty()) {
+                // clear the swap backing page since it needs to be re-writen now
+                if (sate.isInSwap()) {
+                    sate.removedFromSwapfile();
+                    result = true;
                 }
-                Lib.assertTrue(sate.isReadOnly() == tlbEntry.readOnly,
-                        "Mismatched r/o state: "+sate);
-                Lib.assertTrue(sate.isValid() == tlbEntry.valid,
-                        "Mismatched valid state: "+sate);
             }
+            Lib.assertTrue((sate.isReadOnly() || sate.isCopyOnWrite())
+                    == tlbEntry.readOnly, "Mismatched r/o state: "+sate);
+            Lib.assertTrue(sate.isValid() == tlbEntry.valid,
+                    "Mismatched valid state: "+sate);
         }
         return result;
     }
 
-    private static SwapAwareTranslationEntry getTableEntryForVpn(
-            Map<Integer, Map<Integer, SwapAwareTranslationEntry>> fromTable,
-            int pid, int vpn) {
-        if (! fromTable.containsKey(pid)) {
-            return null;
+    /**
+     * Invalidates every Processor TLB entry of a process which is going away.
+     * The other processes keep theirs, since an entry only translates for
+     * the process whose pid it is tagged with.
+     * @param pid the exiting process.
+     */
+    private static void flushProcTlb(int pid) {
+        Lib.assertTrue(_lock.isHeldByCurrentThread());
+        final int tlbSize = machine.getTlbSize();
+        final TranslationEntry[] tlb = getTlbCopy();
+        machine.readTlb(tlb);
+        for (int i = 0; i < tlbSize; i++) {
+            if (tlb[i].valid && tlb[i].asid == pid) {
+                VMStats.count(pid, VMStats.Cause.TLB_FLUSH);
+                machine.invalidateTlbEntry(i);
+            }
         }
-        final Map<Integer, SwapAwareTranslationEntry> pages = fromTable.get(pid);
-        if (! pages.containsKey(vpn)) {
-            return null;
+    }
+
+    /**
+     * Notes which pages a process has in the TLB as it is switched out, so
+     * that {@link #restoreProcTlb(int, int[])} can put back those the other
+     * processes pushed out meanwhile. The entries themselves stay, tagged
+     * with the pid, and are still good if the process comes back before
+     * anyone needs their room. This is meant for the context switch path,
+     * which runs with interrupts disabled and so cannot block on our lock;
+     * it only reads the TLB.
+     * @param pid the process being switched out.
+     * @param savedVpns receives the vpn of every valid entry of pid (and -1
+     * for the others). It is left alone if pid has no valid entry, since
+     * then the process was switched out again before it could fault, and
+     * what it saved the time before is all it has.
+     */
+    public static void saveProcTlb(int pid, int[] savedVpns) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        final int tlbSize = machine.getTlbSize();
+        // not getTlbCopy(): we may be switching from a thread using it
+        if (null == saveCopy) {
+            saveCopy = new TranslationEntry[tlbSize];
+            for (int i = 0; i < tlbSize; i++) {
+                saveCopy[i] = new TranslationEntry();
+            }
+        }
+        final TranslationEntry[] tlb = saveCopy;
+        machine.readTlb(tlb);
+        boolean save = false;
+        for (int i = 0; i < tlbSize; i++) {
+            save |= tlb[i].valid && tlb[i].asid == pid;
+        }
+        for (int i = 0; save && i < savedVpns.length; i++) {
+            final TranslationEntry entry = tlb[i];
+            savedVpns[i] = (entry.valid && entry.asid == pid) ? entry.vpn : -1;
+        }
+    }
+
+    /**
+     * Puts back the translations a process had in the TLB when it was last
+     * switched out, for those of its pages which are still in memory and
+     * which other processes pushed out of the TLB meanwhile. We do this on
+     * its first TLB miss afterwards rather than in the context switch, since
+     * only here may we trust the entries (nobody is half-way through evicting
+     * one of them). Without it, processes which wait on our lock in turn
+     * find their translations gone each time they get it back, and so wait
+     * again at once, convoying behind each other for good.
+     * @param pid the process which faulted.
+     * @param savedVpns filled by {@link #saveProcTlb(int, int[])}; cleared
+     * here.
+     */
+    private static void restoreProcTlb(int pid, int[] savedVpns) {
+        Lib.assertTrue(_lock.isHeldByCurrentThread());
+        for (int i = 0; i < savedVpns.length; i++) {
+            final int vpn = savedVpns[i];
+            if (-1 == vpn) {
+                continue;
+            }
+            savedVpns[i] = -1;
+            final SwapAwareTranslationEntry entry = findMainEntryForVpn(pid, vpn);
+            if (null != entry && entry.isValid()
+                    && -1 == machine.findTlbEntry(pid, vpn)) {
+                overwriteRandomTLB(pid, entry);
+            }
         }
-        return pages.get(vpn);
+    }
+
+    /**
+     * @return an array to read the whole TLB into with our lock held, so
+     * that going over the TLB allocates nothing.
+     */
+    private static TranslationEntry[] getTlbCopy() {
+        Lib.assertTrue(_lock.isHeldByCurrentThread());
+        if (null == tlbCopy) {
+            tlbCopy = new TranslationEntry[machine.getTlbSize()];
+            for (int i = 0; i < tlbCopy.length; i++) {
+                tlbCopy[i] = new TranslationEntry();
+            }
+        }
+        return tlbCopy;
     }
 
     private static void error(String msg) {
@@ -740,17 +1632,69 @@ public class InvertedPageTable
 
 
     /**
-     * Indexes the VPN and SATE for it, grouped by PID, available to be
-     * loaded into main memory.
+     * Indexes the SATE for every (pid,vpn), whether it is available to be
+     * loaded into main memory or is housed in swap.
+     */
+    private static final VirtualPageHash TABLE = new VirtualPageHash();
+    /**
+     * Records how many (dense, zero based) vpns each pid owns,
+     * so that we can find all of its entries again without a scan.
+     */
+    private static final Map<Integer, Integer>
+        PAGE_COUNTS = new HashMap<Integer, Integer>();
+    /** The fault stream of each pid, for {@link Readahead}. */
+    private static final Map<Integer, Readahead>
+        READAHEAD = new HashMap<Integer, Readahead>();
+    /** The entry resident in each physical page, indexed by PPN. */
+    private static SwapAwareTranslationEntry[]
+        frameEntries = new SwapAwareTranslationEntry[0];
+    /** The pid owning each physical page, valid where frameEntries is set. */
+    private static int[] framePids = new int[0];
+    /** The reference bit of each physical page, for the clock algorithms. */
+    private static boolean[] frameReferenced = new boolean[0];
+    /**
+     * The PageoutDaemon's own reference bit of each physical page, which it
+     * clears as its hand passes.
      */
-    private static Map<Integer, Map<Integer, SwapAwareTranslationEntry>>
-        TABLE = new HashMap<Integer, Map<Integer, SwapAwareTranslationEntry>>();
+    private static boolean[] frameActive = new boolean[0];
+    /** Counts the pages each physical page has held, to detect reuse. */
+    private static int[] frameGenerations = new int[0];
     /**
-     * Indexes the VPN and SATE for it, grouped by PID, but whose entries are
-     * housed in swap.
+     * The key each physical page is shared under, or NOT_SHARED; see
+     * {@link #findShareKey}.
      */
-    private static Map<Integer, Map<Integer, SwapAwareTranslationEntry>>
-        SWAP_TABLE = new HashMap<Integer, Map<Integer, SwapAwareTranslationEntry>>();
+    private static long[] frameShareKeys = new long[0];
+    /** The physical page holding each shared page, by its share key. */
+    private static final Map<Long, Integer>
+        SHARED_FRAMES = new HashMap<Long, Integer>();
+    /** Numbers the executables, for the share keys. */
+    private static final Map<String, Integer>
+        EXECUTABLES = new HashMap<String, Integer>();
+    private static final long NOT_SHARED = 0L;
+    /** The share key of the zero page. */
+    private static final long ZERO_KEY = -1L;
+    /** Whether processes share pages, from <tt>VMKernel.sharePages</tt>. */
+    private static final boolean SHARE_PAGES
+            = Config.getBoolean("VMKernel.sharePages", true);
+    /** Set on a page read ahead of its process, until it is touched. */
+    private static boolean[] framePrefetched = new boolean[0];
+    /** Set while the {@link PageoutDaemon} is writing a physical page. */
+    private static boolean[] framePinned = new boolean[0];
+    /** The next physical page the PageoutDaemon will consider. */
+    private static int laundryHand = 0;
+    /** The next physical page {@link #findOverQuotaVictim()} will consider. */
+    private static int balancerHand = 0;
+    /** The entry housed in each swap page, indexed by SPN. */
+    private static SwapAwareTranslationEntry[]
+        swapEntries = new SwapAwareTranslationEntry[16];
+    /** The pid owning each swap page, valid where swapEntries is set. */
+    private static int[] swapPids = new int[16];
+    /** Somewhere to read a TLB entry into, with our lock held. */
+    private static final TranslationEntry TLB_ENTRY = new TranslationEntry();
+    /** Somewhere to read the whole TLB into; see {@link #getTlbCopy()}. */
+    private static TranslationEntry[] tlbCopy;
+    /** Somewhere to read the whole TLB into in {@link #saveProcTlb}. */
+    private static TranslationEntry[] saveCopy;
     private static Lock _lock = new Lock();
     protected static Algorithm algorithm;
     private static final char dbgFlag = 'I';
@@ -1,58 +1,546 @@
-package nachos.vm;
-
-import nachos.machine.Coff;
-import nachos.machine.Kernel;
-import nachos.machine.Machine;
-import nachos.machine.OpenFile;
-
-public class InvertedPageTableTest {
-    static Coff exe;
-    static OpenFile coffFile;
-    static VMKernel kernel;
-
-    public static void selfTest() {
-        kernel = (VMKernel) Kernel.kernel;
-        if (!openExe("echo.coff")) {
-            System.err.println("1:Unable to open echo.coff");
-            return;
-        }
-        testOne();
-        exe.close();
-        coffFile.close();
-    }
-
-    public static void testOne() {
-        final String METHOD_NAME = "IPTTest::testOne";
-
-        final MockMachine machine = new MockMachine();
-        InvertedPageTable.machine = machine;
-
-        int sectionCount = exe.getNumSections();
-        if (0 == sectionCount) {
-            System.err.println("What kind of bogus COFF are you giving me?");
-            return;
-        }
-        InvertedPageTable.addCoff(new VMProcess2(), 8);
-    }
-
-    private static boolean openExe(String filename) {
-        boolean createIt = false;
-        coffFile = Machine.stubFileSystem().open(filename, createIt);
-        try {
-            exe = new Coff(coffFile);
-        } catch (Exception e) {
-            e.printStackTrace(System.err);
-            return false;
-        }
-        return true;
-    }
-
-    private static class VMProcess2 extends VMProcess {
-        public int getPid() {
-            return 0;
-        }
-        public Coff getCoff() {
-            return exe;
-        }
-    }
-}
+package nachos.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nachos.machine.Coff;
+import nachos.machine.CoffSection;
+import nachos.machine.Config;
+import nachos.machine.Kernel;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+
+public class InvertedPageTableTest {
+    static Coff exe;
+    static OpenFile coffFile;
+    static VMKernel kernel;
+
+    public static void selfTest() {
+        kernel = (VMKernel) Kernel.kernel;
+        if (!openExe("echo.coff")) {
+            System.err.println("1:Unable to open echo.coff");
+            return;
+        }
+        testOne();
+        exe.close();
+        coffFile.close();
+
+        if (!openExe("bigmem.coff")) {
+            System.err.println("2:Unable to open bigmem.coff");
+            return;
+        }
+        testReadahead();
+        testClusterSwapIn();
+        testCopyOnWrite();
+        testZeroPage();
+        testPolicies();
+        exe.close();
+        coffFile.close();
+    }
+
+    public static void testOne() {
+        final String METHOD_NAME = "IPTTest::testOne";
+
+        final IMachine liveMachine = InvertedPageTable.machine;
+        final MockMachine machine = new MockMachine();
+        InvertedPageTable.machine = machine;
+
+        int sectionCount = exe.getNumSections();
+        if (0 == sectionCount) {
+            System.err.println("What kind of bogus COFF are you giving me?");
+            InvertedPageTable.machine = liveMachine;
+            return;
+        }
+        final VMProcess2 process = new VMProcess2();
+        InvertedPageTable.addCoff(process, 8);
+        Lib.assertTrue(null != InvertedPageTable.findEntryForVpn(
+                process.getPid(), exe.getSection(0).getFirstVPN()));
+
+        InvertedPageTable.free(process.getPid());
+        Lib.assertTrue(null == InvertedPageTable.findEntryForVpn(
+                process.getPid(), exe.getSection(0).getFirstVPN()));
+        process.discard();
+        InvertedPageTable.machine = liveMachine;
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Faulting along a COFF section reads the pages after the third fault
+     * in ahead of the process, into free frames, and touching one of them
+     * is no fault at all.
+     */
+    public static void testReadahead() {
+        final String METHOD_NAME = "IPTTest::testReadahead";
+
+        if (0 == Readahead.getMaxWindow()) {
+            System.out.println(METHOD_NAME + " skipped: readahead is off");
+            return;
+        }
+        final CoffSection section = findSection(8);
+        Lib.assertTrue(null != section, "no section of 8 pages to read");
+        final VMProcess2 process = new VMProcess2();
+        final int pid = process.getPid();
+        InvertedPageTable.addCoff(process, 8);
+        // earlier tests may have counted under the same pid
+        final long faults = VMStats.getCount(pid, VMStats.Cause.PAGE_FAULT);
+        final long readahead = VMStats.getCount(pid, VMStats.Cause.READAHEAD);
+
+        final RecordingAlgorithm events = RecordingAlgorithm.install();
+
+        final int first = section.getFirstVPN();
+        for (int vpn = first; vpn < first + 3; vpn++) {
+            Lib.assertTrue(InvertedPageTable.handleTLBMiss(process, vpn));
+        }
+        Lib.assertTrue(faults + 3
+                == VMStats.getCount(pid, VMStats.Cause.PAGE_FAULT));
+        Lib.assertTrue(VMStats.getCount(pid, VMStats.Cause.READAHEAD)
+                > readahead, "nothing was read ahead");
+        // the policy saw the three faults, and the rest as prefetched
+        Lib.assertTrue(3 == events.faults && 3 == events.pageIns);
+        Lib.assertTrue(VMStats.getCount(pid, VMStats.Cause.READAHEAD)
+                - readahead == events.prefetches);
+        events.uninstall();
+        Lib.assertTrue(InvertedPageTable.findEntryForVpn(pid, first + 3)
+                .isValid());
+
+        Lib.assertTrue(InvertedPageTable.handleTLBMiss(process, first + 3));
+        Lib.assertTrue(faults + 3
+                == VMStats.getCount(pid, VMStats.Cause.PAGE_FAULT));
+
+        InvertedPageTable.free(pid);
+        process.discard();
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Evicting the first of a run of dirty pages writes the whole run to
+     * consecutive swap pages, and faulting it back in reads the rest of the
+     * run along with it. The policy hears of the faulted page through
+     * pageIn, and of the others only as prefetched.
+     */
+    public static void testClusterSwapIn() {
+        final String METHOD_NAME = "IPTTest::testClusterSwapIn";
+
+        final int run = Math.min(4, SwapFile.MAX_CLUSTER);
+        final CoffSection section = findSection(run);
+        Lib.assertTrue(null != section, "no section of "+run+" pages to dirty");
+        final VMProcess2 process = new VMProcess2();
+        final VMProcess2 filler = new VMProcess2();
+        final int pid = process.getPid();
+        InvertedPageTable.addCoff(process, 8);
+        InvertedPageTable.addCoff(filler, 8);
+        final long swapIns = VMStats.getCount(pid, VMStats.Cause.SWAP_IN);
+
+        final int first = section.getFirstVPN();
+        for (int i = 0; i < run; i++) {
+            InvertedPageTable.setVirtualWritten(process, first + i);
+        }
+        for (int i = 0; i < run; i++) {
+            Lib.assertTrue(InvertedPageTable.findEntryForVpn(pid, first + i)
+                    .isDirty(), "page "+i+" of the run is not dirty");
+        }
+
+        // fill memory, then fault in the filler until the run has been
+        // evicted, its first page before any other, so that the write
+        // takes the rest of the run along
+        final List<Integer> hoard = new ArrayList<Integer>();
+        for (int ppn = CoreMap.malloc(); -1 != ppn; ppn = CoreMap.malloc()) {
+            hoard.add(ppn);
+        }
+        final RecordingAlgorithm events = RecordingAlgorithm.install();
+        events.script(new int[] {
+            InvertedPageTable.findEntryForVpn(pid, first).getPpn() });
+        final int fillerPages = countPages() + 8;
+        int fillerVpn = 0;
+        while (! isInSwap(pid, first, run)) {
+            Lib.assertTrue(fillerVpn < fillerPages, "the run was never evicted");
+            Lib.assertTrue(InvertedPageTable.handleTLBMiss(filler, fillerVpn++));
+        }
+        final int spn = InvertedPageTable.findEntryForVpn(pid, first)
+                .getSwapPageNumber();
+        for (int i = 1; i < run; i++) {
+            Lib.assertTrue(spn + i == InvertedPageTable.findEntryForVpn(
+                    pid, first + i).getSwapPageNumber(),
+                    "the run was not written to consecutive swap pages");
+        }
+        // give back what is left of the hoard; the policy may have taken
+        // some of it, since those frames looked unused
+        for (int ppn : hoard) {
+            if (CoreMap.containsPpn(ppn)
+                    && null == InvertedPageTable.findEntryForPpn(ppn)) {
+                CoreMap.free(ppn);
+            }
+        }
+        // and leave free frames for the rest of the run to be read into
+        InvertedPageTable.free(filler.getPid());
+
+        final int faults = events.faults;
+        final int pageIns = events.pageIns;
+        events.prefetchedVpns.clear();
+        Lib.assertTrue(InvertedPageTable.handleTLBMiss(process, first));
+        Lib.assertTrue(faults + 1 == events.faults
+                && pageIns + 1 == events.pageIns);
+        for (int i = 1; i < run; i++) {
+            Lib.assertTrue(InvertedPageTable.findEntryForVpn(pid, first + i)
+                    .isValid(), "page "+i+" of the run was not read along");
+            Lib.assertTrue(events.prefetchedVpns.contains(first + i));
+        }
+        Lib.assertTrue(swapIns + run
+                == VMStats.getCount(pid, VMStats.Cause.SWAP_IN));
+        events.uninstall();
+
+        InvertedPageTable.free(pid);
+        filler.discard();
+        process.discard();
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Two processes running the same executable share the frame of a data
+     * page, until one of them writes it and gets a copy; the other then
+     * writes the frame itself, since it has it to itself.
+     */
+    public static void testCopyOnWrite() {
+        final String METHOD_NAME = "IPTTest::testCopyOnWrite";
+
+        if (! Config.getBoolean("VMKernel.sharePages", true)) {
+            System.out.println(METHOD_NAME + " skipped: sharing is off");
+            return;
+        }
+        final CoffSection section = findSection(1);
+        Lib.assertTrue(null != section, "no data section to share");
+        final VMProcess2 first = new VMProcess2(METHOD_NAME);
+        final VMProcess2 second = new VMProcess2(METHOD_NAME);
+        InvertedPageTable.addCoff(first, 8);
+        InvertedPageTable.addCoff(second, 8);
+        final long sharedMaps
+                = VMStats.getCount(second.getPid(), VMStats.Cause.SHARED_MAP);
+        final long firstCopies
+                = VMStats.getCount(first.getPid(), VMStats.Cause.COW_COPY);
+        final long secondCopies
+                = VMStats.getCount(second.getPid(), VMStats.Cause.COW_COPY);
+
+        final int vpn = section.getFirstVPN();
+        Lib.assertTrue(InvertedPageTable.handleTLBMiss(first, vpn));
+        Lib.assertTrue(InvertedPageTable.handleTLBMiss(second, vpn));
+        final SwapAwareTranslationEntry original
+                = InvertedPageTable.findEntryForVpn(first.getPid(), vpn);
+        final SwapAwareTranslationEntry shared
+                = InvertedPageTable.findEntryForVpn(second.getPid(), vpn);
+        final int ppn = original.getPpn();
+        Lib.assertTrue(ppn == shared.getPpn());
+        Lib.assertTrue(sharedMaps + 1 == VMStats.getCount(second.getPid(),
+                VMStats.Cause.SHARED_MAP));
+        Lib.assertTrue(original.isCopyOnWrite() && shared.isCopyOnWrite());
+
+        final RecordingAlgorithm events = RecordingAlgorithm.install();
+        Lib.assertTrue(InvertedPageTable.handleWriteFault(second, vpn));
+        Lib.assertTrue(1 == events.faults && 1 == events.pageIns);
+        Lib.assertTrue(secondCopies + 1 == VMStats.getCount(second.getPid(),
+                VMStats.Cause.COW_COPY));
+        Lib.assertTrue(ppn != shared.getPpn());
+        Lib.assertTrue(! shared.isCopyOnWrite());
+        Lib.assertTrue(Arrays.equals(
+                readFrame(ppn), readFrame(shared.getPpn())));
+
+        Lib.assertTrue(InvertedPageTable.handleWriteFault(first, vpn));
+        Lib.assertTrue(firstCopies == VMStats.getCount(first.getPid(),
+                VMStats.Cause.COW_COPY));
+        Lib.assertTrue(ppn == original.getPpn());
+        Lib.assertTrue(! original.isCopyOnWrite());
+        Lib.assertTrue(1 == events.pageIns);
+        events.uninstall();
+
+        InvertedPageTable.free(second.getPid());
+        InvertedPageTable.free(first.getPid());
+        second.discard();
+        first.discard();
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Stack pages all start out on the one zero page, and one which is
+     * written gets a zeroed frame of its own.
+     */
+    public static void testZeroPage() {
+        final String METHOD_NAME = "IPTTest::testZeroPage";
+
+        if (! Config.getBoolean("VMKernel.sharePages", true)) {
+            System.out.println(METHOD_NAME + " skipped: sharing is off");
+            return;
+        }
+        final VMProcess2 process = new VMProcess2();
+        final int pid = process.getPid();
+        InvertedPageTable.addCoff(process, 8);
+        final long sharedMaps
+                = VMStats.getCount(pid, VMStats.Cause.SHARED_MAP);
+        final long copies = VMStats.getCount(pid, VMStats.Cause.COW_COPY);
+        final int stack = countPages();
+
+        Lib.assertTrue(InvertedPageTable.handleTLBMiss(process, stack));
+        Lib.assertTrue(InvertedPageTable.handleTLBMiss(process, stack + 1));
+        final SwapAwareTranslationEntry top
+                = InvertedPageTable.findEntryForVpn(pid, stack);
+        final SwapAwareTranslationEntry next
+                = InvertedPageTable.findEntryForVpn(pid, stack + 1);
+        final int zeroPpn = top.getPpn();
+        Lib.assertTrue(zeroPpn == next.getPpn());
+        Lib.assertTrue(sharedMaps + 1
+                == VMStats.getCount(pid, VMStats.Cause.SHARED_MAP));
+        final byte[] zeros = new byte[InvertedPageTable.machine.getPageSize()];
+        Lib.assertTrue(Arrays.equals(zeros, readFrame(zeroPpn)));
+
+        Lib.assertTrue(InvertedPageTable.handleWriteFault(process, stack + 1));
+        Lib.assertTrue(copies + 1
+                == VMStats.getCount(pid, VMStats.Cause.COW_COPY));
+        Lib.assertTrue(zeroPpn != next.getPpn());
+        Lib.assertTrue(Arrays.equals(zeros,
+                readFrame(next.getPpn())));
+
+        InvertedPageTable.free(pid);
+        process.discard();
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * @return true if all count pages of pid from vpn on are out in swap.
+     */
+    private static boolean isInSwap(int pid, int vpn, int count) {
+        for (int i = 0; i < count; i++) {
+            final SwapAwareTranslationEntry entry
+                    = InvertedPageTable.findEntryForVpn(pid, vpn + i);
+            if (entry.isValid() || ! entry.isInSwap()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of pages in the sections of exe, which is also
+     * the first page of the stack.
+     */
+    private static int countPages() {
+        int pages = 0;
+        for (int i = 0; i < exe.getNumSections(); i++) {
+            pages += exe.getSection(i).getLength();
+        }
+        return pages;
+    }
+
+    /**
+     * Two processes sharing their pages loop over as much memory as there
+     * is, under each replacement policy in turn, while short-lived ones
+     * push their oldest pages out and exit. Each lap then faults the lost
+     * pages back in, with free frames to read ahead into, so pages come
+     * back by readahead, by swap clusters and by copy-on-write as well as
+     * by plain faults, and every page must be there when it is touched.
+     * This must run before any real process does, since the policy in use
+     * misses what happens meanwhile.
+     */
+    public static void testPolicies() {
+        final String METHOD_NAME = "IPTTest::testPolicies";
+
+        final Algorithm original = InvertedPageTable.algorithm;
+        final int numPhysPages = InvertedPageTable.machine.getNumPhysPages();
+        final int pages = Math.min(countPages() + 8,
+                numPhysPages + numPhysPages / 2);
+        for (String policy : POLICIES) {
+            InvertedPageTable.algorithm = (Algorithm) Lib.constructObject(policy);
+            final VMProcess2 first = new VMProcess2(METHOD_NAME);
+            final VMProcess2 second = new VMProcess2(METHOD_NAME);
+            InvertedPageTable.addCoff(first, 8);
+            InvertedPageTable.addCoff(second, 8);
+            for (int lap = 0; lap < 6; lap++) {
+                final VMProcess2 intruder = new VMProcess2();
+                InvertedPageTable.addCoff(intruder, 8);
+                for (int vpn = 0; vpn < pages / 2; vpn++) {
+                    touch(intruder, vpn, false);
+                }
+                InvertedPageTable.free(intruder.getPid());
+                intruder.discard();
+                for (int vpn = 0; vpn < pages; vpn++) {
+                    touch(first, vpn, true);
+                    touch(second, vpn, 1 == lap % 2);
+                }
+            }
+            InvertedPageTable.free(second.getPid());
+            InvertedPageTable.free(first.getPid());
+            second.discard();
+            first.discard();
+        }
+        InvertedPageTable.algorithm = original;
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Reads, or writes if it may, one page of a process, and checks that it
+     * is then resident.
+     */
+    private static void touch(VMProcess2 process, int vpn, boolean write) {
+        final SwapAwareTranslationEntry entry
+                = InvertedPageTable.findEntryForVpn(process.getPid(), vpn);
+        if (write && ! entry.isReadOnly()) {
+            InvertedPageTable.setVirtualWritten(process, vpn);
+        } else {
+            Lib.assertTrue(InvertedPageTable.handleTLBMiss(process, vpn));
+        }
+        Lib.assertTrue(entry.isValid(),
+                "page "+vpn+" of pid="+process.getPid()+" is not resident");
+    }
+
+    private static final String[] POLICIES = {
+        "nachos.vm.ClockAlgorithm", "nachos.vm.ClockProAlgorithm",
+        "nachos.vm.LRUKAlgorithm", "nachos.vm.ARCAlgorithm",
+        "nachos.vm.TwoQueueAlgorithm", "nachos.vm.WSClockAlgorithm",
+        "nachos.vm.RandomAlgorithm"
+    };
+
+    private static byte[] readFrame(int ppn) {
+        final int pageSize = InvertedPageTable.machine.getPageSize();
+        byte[] frame = new byte[pageSize];
+        InvertedPageTable.machine.readMemory(ppn * pageSize, frame, 0, pageSize);
+        return frame;
+    }
+
+    /**
+     * @return the first initialized section of exe which may be written and
+     * is at least minLength pages long, or null.
+     */
+    private static CoffSection findSection(int minLength) {
+        for (int i = 0; i < exe.getNumSections(); i++) {
+            final CoffSection section = exe.getSection(i);
+            if (section.isInitialzed() && !section.isReadOnly()
+                    && section.getLength() >= minLength) {
+                return section;
+            }
+        }
+        return null;
+    }
+
+    private static boolean openExe(String filename) {
+        boolean createIt = false;
+        coffFile = Machine.stubFileSystem().open(filename, createIt);
+        try {
+            exe = new Coff(coffFile);
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Passes every event on to the policy in use, counting them, and checks
+     * that each page brought in for a fault follows its fault.
+     */
+    private static class RecordingAlgorithm implements Algorithm {
+        /** Puts a recorder in front of the policy in use. */
+        static RecordingAlgorithm install() {
+            final RecordingAlgorithm recorder
+                    = new RecordingAlgorithm(InvertedPageTable.algorithm);
+            InvertedPageTable.algorithm = recorder;
+            return recorder;
+        }
+
+        private RecordingAlgorithm(Algorithm policy) {
+            this.policy = policy;
+        }
+
+        /** Puts the policy back. */
+        void uninstall() {
+            InvertedPageTable.algorithm = policy;
+        }
+
+        /**
+         * Makes the next victims the given frames, in order, before we go
+         * back to asking the policy.
+         */
+        void script(int[] victims) {
+            this.victims = victims;
+            nextVictim = 0;
+        }
+
+        @Override
+        public int findVictim() {
+            if (null != victims && nextVictim < victims.length) {
+                return victims[nextVictim++];
+            }
+            return policy.findVictim();
+        }
+
+        @Override
+        public void faulted(int pid, int vpn) {
+            faults++;
+            pending = true;
+            policy.faulted(pid, vpn);
+        }
+
+        @Override
+        public void pageIn(int ppn, int pid, int vpn) {
+            Lib.assertTrue(pending, "page "+vpn+" came in without a fault");
+            pending = false;
+            pageIns++;
+            policy.pageIn(ppn, pid, vpn);
+        }
+
+        @Override
+        public void prefetched(int ppn, int pid, int vpn) {
+            prefetches++;
+            prefetchedVpns.add(vpn);
+            policy.prefetched(ppn, pid, vpn);
+        }
+
+        @Override
+        public void referenced(int ppn) {
+            policy.referenced(ppn);
+        }
+
+        @Override
+        public void dirtied(int ppn) {
+            policy.dirtied(ppn);
+        }
+
+        @Override
+        public void evicted(int ppn) {
+            policy.evicted(ppn);
+        }
+
+        private final Algorithm policy;
+        /** Whether a fault is still waiting for its page. */
+        private boolean pending = false;
+        private int[] victims = null;
+        private int nextVictim;
+        int faults = 0;
+        int pageIns = 0;
+        int prefetches = 0;
+        final List<Integer> prefetchedVpns = new ArrayList<Integer>();
+    }
+
+    /**
+     * A process which is never run, whose pages come from exe. It must be
+     * freed from the table and discarded once the test is done with it.
+     */
+    private static class VMProcess2 extends VMProcess {
+        VMProcess2() {
+            this(null);
+        }
+        /**
+         * @param executableName the name the pages of exe are shared under,
+         * or null for them not to be shared.
+         */
+        VMProcess2(String executableName) {
+            this.executableName = executableName;
+        }
+        public Coff getCoff() {
+            return exe;
+        }
+        @Override
+        public String getProgramName() {
+            return executableName;
+        }
+        private final String executableName;
+    }
+}
@@ -0,0 +1,194 @@
+package nachos.vm;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import nachos.machine.Config;
+import nachos.machine.Machine;
+
+/**
+ * LRU-K replacement, selected with <tt>Algorithm = nachos.vm.LRUKAlgorithm</tt>.
+ * We remember the times of the last K references to every resident page
+ * and evict the page whose K-th most recent reference is the oldest. A page
+ * which has not yet been referenced K times counts as infinitely old, so
+ * the pages of a one-pass scan go before anything that has proven itself.
+ * K comes from <tt>LRUKAlgorithm.k</tt> and defaults to 2.
+ * <p>
+ * Time is measured in page faults. References which arrive before the next
+ * fault are correlated and count only once, which keeps a page from
+ * collecting its K references in one burst right after it was loaded.
+ * <p>
+ * The history of the pages we evict is retained for a while, as many pages
+ * as there are frames, and handed back if the page is faulted in again.
+ * Without it a page could never collect K references between being loaded
+ * and being chosen again, and two pages needed by the same instruction would
+ * keep evicting each other.
+ * <p>
+ * The frames are kept in a tree ordered as we choose victims, free frames
+ * first, so neither choosing a victim nor finding a retained history scans
+ * every frame.
+ */
+public class LRUKAlgorithm extends AbstractAlgorithm
+{
+    public LRUKAlgorithm() {
+        k = Math.max(1, Config.getInteger("LRUKAlgorithm.k", 2));
+    }
+
+    @Override
+    public int findVictim() {
+        InvertedPageTable.syncAllProcTlb();
+        final int numPhysPages = Machine.processor().getNumPhysPages();
+        init(numPhysPages);
+        final int victim = victims.first();
+        if (resident[victim]) {
+            this.victim = victim;
+        }
+        return victim;
+    }
+
+    @Override
+    public void faulted(int pid, int vpn) {
+        now++;
+    }
+
+    @Override
+    public void pageIn(int ppn, int pid, int vpn) {
+        init(Machine.processor().getNumPhysPages());
+        victims.remove(ppn);
+        resident[ppn] = true;
+        frameKeys[ppn] = VirtualPageHash.makeKey(pid, vpn);
+        final Integer retained = retainedSlots.remove(frameKeys[ppn]);
+        if (null == retained) {
+            Arrays.fill(history, ppn * k, ppn * k + k, NEVER);
+        } else {
+            System.arraycopy(retainedHistory, retained * k, history, ppn * k, k);
+            retainedKeys[retained] = NO_KEY;
+        }
+        victims.add(ppn);
+        referenced(ppn);
+    }
+
+    @Override
+    public void referenced(int ppn) {
+        if (null == resident || ! resident[ppn]) {
+            return;
+        }
+        final int base = ppn * k;
+        if (history[base] == now) {
+            // correlated with the reference we already recorded
+            return;
+        }
+        victims.remove(ppn);
+        System.arraycopy(history, base, history, base + 1, k - 1);
+        history[base] = now;
+        victims.add(ppn);
+    }
+
+    @Override
+    public void evicted(int ppn) {
+        if (null == resident) {
+            return;
+        }
+        victims.remove(ppn);
+        resident[ppn] = false;
+        victims.add(ppn);
+        if (ppn != victim) {
+            // the process exited, its pages will not be back
+            return;
+        }
+        victim = -1;
+        final long key = frameKeys[ppn];
+        if (NO_KEY != retainedKeys[retainedNext]) {
+            retainedSlots.remove(retainedKeys[retainedNext]);
+        }
+        // a frame shared copy-on-write keeps the key of the first page
+        // loaded into it, so the same key can be retained twice
+        final Integer old = retainedSlots.put(key, retainedNext);
+        if (null != old) {
+            retainedKeys[old] = NO_KEY;
+        }
+        retainedKeys[retainedNext] = key;
+        System.arraycopy(history, ppn * k, retainedHistory, retainedNext * k, k);
+        retainedNext = (retainedNext + 1) % retainedKeys.length;
+    }
+
+    private void init(int numPhysPages) {
+        if (null != resident && resident.length == numPhysPages) {
+            return;
+        }
+        resident = new boolean[numPhysPages];
+        frameKeys = new long[numPhysPages];
+        history = new long[numPhysPages * k];
+        Arrays.fill(history, NEVER);
+        retainedKeys = new long[numPhysPages];
+        Arrays.fill(retainedKeys, NO_KEY);
+        retainedHistory = new long[numPhysPages * k];
+        retainedSlots = new HashMap<Long, Integer>();
+        retainedNext = 0;
+        victim = -1;
+        victims = new TreeSet<Integer>(new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareFrames(a, b);
+            }
+        });
+        for (int ppn = 0; ppn < numPhysPages; ppn++) {
+            victims.add(ppn);
+        }
+    }
+
+    /**
+     * Orders frames as we choose victims: free frames first, then the
+     * oldest K-th reference, then the oldest last reference, then the
+     * lowest ppn. A frame must leave {@link #victims} while any of these
+     * change.
+     */
+    private int compareFrames(int a, int b) {
+        if (resident[a] != resident[b]) {
+            return resident[a] ? 1 : -1;
+        }
+        if (resident[a]) {
+            final int byKth = compare(history[a * k + k - 1],
+                    history[b * k + k - 1]);
+            if (0 != byKth) {
+                return byKth;
+            }
+            final int byLast = compare(history[a * k], history[b * k]);
+            if (0 != byLast) {
+                return byLast;
+            }
+        }
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static int compare(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    /** Older than any real reference. */
+    private static final long NEVER = Long.MIN_VALUE;
+    private static final long NO_KEY = -1L;
+    private final int k;
+    /** The page fault count, which serves as our clock. */
+    private long now = 0;
+    private boolean[] resident;
+    /**
+     * The last K reference times of each frame, most recent first:
+     * frame ppn owns history[ppn*K] through history[ppn*K + K-1].
+     */
+    private long[] history;
+    /** The (pid,vpn) key of the page in each frame. */
+    private long[] frameKeys;
+    /** The pages whose history we retain, oldest first from retainedNext. */
+    private long[] retainedKeys;
+    private long[] retainedHistory;
+    /** The slot retaining the history of each page we retain. */
+    private Map<Long, Integer> retainedSlots;
+    private int retainedNext;
+    /** The frame we last chose, so its eviction retains its history. */
+    private int victim = -1;
+    /** Every frame, the next victim first. */
+    private TreeSet<Integer> victims;
+}
@@ -1,5 +1,7 @@
 package nachos.vm;
 
+import java.nio.ByteBuffer;
+
 import nachos.machine.Machine;
 import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
@@ -18,6 +20,26 @@ class LiveMachine implements IMachine
         return Machine.processor().getMemory();
     }
 
+    @Override
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+        Machine.processor().readMemory(paddr, data, offset, length);
+    }
+
+    @Override
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+        Machine.processor().writeMemory(paddr, data, offset, length);
+    }
+
+    @Override
+    public void zeroMemory(int paddr, int length) {
+        Machine.processor().zeroMemory(paddr, length);
+    }
+
+    @Override
+    public ByteBuffer getMemoryBuffer(int paddr, int length) {
+        return Machine.processor().getMemoryBuffer(paddr, length);
+    }
+
     @Override
     public int getPageSize() {
         return Processor.pageSize;
@@ -43,5 +65,45 @@ class LiveMachine implements IMachine
         Machine.processor().writeTLBEntry(i, entry);
     }
 
+    @Override
+    public int getTlbWays() {
+        return Machine.processor().getTLBWays();
+    }
+
+    @Override
+    public int getTlbSet(int asid, int vpn) {
+        return Machine.processor().getTLBSet(asid, vpn);
+    }
+
+    @Override
+    public void readTlbEntry(int i, TranslationEntry entry) {
+        Machine.processor().readTLBEntry(i, entry);
+    }
+
+    @Override
+    public void readTlb(TranslationEntry[] entries) {
+        Machine.processor().readTLB(entries);
+    }
+
+    @Override
+    public int findTlbEntry(int asid, int vpn) {
+        return Machine.processor().findTLBEntry(asid, vpn);
+    }
+
+    @Override
+    public void invalidateTlbEntry(int i) {
+        Machine.processor().invalidateTLBEntry(i);
+    }
+
+    @Override
+    public void invalidateTlb() {
+        Machine.processor().invalidateTLB();
+    }
+
+    @Override
+    public void setAsid(int asid) {
+        Machine.processor().setASID(asid);
+    }
+
     private static final LiveMachine self = new LiveMachine();
 }
@@ -0,0 +1,106 @@
+package nachos.vm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+
+/**
+ * Tests the physical memory of the real machine through {@link LiveMachine},
+ * and the swap file I/O which goes straight into and out of it, whichever
+ * <tt>Processor.memory</tt> backs it. It uses the last two frames, which
+ * nobody else does before the first process starts.
+ */
+public class LiveMachineTest {
+    public static void selfTest() {
+        final IMachine machine = LiveMachine.getInstance();
+        if (machine.getNumPhysPages() < 2) {
+            System.out.println("LiveMachineTest skipped: too few frames");
+            return;
+        }
+        testMemory(machine);
+        testSwap(machine);
+    }
+
+    /**
+     * What is written to memory can be read back, through the bulk calls,
+     * a buffer, or (on the heap) the array itself.
+     */
+    public static void testMemory(IMachine machine) {
+        final String METHOD_NAME = "LiveMachineTest::testMemory";
+
+        final int pageSize = machine.getPageSize();
+        final int paddr = (machine.getNumPhysPages() - 1) * pageSize;
+        final byte[] page = pattern(pageSize, 1);
+        machine.writeMemory(paddr, page, 0, pageSize);
+        Lib.assertTrue(Arrays.equals(page, readPage(machine, paddr)));
+
+        final ByteBuffer buffer = machine.getMemoryBuffer(paddr, pageSize);
+        Lib.assertTrue(pageSize == buffer.remaining());
+        Lib.assertTrue(page[7] == buffer.get(7));
+        buffer.put(7, (byte) ~page[7]);
+        page[7] = (byte) ~page[7];
+        Lib.assertTrue(Arrays.equals(page, readPage(machine, paddr)));
+
+        // all but the first and last bytes
+        machine.zeroMemory(paddr + 1, pageSize - 2);
+        final byte[] zeroed = new byte[pageSize];
+        zeroed[0] = page[0];
+        zeroed[pageSize - 1] = page[pageSize - 1];
+        Lib.assertTrue(Arrays.equals(zeroed, readPage(machine, paddr)));
+
+        if ("heap".equals(Config.getString("Processor.memory", "heap"))) {
+            Lib.assertTrue(page[0] == machine.getMemory()[paddr]);
+        }
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Frames written to swap come back the same, one at a time or as a
+     * cluster read into other frames.
+     */
+    public static void testSwap(IMachine machine) {
+        final String METHOD_NAME = "LiveMachineTest::testSwap";
+
+        final int pageSize = machine.getPageSize();
+        final int last = machine.getNumPhysPages() - 1;
+        final byte[] first = pattern(pageSize, 3);
+        final byte[] second = pattern(pageSize, 5);
+        machine.writeMemory(last * pageSize, first, 0, pageSize);
+        machine.writeMemory((last - 1) * pageSize, second, 0, pageSize);
+
+        final int spn = SwapFile.rollOut(last);
+        Lib.assertTrue(-1 != spn, "unable to write a frame");
+        machine.zeroMemory(last * pageSize, pageSize);
+        Lib.assertTrue(SwapFile.rollIn(spn, last));
+        Lib.assertTrue(Arrays.equals(first, readPage(machine, last * pageSize)));
+        SwapFile.free(new int[] { spn });
+
+        final int batch = SwapFile.rollOutBatch(new int[] { last, last - 1 });
+        Lib.assertTrue(-1 != batch, "unable to write a batch");
+        Lib.assertTrue(SwapFile.rollInCluster(batch,
+                new int[] { last - 1, last }));
+        Lib.assertTrue(Arrays.equals(first,
+                readPage(machine, (last - 1) * pageSize)));
+        Lib.assertTrue(Arrays.equals(second,
+                readPage(machine, last * pageSize)));
+        SwapFile.free(new int[] { batch, batch + 1 });
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /** @return a page whose bytes are all different from their neighbours. */
+    private static byte[] pattern(int pageSize, int seed) {
+        final byte[] page = new byte[pageSize];
+        for (int i = 0; i < pageSize; i++) {
+            page[i] = (byte) (seed + i * 7);
+        }
+        return page;
+    }
+
+    private static byte[] readPage(IMachine machine, int paddr) {
+        final byte[] page = new byte[machine.getPageSize()];
+        machine.readMemory(paddr, page, 0, page.length);
+        return page;
+    }
+}
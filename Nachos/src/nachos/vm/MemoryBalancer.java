@@ -0,0 +1,293 @@
+package nachos.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * Keeps the sum of the processes' working sets within physical memory, so
+ * that many processes together do not thrash. For every process it keeps a
+ * {@link WorkingSet}: the distinct pages the process touched, which we learn
+ * from the used bits {@link InvertedPageTable} gathers from the TLB, and the
+ * page faults it took, over intervals of <tt>MemoryBalancer.interval</tt>
+ * page faults (as many as there are physical pages by default).
+ * <p>
+ * At the end of each interval every process gets a frame quota: its working
+ * set, plus room to grow if it took more than its share of the page faults
+ * (the page fault frequency rule). While a process holds more frames than its
+ * quota, its unreferenced frames are evicted ahead of what the replacement
+ * {@link Algorithm} would choose. Once the quotas have added up to more than
+ * physical memory two intervals in a row, the process with the lowest
+ * scheduling priority (the youngest, among equals) is suspended at the end
+ * of each interval: its frames go first, and at its next TLB miss it sleeps
+ * for <tt>MemoryBalancer.suspendTicks</tt> ticks, leaving the others room to
+ * run. Only processes which faulted during the interval count as competing
+ * for memory, and the last one of them is never suspended.
+ * <tt>VMKernel.memoryBalancer = false</tt> turns all of this off.
+ * <p>
+ * Everything but {@link #admit(int)} is called by {@link InvertedPageTable}
+ * with its lock held, or with interrupts disabled, and never blocks.
+ */
+public class MemoryBalancer
+{
+    /**
+     * Notes a page fault taken by pid, on its own thread.
+     */
+    public static void faulted(int pid) {
+        if (! ENABLED) {
+            return;
+        }
+        final WorkingSet ws = findOrCreate(pid);
+        ws.faulted();
+        ws.setThread(KThread.currentThread());
+        if (++intervalFaults >= getInterval()) {
+            rebalance();
+        }
+    }
+
+    /**
+     * Notes that pid touched the page living at ppn.
+     */
+    public static void referenced(int ppn, int pid) {
+        if (! ENABLED || ppn < 0) {
+            return;
+        }
+        if (ppn >= frameEpochs.length) {
+            frameEpochs = Arrays.copyOf(frameEpochs,
+                    Math.max(ppn + 1, 2 * frameEpochs.length));
+        }
+        if (frameEpochs[ppn] != epoch) {
+            frameEpochs[ppn] = epoch;
+            findOrCreate(pid).touched();
+        }
+    }
+
+    /**
+     * Notes that a page of pid was loaded into ppn, which counts as a touch.
+     */
+    public static void pageIn(int ppn, int pid) {
+        if (! ENABLED) {
+            return;
+        }
+        findOrCreate(pid).pageIn();
+        referenced(ppn, pid);
+    }
+
+    /**
+     * Notes that pid no longer holds the frame at ppn.
+     */
+    public static void evicted(int ppn, int pid) {
+        if (! ENABLED) {
+            return;
+        }
+        final WorkingSet ws = PROCESSES.get(pid);
+        if (null != ws) {
+            ws.evicted();
+        }
+    }
+
+    /**
+     * Notes that a shared frame now belongs to another of its sharers.
+     */
+    public static void transferred(int fromPid, int toPid) {
+        if (! ENABLED || fromPid == toPid) {
+            return;
+        }
+        final WorkingSet from = PROCESSES.get(fromPid);
+        if (null != from) {
+            from.evicted();
+        }
+        findOrCreate(toPid).pageIn();
+    }
+
+    /**
+     * Forgets pid, which is exiting.
+     */
+    public static void exited(int pid) {
+        if (! ENABLED) {
+            return;
+        }
+        PROCESSES.remove(pid);
+    }
+
+    /**
+     * @return true if the frames of pid should be evicted ahead of others.
+     */
+    public static boolean isOverQuota(int pid) {
+        final WorkingSet ws = PROCESSES.get(pid);
+        return null != ws && ws.isOverQuota();
+    }
+
+    /**
+     * @return true if it is worth looking for frames of a process over its
+     * quota, rather than asking the replacement algorithm straight away.
+     */
+    public static boolean hasOverQuota() {
+        if (! ENABLED || PROCESSES.size() < 2) {
+            return false;
+        }
+        for (WorkingSet ws : PROCESSES.values()) {
+            if (ws.isOverQuota()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called by a process about to handle a TLB miss, while it holds no
+     * locks. If the process has been suspended, this sleeps until its
+     * suspension is over.
+     */
+    public static void admit(int pid) {
+        if (! ENABLED) {
+            return;
+        }
+        // no need to disable interrupts just to look: only a timer interrupt
+        // could switch threads on us, and nothing here enables them. This
+        // runs on every TLB miss, and restoring interrupts costs a tick.
+        final WorkingSet ws = PROCESSES.get(pid);
+        if (null == ws || ! ws.isSuspended()) {
+            return;
+        }
+        debug("pid="+pid+" sleeps for "+SUSPEND_TICKS+" ticks");
+        ThreadedKernel.alarm.waitUntil(SUSPEND_TICKS);
+        boolean intStatus = Machine.interrupt().disable();
+        ws.setSuspended(false);
+        Machine.interrupt().restore(intStatus);
+        debug("pid="+pid+" resumed");
+    }
+
+    /**
+     * @return how many times a process has been suspended so far.
+     */
+    public static int getSuspensions() {
+        return suspensions;
+    }
+
+    /**
+     * @return the page faults taken by pid so far, or 0 if we do not know it.
+     */
+    public static int getFaults(int pid) {
+        final WorkingSet ws = PROCESSES.get(pid);
+        return null == ws ? 0 : ws.getTotalFaults();
+    }
+
+    private static void rebalance() {
+        // a process which took no fault is not competing for memory (it may
+        // well be waiting for one which is), so only the others count
+        int competing = 0;
+        for (WorkingSet ws : PROCESSES.values()) {
+            if (ws.getFaults() > 0) {
+                competing++;
+            }
+        }
+        final int fairShare = intervalFaults / Math.max(1, competing);
+        int demand = 0;
+        int running = 0;
+        for (WorkingSet ws : PROCESSES.values()) {
+            ws.endInterval(fairShare);
+            debug("end of interval "+epoch+": "+ws);
+            if (isRunning(ws)) {
+                demand += ws.getQuota();
+                running++;
+            }
+        }
+        if (running > 1 && demand > InvertedPageTable.machine.getNumPhysPages()) {
+            overloaded++;
+        } else {
+            overloaded = 0;
+        }
+        // a single interval is no sign of thrashing; a parent faulting while
+        // it starts a child, only to wait for it, looks just the same
+        if (overloaded > 1) {
+            // the scheduler wants interrupts disabled to tell us priorities;
+            // we only pay for that (a tick) when we suspend someone
+            boolean intStatus = Machine.interrupt().disable();
+            WorkingSet lowest = null;
+            for (WorkingSet ws : PROCESSES.values()) {
+                if (isRunning(ws)
+                        && (null == lowest || isLowerPriority(ws, lowest))) {
+                    lowest = ws;
+                }
+            }
+            debug("demand of "+demand+" frames; suspending pid="+lowest.getPid());
+            lowest.setSuspended(true);
+            suspensions++;
+            Machine.interrupt().restore(intStatus);
+        }
+        intervalFaults = 0;
+        epoch++;
+    }
+
+    /** @return true if ws competed for memory in the last interval. */
+    private static boolean isRunning(WorkingSet ws) {
+        return ! ws.isSuspended() && ws.getLastFaults() > 0;
+    }
+
+    private static boolean isLowerPriority(WorkingSet a, WorkingSet b) {
+        final int pa = getPriority(a);
+        final int pb = getPriority(b);
+        if (pa != pb) {
+            return pa < pb;
+        }
+        return a.getPid() > b.getPid();
+    }
+
+    private static int getPriority(WorkingSet ws) {
+        if (null == ws.getThread() || null == ThreadedKernel.scheduler) {
+            return 0;
+        }
+        return ThreadedKernel.scheduler.getPriority(ws.getThread());
+    }
+
+    private static WorkingSet findOrCreate(int pid) {
+        WorkingSet result = PROCESSES.get(pid);
+        if (null == result) {
+            result = new WorkingSet(pid);
+            PROCESSES.put(pid, result);
+        }
+        return result;
+    }
+
+    /** @return the page faults taken so far in the current interval. */
+    static int getIntervalFaults() {
+        return intervalFaults;
+    }
+
+    /** @return how many page faults make up an interval. */
+    static int getInterval() {
+        if (0 == interval) {
+            interval = Math.max(1, Config.getInteger("MemoryBalancer.interval",
+                    InvertedPageTable.machine.getNumPhysPages()));
+        }
+        return interval;
+    }
+
+    private static void debug(String message) {
+        Lib.debug(dbgFlag, "DEBUG:MemoryBalancer:"+message);
+    }
+
+    private static final boolean ENABLED
+            = Config.getBoolean("VMKernel.memoryBalancer", true);
+    private static final int SUSPEND_TICKS
+            = Math.max(1, Config.getInteger("MemoryBalancer.suspendTicks", 20000));
+    private static final Map<Integer, WorkingSet>
+        PROCESSES = new HashMap<Integer, WorkingSet>();
+    /** The interval in which each physical page was last touched. */
+    private static int[] frameEpochs = new int[0];
+    /** Numbers the intervals, starting at 1 so that no frame is stamped. */
+    private static int epoch = 1;
+    private static int interval;
+    private static int intervalFaults;
+    /** How many intervals in a row the quotas did not fit in memory. */
+    private static int overloaded;
+    private static int suspensions;
+    private static final char dbgFlag = 'B';
+}
@@ -0,0 +1,105 @@
+package nachos.vm;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * Tests when {@link MemoryBalancer} suspends a process and how the process
+ * comes back. The processes are made up: the test reports their faults and
+ * touches itself, under pids no real process will have by the time it runs.
+ */
+public class MemoryBalancerTest {
+    public static void selfTest() {
+        if (! Config.getBoolean("VMKernel.memoryBalancer", true)) {
+            System.out.println("MemoryBalancerTest skipped: the balancer is off");
+            return;
+        }
+        testSuspendAndResume();
+    }
+
+    /**
+     * Once two processes have wanted more frames than there are two
+     * intervals in a row, the younger one is suspended: all its frames are
+     * over quota, and its next TLB miss sleeps. The last process left
+     * running is never suspended.
+     */
+    public static void testSuspendAndResume() {
+        final String METHOD_NAME = "MemoryBalancerTest::testSuspendAndResume";
+
+        final int frames = InvertedPageTable.machine.getNumPhysPages();
+        final int interval = MemoryBalancer.getInterval();
+        if (interval < 2) {
+            System.out.println(METHOD_NAME + " skipped: the interval is too short");
+            return;
+        }
+        finishInterval();
+        final int suspensions = MemoryBalancer.getSuspensions();
+
+        // big wants every frame but one, small holds that one
+        for (int i = 0; i < 2; i++) {
+            overload(frames, interval);
+            Lib.assertTrue(0 == MemoryBalancer.getIntervalFaults());
+        }
+        Lib.assertTrue(suspensions + 1 == MemoryBalancer.getSuspensions());
+        Lib.assertTrue(MemoryBalancer.isOverQuota(SMALL));
+        Lib.assertTrue(! MemoryBalancer.isOverQuota(BIG));
+
+        long start = Machine.timer().getTime();
+        MemoryBalancer.admit(BIG);
+        Lib.assertTrue(start == Machine.timer().getTime(), "big slept");
+        MemoryBalancer.admit(SMALL);
+        Lib.assertTrue(Machine.timer().getTime() - start
+                >= Config.getInteger("MemoryBalancer.suspendTicks", 20000),
+                "small did not sleep");
+        Lib.assertTrue(! MemoryBalancer.isOverQuota(SMALL));
+
+        // small is back, and goes again at once; after that big runs alone
+        overload(frames, interval);
+        Lib.assertTrue(suspensions + 2 == MemoryBalancer.getSuspensions());
+        for (int i = 0; i < interval; i++) {
+            MemoryBalancer.faulted(BIG);
+        }
+        Lib.assertTrue(suspensions + 2 == MemoryBalancer.getSuspensions());
+
+        MemoryBalancer.exited(SMALL);
+        MemoryBalancer.exited(BIG);
+        Lib.assertTrue(! MemoryBalancer.hasOverQuota());
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Runs through one interval in which big touches every frame but the
+     * last and takes all the page faults but one, and small holds the last
+     * frame and takes one fault.
+     */
+    private static void overload(int frames, int interval) {
+        if (0 == MemoryBalancer.getFaults(SMALL)) {
+            MemoryBalancer.pageIn(frames - 1, SMALL);
+        } else {
+            MemoryBalancer.referenced(frames - 1, SMALL);
+        }
+        for (int ppn = 0; ppn < frames - 1; ppn++) {
+            MemoryBalancer.referenced(ppn, BIG);
+        }
+        MemoryBalancer.faulted(SMALL);
+        for (int i = 1; i < interval; i++) {
+            MemoryBalancer.faulted(BIG);
+        }
+    }
+
+    /**
+     * Brings the balancer to the start of an interval, after at least one
+     * whole interval of faults of a process which is alone, and so cannot
+     * be suspended. That also forgets any overload earlier tests left.
+     */
+    private static void finishInterval() {
+        do {
+            MemoryBalancer.faulted(BIG);
+        } while (0 != MemoryBalancer.getIntervalFaults());
+        MemoryBalancer.exited(BIG);
+    }
+
+    private static final int BIG = 10000;
+    private static final int SMALL = BIG + 1;
+}
@@ -1,5 +1,8 @@
 package nachos.vm;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import nachos.machine.Machine;
 import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
@@ -12,12 +15,35 @@ public class MockMachine implements IMachine
     public MockMachine() {
         memory = new byte[PhysicalPages * PageSize];
         tlb = new TranslationEntry[ TlbSize ];
+        for (int i = 0; i < TlbSize; i++) {
+            tlb[i] = new TranslationEntry();
+        }
     }
     @Override
     public byte[] getMemory() {
         return memory;
     }
 
+    @Override
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+        System.arraycopy(memory, paddr, data, offset, length);
+    }
+
+    @Override
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, memory, paddr, length);
+    }
+
+    @Override
+    public void zeroMemory(int paddr, int length) {
+        Arrays.fill(memory, paddr, paddr + length, (byte) 0);
+    }
+
+    @Override
+    public ByteBuffer getMemoryBuffer(int paddr, int length) {
+        return ByteBuffer.wrap(memory, paddr, length).slice();
+    }
+
     @Override
     public int getPageSize() {
         return PageSize;
@@ -43,6 +69,55 @@ public class MockMachine implements IMachine
         tlb[i] = new TranslationEntry(entry);
     }
 
+    @Override
+    public int getTlbWays() {
+        return TlbSize;
+    }
+
+    @Override
+    public int getTlbSet(int asid, int vpn) {
+        return 0;
+    }
+
+    @Override
+    public void readTlbEntry(int i, TranslationEntry entry) {
+        entry.set(tlb[i]);
+    }
+
+    @Override
+    public void readTlb(TranslationEntry[] entries) {
+        for (int i = 0; i < TlbSize; i++) {
+            entries[i].set(tlb[i]);
+        }
+    }
+
+    @Override
+    public int findTlbEntry(int asid, int vpn) {
+        for (int i = 0; i < TlbSize; i++) {
+            if (tlb[i].valid && tlb[i].vpn == vpn && tlb[i].asid == asid) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void invalidateTlbEntry(int i) {
+        tlb[i].valid = false;
+    }
+
+    @Override
+    public void invalidateTlb() {
+        for (int i = 0; i < TlbSize; i++) {
+            tlb[i].valid = false;
+        }
+    }
+
+    @Override
+    public void setAsid(int asid) {
+        this.asid = asid;
+    }
+
     /**
      * Copies one page from the actual Machine into this IMachine's memory
      * at the target page.
@@ -50,13 +125,11 @@ public class MockMachine implements IMachine
      * @param intoPpn the target page number.
      */
     public void importPage(int ppn, int intoPpn) {
-        byte[] realMemory = Machine.processor().getMemory();
-        System.arraycopy(
-                realMemory, ppn * PageSize,
-                memory, intoPpn * PageSize,
-                PageSize);
+        Machine.processor().readMemory(
+                ppn * PageSize, memory, intoPpn * PageSize, PageSize);
     }
 
     private byte[] memory;
     private TranslationEntry[] tlb;
+    private int asid;
 }
@@ -0,0 +1,223 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+/**
+ * A recency-ordered queue of page keys with O(1) insertion at the front,
+ * removal from the back, and removal or promotion of any key. The keys are
+ * either a ppn (for queues of resident frames) or a
+ * {@link VirtualPageHash#makeKey(int, int) (pid,vpn) key} (for the ghost
+ * queues of pages we evicted). The queue itself is a doubly-linked list of
+ * nodes held in primitive arrays, and an open-addressing index maps each
+ * key to its node; both grow as needed.
+ * <p>
+ * This class does no locking of its own; the replacement policies using it
+ * are only driven by {@link InvertedPageTable}.
+ */
+class PageQueue
+{
+    /**
+     * @param expected the number of keys to size the queue for.
+     */
+    public PageQueue(int expected) {
+        int nodes = Math.max(8, expected);
+        nodeKeys = new long[nodes];
+        prev = new int[nodes];
+        next = new int[nodes];
+        for (int i = 0; i < nodes; i++) {
+            next[i] = i + 1 < nodes ? i + 1 : NIL;
+        }
+        freeNode = 0;
+        head = NIL;
+        tail = NIL;
+        int slots = 16;
+        while (slots < 2 * nodes) {
+            slots <<= 1;
+        }
+        slotKeys = new long[slots];
+        slotNodes = new int[slots];
+        Arrays.fill(slotNodes, NIL);
+        mask = slots - 1;
+    }
+
+    public boolean contains(long key) {
+        return NIL != slotNodes[findSlot(key)];
+    }
+
+    /**
+     * Inserts the key as the most recent one; it must not already be queued.
+     */
+    public void addFirst(long key) {
+        int slot = findSlot(key);
+        if (NIL != slotNodes[slot]) {
+            throw new IllegalStateException("key "+key+" is already queued");
+        }
+        if (NIL == freeNode) {
+            grow();
+            slot = findSlot(key);
+        }
+        final int node = freeNode;
+        freeNode = next[node];
+        nodeKeys[node] = key;
+        prev[node] = NIL;
+        next[node] = head;
+        if (NIL != head) {
+            prev[head] = node;
+        } else {
+            tail = node;
+        }
+        head = node;
+        slotKeys[slot] = key;
+        slotNodes[slot] = node;
+        size++;
+    }
+
+    /**
+     * Makes a queued key the most recent one.
+     * @return false if the key was not queued.
+     */
+    public boolean moveToFirst(long key) {
+        final int node = slotNodes[findSlot(key)];
+        if (NIL == node) {
+            return false;
+        }
+        if (node != head) {
+            unlink(node);
+            prev[node] = NIL;
+            next[node] = head;
+            prev[head] = node;
+            head = node;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the key was not queued.
+     */
+    public boolean remove(long key) {
+        final int slot = findSlot(key);
+        final int node = slotNodes[slot];
+        if (NIL == node) {
+            return false;
+        }
+        removeSlot(slot);
+        release(node);
+        return true;
+    }
+
+    /**
+     * Removes the least recent key; the queue must not be empty.
+     * @return the key which was removed.
+     */
+    public long removeLast() {
+        if (NIL == tail) {
+            throw new IllegalStateException("empty queue");
+        }
+        final long key = nodeKeys[tail];
+        remove(key);
+        return key;
+    }
+
+    /**
+     * @return the least recent key; the queue must not be empty.
+     */
+    public long peekLast() {
+        if (NIL == tail) {
+            throw new IllegalStateException("empty queue");
+        }
+        return nodeKeys[tail];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return 0 == size;
+    }
+
+    private void unlink(int node) {
+        final int p = prev[node];
+        final int n = next[node];
+        if (NIL == p) {
+            head = n;
+        } else {
+            next[p] = n;
+        }
+        if (NIL == n) {
+            tail = p;
+        } else {
+            prev[n] = p;
+        }
+    }
+
+    private void release(int node) {
+        unlink(node);
+        next[node] = freeNode;
+        freeNode = node;
+        size--;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot where it belongs.
+     */
+    private int findSlot(long key) {
+        int i = VirtualPageHash.mix(key) & mask;
+        while (NIL != slotNodes[i] && slotKeys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /** Empties a slot by backward-shift deletion, as in VirtualPageHash. */
+    private void removeSlot(int slot) {
+        int hole = slot;
+        for (int j = (hole + 1) & mask; NIL != slotNodes[j]; j = (j + 1) & mask) {
+            final int home = VirtualPageHash.mix(slotKeys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                slotKeys[hole] = slotKeys[j];
+                slotNodes[hole] = slotNodes[j];
+                hole = j;
+            }
+        }
+        slotNodes[hole] = NIL;
+    }
+
+    /** Doubles the node arrays and rebuilds the index to match. */
+    private void grow() {
+        final int oldNodes = nodeKeys.length;
+        final int nodes = oldNodes << 1;
+        nodeKeys = Arrays.copyOf(nodeKeys, nodes);
+        prev = Arrays.copyOf(prev, nodes);
+        next = Arrays.copyOf(next, nodes);
+        for (int i = oldNodes; i < nodes; i++) {
+            next[i] = i + 1 < nodes ? i + 1 : NIL;
+        }
+        freeNode = oldNodes;
+        final int slots = slotKeys.length << 1;
+        slotKeys = new long[slots];
+        slotNodes = new int[slots];
+        Arrays.fill(slotNodes, NIL);
+        mask = slots - 1;
+        for (int node = head; NIL != node; node = next[node]) {
+            final int slot = findSlot(nodeKeys[node]);
+            slotKeys[slot] = nodeKeys[node];
+            slotNodes[slot] = node;
+        }
+    }
+
+    private static final int NIL = -1;
+    private long[] nodeKeys;
+    private int[] prev;
+    private int[] next;
+    /** The most recent node, or NIL. */
+    private int head;
+    /** The least recent node, or NIL. */
+    private int tail;
+    /** Unused nodes, chained through {@link #next}. */
+    private int freeNode;
+    private int size;
+    private long[] slotKeys;
+    private int[] slotNodes;
+    private int mask;
+}
@@ -0,0 +1,101 @@
+package nachos.vm;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.Semaphore;
+
+/**
+ * A kernel thread which writes dirty pages to swap ahead of demand. Without
+ * it, a fault which picks a dirty victim has to wait for the victim to be
+ * written before it can even start reading its own page. With it, the victim
+ * is usually already clean: either its copy in swap is still current, or it
+ * never had to go to swap at all, and it can be reclaimed without any I/O.
+ * <p>
+ * The daemon sleeps until {@link InvertedPageTable} notices, on a page
+ * allocation, that fewer than <tt>PageoutDaemon.lowWater</tt> pages are free
+ * or clean, or until a fault has had to write its victim after all. It then
+ * writes dirty pages which have not been used lately until
+ * <tt>PageoutDaemon.highWater</tt> of them are, or until it has written as
+ * many pages as there are in memory. The defaults are a quarter and a half
+ * of physical memory; <tt>VMKernel.pageoutDaemon = false</tt> turns the
+ * daemon off.
+ */
+public class PageoutDaemon
+{
+    /**
+     * Forks the daemon. Call this once, after the Machine is running.
+     */
+    public static void start() {
+        Lib.assertTrue(null == thread, "The pageout daemon is already running");
+        final int numPhysPages = Machine.processor().getNumPhysPages();
+        lowWater = Config.getInteger("PageoutDaemon.lowWater",
+                Math.max(1, numPhysPages / 4));
+        highWater = Math.max(lowWater, Config.getInteger(
+                "PageoutDaemon.highWater", Math.max(1, numPhysPages / 2)));
+        wakeup = new Semaphore(0);
+        thread = new KThread(new Runnable() {
+            public void run() {
+                launder();
+            }
+        });
+        thread.setName("pageout daemon");
+        thread.fork();
+        debug("started with lowWater="+lowWater+" highWater="+highWater);
+    }
+
+    public static boolean isRunning() {
+        return null != thread;
+    }
+
+    public static int getLowWater() {
+        return lowWater;
+    }
+
+    /**
+     * @return how many pages the daemon has written so far.
+     */
+    public static int getPagesWritten() {
+        return pagesWritten;
+    }
+
+    /**
+     * Asks the daemon to replenish the clean pages. This never blocks, so
+     * it is safe to call with the page table locked.
+     */
+    public static void wake() {
+        boolean intStatus = Machine.interrupt().disable();
+        if (null != thread && ! awake) {
+            awake = true;
+            wakeup.V();
+        }
+        Machine.interrupt().setStatus(intStatus);
+    }
+
+    private static void launder() {
+        while (true) {
+            wakeup.P();
+            // cleared first, so a wake while we write is not lost but
+            // sends us round once more
+            awake = false;
+            final int written = InvertedPageTable.launderFrames(
+                    highWater, Machine.processor().getNumPhysPages());
+            pagesWritten += written;
+            debug("wrote "+written+" pages");
+        }
+    }
+
+    private static void debug(String message) {
+        Lib.debug(dbgFlag, "DEBUG:PageoutDaemon:"+message);
+    }
+
+    private static KThread thread;
+    private static Semaphore wakeup;
+    /** Set from the time we are woken until we start writing. */
+    private static boolean awake;
+    private static int lowWater;
+    private static int highWater;
+    private static int pagesWritten;
+    private static final char dbgFlag = 'W';
+}
@@ -6,22 +6,15 @@ public class ProcessorUtil
 {
     /**
      * Searches through the Processor's TLB mapping to find the
-     * valid entry who's vpn is the number provided.
+     * valid entry who's vpn is the number provided, in the given process.
+     * @param pid the process whose translation I should locate.
      * @param vpn the virtual page number I should locate.
      * @return the valid TLB entry which is pointing to the provided VPN,
      * or null if unable to find any such entry.
      */
-    public static TranslationEntry findProcTLBforVpn(int vpn) {
-        final int tlbSize = InvertedPageTable.machine.getTlbSize();
-        TranslationEntry result = null;
-        for (int i = 0; i < tlbSize; i++) {
-            final TranslationEntry entry = machine.readTlbEntry(i);
-            if (entry.valid && entry.vpn == vpn) {
-                result = entry;
-                break;
-            }
-        }
-        return result;
+    public static TranslationEntry findProcTLBforVpn(int pid, int vpn) {
+        final int i = machine.findTlbEntry(pid, vpn);
+        return (-1 == i) ? null : machine.readTlbEntry(i);
     }
 
     /**
@@ -33,15 +26,14 @@ public class ProcessorUtil
      */
     public static TranslationEntry findProcTLBforPpn(int ppn) {
         final int tlbSize = machine.getTlbSize();
-        TranslationEntry result = null;
+        final TranslationEntry entry = new TranslationEntry();
         for (int i = 0; i < tlbSize; i++) {
-            final TranslationEntry entry = machine.readTlbEntry(i);
+            machine.readTlbEntry(i, entry);
             if (entry.valid && entry.ppn == ppn) {
-                result = entry;
-                break;
+                return entry;
             }
         }
-        return result;
+        return null;
     }
 
     /**
@@ -54,12 +46,7 @@ public class ProcessorUtil
     public static void initializePage(int ppn) {
         VMKernel.lockMemory();
         final int pageSize = InvertedPageTable.machine.getPageSize();
-		int offset = ppn * pageSize;
-        byte[] memory = InvertedPageTable.machine.getMemory();
-        for (int i = 0; i < pageSize; i++) {
-            int addr = offset + i;
-            memory[addr] = 0;
-        }
+        InvertedPageTable.machine.zeroMemory(ppn * pageSize, pageSize);
         VMKernel.unlockMemory();
     }
     protected static IMachine machine = LiveMachine.getInstance();
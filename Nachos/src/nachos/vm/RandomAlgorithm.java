@@ -3,7 +3,7 @@ package nachos.vm;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 
-public final class RandomAlgorithm implements Algorithm {
+public final class RandomAlgorithm extends AbstractAlgorithm {
 
 	@Override
 	public int findVictim() {
@@ -0,0 +1,104 @@
+package nachos.vm;
+
+import nachos.machine.Config;
+
+/**
+ * Watches the page faults of one process for a sequential or strided
+ * pattern, and decides how far ahead of it {@link InvertedPageTable} should
+ * read. Two faults in a row with the same (non-zero) distance between them
+ * start a stream; after that, the first touch of a prefetched page keeps it
+ * going, and any other fault starts looking for a new one.
+ * <p>
+ * The window grows by one page for each prefetched page which gets used,
+ * and is halved for each one evicted without ever being touched, between
+ * one page and <tt>Readahead.maxWindow</tt> (8 by default; 0 turns
+ * readahead off).
+ * <p>
+ * This class does no locking of its own; {@link InvertedPageTable} guards it.
+ */
+class Readahead
+{
+    public Readahead(int maxWindow) {
+        this.maxWindow = maxWindow;
+        window = Math.min(INITIAL_WINDOW, maxWindow);
+    }
+
+    /**
+     * Notes a page fault on vpn.
+     * @return true if a stream is running and we should read ahead of it,
+     * from {@link #getNext()} for {@link #getWindow()} pages.
+     */
+    public boolean faulted(int vpn) {
+        final int distance = (NONE == lastVpn) ? 0 : vpn - lastVpn;
+        lastVpn = vpn;
+        if (0 == distance || distance != stride) {
+            stride = distance;
+            next = NONE;
+            return false;
+        }
+        next = vpn + stride;
+        return window > 0;
+    }
+
+    /**
+     * Notes the first touch of a page we prefetched.
+     * @return true if the stream has used up half of what we read ahead,
+     * and we should read more from {@link #getNext()}.
+     */
+    public boolean touched(int vpn) {
+        if (window < maxWindow) {
+            window++;
+        }
+        lastVpn = vpn;
+        if (NONE == next || 0 == stride) {
+            return false;
+        }
+        final int ahead = (next - vpn) / stride;
+        return ahead <= window / 2;
+    }
+
+    /**
+     * Notes that a page we prefetched was evicted without being touched.
+     */
+    public void wasted() {
+        if (window > 1) {
+            window /= 2;
+        }
+    }
+
+    /**
+     * Moves the stream past the pages just read ahead.
+     * @param count how many pages along the stride were considered.
+     */
+    public void advance(int count) {
+        next += count * stride;
+    }
+
+    public int getNext() {
+        return next;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /** Readahead.maxWindow, the largest window we will grow to. */
+    public static int getMaxWindow() {
+        return MAX_WINDOW;
+    }
+
+    private static final int MAX_WINDOW = Math.max(0,
+            Config.getInteger("Readahead.maxWindow", 8));
+    private static final int INITIAL_WINDOW = 4;
+    private static final int NONE = Integer.MIN_VALUE;
+    private final int maxWindow;
+    private int window;
+    private int lastVpn = NONE;
+    private int stride;
+    /** The first vpn of the stream we have not read ahead yet, or NONE. */
+    private int next = NONE;
+}
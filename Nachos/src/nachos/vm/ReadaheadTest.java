@@ -0,0 +1,118 @@
+package nachos.vm;
+
+import nachos.machine.Lib;
+
+/**
+ * Tests how a {@link Readahead} finds a stream in a run of faults, and how
+ * its window follows the use made of what it read ahead.
+ */
+public class ReadaheadTest {
+    public static void selfTest() {
+        testSequential();
+        testStrided();
+        testBrokenStream();
+        testWindow();
+        testTouched();
+    }
+
+    /**
+     * Three faults on neighbouring pages start a stream, just past the last.
+     */
+    public static void testSequential() {
+        final String METHOD_NAME = "ReadaheadTest::testSequential";
+
+        Readahead stream = new Readahead(8);
+        Lib.assertTrue(! stream.faulted(9));
+        Lib.assertTrue(! stream.faulted(10));
+        Lib.assertTrue(stream.faulted(11));
+        Lib.assertTrue(1 == stream.getStride());
+        Lib.assertTrue(12 == stream.getNext());
+        Lib.assertTrue(4 == stream.getWindow());
+
+        stream.advance(4);
+        Lib.assertTrue(16 == stream.getNext());
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * Any distance works, backwards too, as long as it repeats.
+     */
+    public static void testStrided() {
+        final String METHOD_NAME = "ReadaheadTest::testStrided";
+
+        Readahead stream = new Readahead(8);
+        Lib.assertTrue(! stream.faulted(30));
+        Lib.assertTrue(! stream.faulted(27));
+        Lib.assertTrue(stream.faulted(24));
+        Lib.assertTrue(-3 == stream.getStride());
+        Lib.assertTrue(21 == stream.getNext());
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * A fault off the stream, or on the same page again, ends it, and the
+     * same distance twice more is needed to start a new one.
+     */
+    public static void testBrokenStream() {
+        final String METHOD_NAME = "ReadaheadTest::testBrokenStream";
+
+        Readahead stream = new Readahead(8);
+        stream.faulted(0);
+        stream.faulted(1);
+        Lib.assertTrue(stream.faulted(2));
+        Lib.assertTrue(! stream.faulted(5));
+        Lib.assertTrue(! stream.faulted(5));
+        Lib.assertTrue(! stream.faulted(7));
+        Lib.assertTrue(stream.faulted(9));
+        Lib.assertTrue(2 == stream.getStride());
+
+        // a window of nothing never reads ahead
+        Readahead off = new Readahead(0);
+        off.faulted(0);
+        off.faulted(1);
+        Lib.assertTrue(! off.faulted(2));
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * The window grows by one for each page used, up to the largest
+     * allowed, and is halved for each page wasted, down to one.
+     */
+    public static void testWindow() {
+        final String METHOD_NAME = "ReadaheadTest::testWindow";
+
+        Readahead stream = new Readahead(6);
+        for (int i = 0; i < 5; i++) {
+            stream.touched(i);
+        }
+        Lib.assertTrue(6 == stream.getWindow());
+        stream.wasted();
+        Lib.assertTrue(3 == stream.getWindow());
+        stream.wasted();
+        stream.wasted();
+        stream.wasted();
+        Lib.assertTrue(1 == stream.getWindow());
+
+        Lib.assertTrue(2 == new Readahead(2).getWindow());
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * A touch asks for more once the stream is no more than half a window
+     * short of the end of what was read ahead.
+     */
+    public static void testTouched() {
+        final String METHOD_NAME = "ReadaheadTest::testTouched";
+
+        Readahead stream = new Readahead(4);
+        stream.faulted(0);
+        stream.faulted(1);
+        stream.faulted(2);
+        // pages 3 to 6 were read
+        stream.advance(4);
+        Lib.assertTrue(! stream.touched(3));
+        Lib.assertTrue(! stream.touched(4));
+        Lib.assertTrue(stream.touched(5));
+        System.out.println(METHOD_NAME + " OK");
+    }
+}
@@ -67,7 +67,8 @@ public class SwapAwareTranslationEntry
         result.vpn = vpn;
         result.ppn = ppn;
         result.valid = valid;
-        result.readOnly = readOnly;
+        // a page we share is read-only to the Processor until it is copied
+        result.readOnly = readOnly || copyOnWrite;
         result.used = used;
         result.dirty = dirty;
         return result;
@@ -76,6 +77,7 @@ public class SwapAwareTranslationEntry
     public void ejectedFromMemory() {
     	this.valid = false;
     	this.ppn = -1;
+        this.copyOnWrite = false;
     }
 
 	public void movedToSwap(int swapPageNumber) {
@@ -96,6 +98,58 @@ public class SwapAwareTranslationEntry
         swapPageNumber = -1;
     }
 
+    /**
+     * Records that this page was just read back in from its swap page. That
+     * swap page is kept, and since it matches memory the page is now clean.
+     */
+    public void rolledInFromSwapfile() {
+        inSwap = false;
+        dirty = false;
+    }
+
+    /**
+     * Records that this resident page has been written to the given swap
+     * page ahead of its eviction. The caller must have cleared the dirty bit
+     * before starting the write, so that a store during the write (which
+     * dirties the page again) is not lost.
+     * @param swapPageNumber the swap page which now holds a copy of the page.
+     */
+    public void writtenToSwapfile(int swapPageNumber) {
+        this.swapPageNumber = swapPageNumber;
+    }
+
+    public void clearDirtyMark() {
+        dirty = false;
+    }
+
+    /**
+     * Records that this resident page is mapped onto a frame which other
+     * pages may share, and so must be copied before it may be written.
+     */
+    public void markCopyOnWrite() {
+        copyOnWrite = true;
+    }
+
+    /**
+     * Records that this page now has its frame to itself.
+     */
+    public void clearCopyOnWrite() {
+        copyOnWrite = false;
+    }
+
+    public boolean isCopyOnWrite() {
+        return copyOnWrite;
+    }
+
+    /**
+     * Indicates the page owns a swap page, whether it is in swap or resident.
+     * A resident page may be evicted without any I/O if it has a swap page
+     * and is not dirty, since the swap page is then an exact copy.
+     */
+    public boolean hasSwapPage() {
+        return -1 != swapPageNumber;
+    }
+
 	public void clearUsedMark() {
 		used = false;
 		dirty = false;
@@ -167,6 +221,7 @@ public class SwapAwareTranslationEntry
                 +" readOnly=" + readOnly
                 +" used=" + used
                 +" dirty=" + dirty
+                +" cow=" + copyOnWrite
                 +" inSwap=" + isInSwap()
                 +" swapPN=" + getSwapPageNumber()
                 +" stack?"+isStack
@@ -204,6 +259,11 @@ public class SwapAwareTranslationEntry
      * user program.
      */
     private boolean dirty;
+    /**
+     * Indicates this page shares its frame, and is only readable until the
+     * page is copied, even though {@link #readOnly} is <tt>false</tt>.
+     */
+    private boolean copyOnWrite;
     /** Indicates this page housed in swap. */
     private boolean inSwap;
     /** Contains the page number within the swap file where this page lives. */
@@ -1,8 +1,6 @@
 package nachos.vm;
 
-import java.util.HashSet;
-import java.util.Set;
-
+import nachos.machine.Config;
 import nachos.machine.FileSystem;
 import nachos.machine.OpenFile;
 import nachos.machine.Processor;
@@ -10,7 +8,13 @@ import nachos.threads.Lock;
 
 public class SwapFile {
     protected static IMachine machine = LiveMachine.getInstance();
-	private static final String SWAP_FILE_NAME = "swap";
+    /**
+     * The name of the swap file in the test directory, from
+     * <tt>SwapFile.name</tt>. Simulations sharing a test directory at the
+     * same time each need their own.
+     */
+	private static final String SWAP_FILE_NAME
+            = Config.getString("SwapFile.name", "swap");
     /**
      * Contains the frame size in the swap file. This will always be
      * greater than or equal to {@link Processor#pageSize}.
@@ -18,15 +22,22 @@ public class SwapFile {
     private static final int SWAP_FRAME_SIZE = machine.getPageSize();
     private static final FileSystem fileSystem;
 	private static final OpenFile swap;
-	private static final Set<Integer> freePages;
+	private static final SwapSlotAllocator freePages;
 	private static final Lock swapFileLock;
+    /** Set once {@link #close()} has been called. */
+    private static boolean closed;
+    /**
+     * The most pages we move with a single read or write, from
+     * <tt>SwapFile.maxCluster</tt>.
+     */
+    public static final int MAX_CLUSTER
+            = Math.max(1, Config.getInteger("SwapFile.maxCluster", 8));
 
 	static {
         fileSystem = nachos.machine.Machine.stubFileSystem();
         swap = fileSystem.open(SWAP_FILE_NAME, true);
-        // don't add any, because the swap is initially zero sized
-        // and thus no free pages; don't worry, we'll add some
-		freePages = new HashSet<Integer>();
+        // the swap is initially zero sized, and grows as pages are allocated
+		freePages = new SwapSlotAllocator();
 		swapFileLock = new Lock();
 	}
 
@@ -49,12 +60,12 @@ public class SwapFile {
             return false;
         }
         final int pos = spn * SWAP_FRAME_SIZE;
-        final byte[] memory = machine.getMemory();
         final int memoryOffset = ppn * machine.getPageSize();
         /// WARNING: if you encoded metadata, ensure you bump the pos
         /// before calling this or you'll smash your metadata in the swap
-        final int bytesRead =
-                swap.read(pos, memory, memoryOffset, SWAP_FRAME_SIZE);
+        // straight from the file into the frame
+        final int bytesRead = swap.read(pos,
+                machine.getMemoryBuffer(memoryOffset, SWAP_FRAME_SIZE));
         if (bytesRead != SWAP_FRAME_SIZE) {
             error("Incorrect read size; expected "
                     +SWAP_FRAME_SIZE+" but read "+bytesRead);
@@ -76,25 +87,9 @@ public class SwapFile {
      */
 	public static int rollOut(int ppn) {
         swapFileLock.acquire();
-        if (freePages.isEmpty()) {
-            // if the swap file is 0 length, then zero frame is available
-            // if it's 4096 long, then 1*4096 will write to the end of the file
-            int nextPage = swap.length() / SWAP_FRAME_SIZE;
-            freePages.add(nextPage);
-        }
-        int nextSlot = freePages.iterator().next();
-        freePages.remove(nextSlot);
-
-        final int pos = nextSlot * SWAP_FRAME_SIZE;
-        final byte[] memory = machine.getMemory();
-        final int memoryOffset = ppn * machine.getPageSize();
+        final int nextSlot = freePages.allocate(1);
 
-        /// WARNING: if you encode metadata, ensure you bump the pos
-        /// before calling this or you'll write metadata into main memory
-        final int written = swap.write(pos, memory, memoryOffset, SWAP_FRAME_SIZE);
-        if (written != SWAP_FRAME_SIZE) {
-            error("Incorrect write size; expected "
-                    +SWAP_FRAME_SIZE+" but wrote "+written);
+        if (! writeFrame(ppn, nextSlot)) {
 		    swapFileLock.release();
             // return that slot to the free pool, since we didn't really use it
             free(new int[] { nextSlot });
@@ -104,6 +99,149 @@ public class SwapFile {
 		return nextSlot;
 	}
 
+    /**
+     * Writes the specified in-memory physical frame over a swap page which
+     * the caller already owns, such as the one a page was rolled in from.
+     * The same warnings as {@link #rollOut(int)} apply.
+     * @param ppn the physical frame to roll-out.
+     * @param spn the swap page to overwrite.
+     * @return spn, or -1 on error.
+     */
+	public static int rollOut(int ppn, int spn) {
+        swapFileLock.acquire();
+        final boolean ok = writeFrame(ppn, spn);
+        swapFileLock.release();
+		return ok ? spn : -1;
+	}
+
+    /**
+     * Writes the specified in-memory physical frames to consecutive, newly
+     * allocated swap pages with a single write, so the batch costs one disk
+     * access however many pages it holds. The same warnings as
+     * {@link #rollOut(int)} apply to each frame.
+     * @param ppns the physical frames to roll-out, at most
+     * {@link #MAX_CLUSTER} of them.
+     * @return the swap page number holding <tt>ppns[0]</tt>, with
+     * <tt>ppns[i]</tt> in the i-th page after it; or -1 on error.
+     */
+	public static int rollOutBatch(int[] ppns) {
+        swapFileLock.acquire();
+        final int spn = freePages.allocate(ppns.length);
+        final boolean ok = writeFrames(ppns, spn);
+        if (! ok) {
+            freeRun(spn, ppns.length);
+        }
+        swapFileLock.release();
+        return ok ? spn : -1;
+	}
+
+    /**
+     * Reads consecutive swap pages back into memory with a single read,
+     * so the cluster costs one disk access however many pages it holds.
+     * The same warnings as {@link #rollIn(int, int)} apply to each frame.
+     * @param spn the first swap page to roll-into memory.
+     * @param ppns the physical frames into which swap pages
+     * <tt>spn</tt>, <tt>spn+1</tt>, ... should roll-in.
+     * @return true if ok, false otherwise.
+     */
+	public static boolean rollInCluster(int spn, int[] ppns) {
+        if (1 == ppns.length) {
+            return rollIn(spn, ppns[0]);
+        }
+		swapFileLock.acquire();
+        final int pageSize = machine.getPageSize();
+        final byte[] buffer = new byte[ppns.length * SWAP_FRAME_SIZE];
+        final int bytesRead = swap.read(spn * SWAP_FRAME_SIZE,
+                buffer, 0, buffer.length);
+        if (bytesRead != buffer.length) {
+            error("Incorrect read size; expected "
+                    +buffer.length+" but read "+bytesRead);
+            swapFileLock.release();
+            return false;
+        }
+        for (int i = 0; i < ppns.length; i++) {
+            machine.writeMemory(ppns[i] * pageSize,
+                    buffer, i * SWAP_FRAME_SIZE, SWAP_FRAME_SIZE);
+        }
+        swapFileLock.release();
+		return true;
+	}
+
+    /**
+     * Like {@link #rollOutBatch(int[])}, but for the {@link PageoutDaemon}.
+     * This does not keep the swap file locked while the write is under way,
+     * so that faults needing the swap file don't queue up behind a write
+     * nobody is waiting for. That is safe because no one else knows about
+     * the new swap pages yet, but it also means a frame may be handed to
+     * some other page during the write: it is up to the caller to check
+     * that none was, and otherwise to {@link #free(int[]) free} its page.
+     * @param ppns the physical frames to write.
+     * @return the swap page number holding <tt>ppns[0]</tt>, or -1 on error.
+     */
+    public static int writeBehind(int[] ppns) {
+        swapFileLock.acquire();
+        final int spn = freePages.allocate(ppns.length);
+        swapFileLock.release();
+        if (! writeFrames(ppns, spn)) {
+            swapFileLock.acquire();
+            freeRun(spn, ppns.length);
+            swapFileLock.release();
+            return -1;
+        }
+        return spn;
+    }
+
+    private static boolean writeFrames(int[] ppns, int spn) {
+        if (1 == ppns.length) {
+            return writeFrame(ppns[0], spn);
+        }
+        // gather the frames first; they are rarely adjacent in memory
+        final int pageSize = machine.getPageSize();
+        final byte[] buffer = new byte[ppns.length * SWAP_FRAME_SIZE];
+        for (int i = 0; i < ppns.length; i++) {
+            machine.readMemory(ppns[i] * pageSize,
+                    buffer, i * SWAP_FRAME_SIZE, SWAP_FRAME_SIZE);
+        }
+        final int written = swap.write(spn * SWAP_FRAME_SIZE,
+                buffer, 0, buffer.length);
+        if (written != buffer.length) {
+            // the pageout daemon may still be writing when the machine halts
+            if (closed) {
+                return false;
+            }
+            error("Incorrect write size; expected "
+                    +buffer.length+" but wrote "+written);
+            return false;
+        }
+        return true;
+    }
+
+    private static void freeRun(int spn, int count) {
+        for (int i = 0; i < count; i++) {
+            freePages.free(spn + i);
+        }
+    }
+
+    private static boolean writeFrame(int ppn, int spn) {
+        final int pos = spn * SWAP_FRAME_SIZE;
+        final int memoryOffset = ppn * machine.getPageSize();
+
+        /// WARNING: if you encode metadata, ensure you bump the pos
+        /// before calling this or you'll write metadata into main memory
+        // straight from the frame into the file
+        final int written = swap.write(pos,
+                machine.getMemoryBuffer(memoryOffset, SWAP_FRAME_SIZE));
+        if (written != SWAP_FRAME_SIZE) {
+            if (closed) {
+                return false;
+            }
+            error("Incorrect write size; expected "
+                    +SWAP_FRAME_SIZE+" but wrote "+written);
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Allows one to release swap pages without rolling them back into memory.
      * @param pages the list of swap pages to free.
@@ -114,7 +252,7 @@ public class SwapFile {
         }
         swapFileLock.acquire();
         for (int page : pages) {
-            freePages.add(page);
+            freePages.free(page);
         }
         swapFileLock.release();
     }
@@ -123,6 +261,7 @@ public class SwapFile {
      */
 	public static void close(){
 		swapFileLock.acquire();
+        closed = true;
         swap.close();
         boolean ok = fileSystem.remove(SWAP_FILE_NAME);
         if (!ok) {
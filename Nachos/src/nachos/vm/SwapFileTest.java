@@ -37,6 +37,8 @@ public class SwapFileTest
         testPages();
         exe.close();
         coffFile.close();
+
+        testBatch();
     }
 
     private static boolean openExe(String filename) {
@@ -171,4 +173,44 @@ public class SwapFileTest
                     "Mismatched hash");
         System.out.println(METHOD_NAME +" OK");
     }
+
+    public static void testBatch() {
+        final String METHOD_NAME = "SwapFileTest::testBatch";
+
+        final MockMachine machine = new MockMachine();
+        SwapFile.machine = machine;
+
+        final int count = Math.min(SwapFile.MAX_CLUSTER,
+                MockMachine.PhysicalPages / 2);
+        final int pageSize = machine.getPageSize();
+        byte[] memory = machine.getMemory();
+        Arrays.fill(memory, (byte)0);
+        int[] outPpns = new int[count];
+        int[] inPpns = new int[count];
+        for (int i = 0; i < count; i++) {
+            outPpns[i] = i;
+            inPpns[i] = MockMachine.PhysicalPages - 1 - i;
+            // a different pattern in each page, so we can tell them apart
+            for (int b = 0; b < pageSize; b++) {
+                memory[i * pageSize + b] = (byte) (i * 31 + b);
+            }
+        }
+        final int spn = SwapFile.rollOutBatch(outPpns);
+        Lib.assertTrue(-1 != spn, "Unable to write the batch");
+        SwapFile.rollInCluster(spn, inPpns);
+        for (int i = 0; i < count; i++) {
+            for (int b = 0; b < pageSize; b++) {
+                if (memory[outPpns[i] * pageSize + b]
+                        != memory[inPpns[i] * pageSize + b]) {
+                    throw new AssertionError("Bogus byte at "+b+" of page "+i);
+                }
+            }
+        }
+        int[] spns = new int[count];
+        for (int i = 0; i < count; i++) {
+            spns[i] = spn + i;
+        }
+        System.out.println(METHOD_NAME +" OK");
+        SwapFile.free(spns);
+    }
 }
@@ -0,0 +1,127 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+import nachos.machine.Lib;
+
+/**
+ * Tracks which pages of the swap file are in use, with one bit per page.
+ * Runs of pages are handed out first-fit, so the pages written together by
+ * one batch sit next to each other in the file and can be read back with a
+ * single request; and the file never grows while a big enough hole remains.
+ * Since first-fit always starts from the front, we remember the lowest page
+ * which might be free, and skip whole words of used pages at a time.
+ * <p>
+ * Every page past {@link #getPageCount()} is free, so a run may start in
+ * the last hole and continue past the end of the file.
+ * <p>
+ * This class does no locking of its own; {@link SwapFile} guards it.
+ */
+class SwapSlotAllocator
+{
+    public SwapSlotAllocator() {
+        inUse = new long[4];
+    }
+
+    /**
+     * Allocates <tt>count</tt> consecutive swap pages.
+     * @return the first page of the run.
+     */
+    public int allocate(int count) {
+        Lib.assertTrue(count > 0, "Bogus run length "+count);
+        int start = nextClear(firstFree);
+        while (start < pageCount) {
+            final int used = nextSet(start, start + count);
+            if (-1 == used) {
+                break;
+            }
+            start = nextClear(used + 1);
+        }
+        ensureCapacity(start + count);
+        for (int spn = start; spn < start + count; spn++) {
+            inUse[spn >>> 6] |= 1L << spn;
+        }
+        pageCount = Math.max(pageCount, start + count);
+        if (start == firstFree) {
+            firstFree = start + count;
+        }
+        return start;
+    }
+
+    /**
+     * Releases a swap page. Releasing a page which is already free has no
+     * effect.
+     */
+    public void free(int spn) {
+        if (! isAllocated(spn)) {
+            return;
+        }
+        inUse[spn >>> 6] &= ~(1L << spn);
+        if (spn < firstFree) {
+            firstFree = spn;
+        }
+    }
+
+    public boolean isAllocated(int spn) {
+        Lib.assertTrue(spn >= 0, "Bogus spn "+spn);
+        if (spn >= pageCount) {
+            return false;
+        }
+        return 0 != (inUse[spn >>> 6] & (1L << spn));
+    }
+
+    /**
+     * @return one past the highest swap page ever allocated, which is how
+     * long (in pages) the swap file may be.
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * @return the first free page at or after <tt>from</tt>.
+     */
+    private int nextClear(int from) {
+        int word = from >>> 6;
+        if (word >= inUse.length) {
+            return from;
+        }
+        long bits = ~inUse[word] & (-1L << from);
+        while (0 == bits) {
+            if (++word == inUse.length) {
+                return word << 6;
+            }
+            bits = ~inUse[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * @return the first used page in [from, to), or -1 if there is none.
+     */
+    private int nextSet(int from, int to) {
+        for (int spn = from; spn < to && spn < pageCount; spn++) {
+            final long bits = inUse[spn >>> 6] & (-1L << spn);
+            if (0 != bits) {
+                final int used = (spn & ~63) + Long.numberOfTrailingZeros(bits);
+                return (used < to && used < pageCount) ? used : -1;
+            }
+            // nothing left in this word
+            spn |= 63;
+        }
+        return -1;
+    }
+
+    private void ensureCapacity(int pages) {
+        final int words = (pages + 63) >>> 6;
+        if (words > inUse.length) {
+            inUse = Arrays.copyOf(inUse, Math.max(words, inUse.length << 1));
+        }
+    }
+
+    /** One bit per swap page, set when the page is in use. */
+    private long[] inUse;
+    /** Every page below this one is in use. */
+    private int firstFree = 0;
+    private int pageCount = 0;
+}
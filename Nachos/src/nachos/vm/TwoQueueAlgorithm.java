@@ -0,0 +1,131 @@
+package nachos.vm;
+
+import nachos.machine.Machine;
+
+/**
+ * The full 2Q policy of Johnson and Shasha, selected with
+ * <tt>Algorithm = nachos.vm.TwoQueueAlgorithm</tt>. New pages enter the FIFO
+ * A1in, and are evicted from there while it holds more than a quarter of
+ * memory. Their ghosts go to A1out, and only a page faulted back in while
+ * its ghost is still in A1out is admitted to the LRU queue Am. A page which
+ * is touched once and never again, as in a sequential scan, therefore never
+ * displaces the pages in Am.
+ */
+public class TwoQueueAlgorithm extends AbstractAlgorithm
+{
+    @Override
+    public int findVictim() {
+        InvertedPageTable.syncAllProcTlb();
+        init(Machine.processor().getNumPhysPages());
+        if (a1in.isEmpty() && am.isEmpty()) {
+            victim = 0;
+        } else if (a1in.size() > kin || am.isEmpty()) {
+            victim = (int) a1in.peekLast();
+        } else {
+            victim = (int) am.peekLast();
+        }
+        return victim;
+    }
+
+    @Override
+    public void faulted(int pid, int vpn) {
+        init(Machine.processor().getNumPhysPages());
+        faultKey = VirtualPageHash.makeKey(pid, vpn);
+        faultWasGhost = a1out.remove(faultKey);
+    }
+
+    @Override
+    public void pageIn(int ppn, int pid, int vpn) {
+        init(Machine.processor().getNumPhysPages());
+        final long key = VirtualPageHash.makeKey(pid, vpn);
+        load(ppn, key);
+        if (faultWasGhost && key == faultKey) {
+            am.addFirst(ppn);
+        } else {
+            a1in.addFirst(ppn);
+        }
+        faultWasGhost = false;
+    }
+
+    /**
+     * A page read ahead of its process has not been asked for, so it goes
+     * in A1in like a new page even if it has a ghost.
+     */
+    @Override
+    public void prefetched(int ppn, int pid, int vpn) {
+        init(Machine.processor().getNumPhysPages());
+        load(ppn, VirtualPageHash.makeKey(pid, vpn));
+        a1in.addFirst(ppn);
+    }
+
+    @Override
+    public void referenced(int ppn) {
+        if (null != am) {
+            // a hit in A1in deliberately changes nothing
+            am.moveToFirst(ppn);
+        }
+    }
+
+    @Override
+    public void evicted(int ppn) {
+        if (null == am) {
+            return;
+        }
+        // a frame shared copy-on-write keeps the key of the page first
+        // loaded into it, which may have left a ghost already
+        if (a1in.remove(ppn)) {
+            if (ppn == victim && ! a1out.contains(frameKeys[ppn])) {
+                a1out.addFirst(frameKeys[ppn]);
+                while (a1out.size() > kout) {
+                    a1out.removeLast();
+                }
+            }
+        } else {
+            am.remove(ppn);
+        }
+        if (ppn == victim) {
+            victim = -1;
+        }
+    }
+
+    /**
+     * Records that the page is resident in ppn. A resident page has no
+     * ghost, so that its next eviction can leave a fresh one.
+     */
+    private void load(int ppn, long key) {
+        if (! a1in.remove(ppn)) {
+            am.remove(ppn);
+        }
+        a1out.remove(key);
+        frameKeys[ppn] = key;
+    }
+
+    private void init(int numPhysPages) {
+        if (null != am && frameKeys.length == numPhysPages) {
+            return;
+        }
+        kin = Math.max(1, numPhysPages / 4);
+        kout = Math.max(1, numPhysPages / 2);
+        a1in = new PageQueue(numPhysPages);
+        am = new PageQueue(numPhysPages);
+        a1out = new PageQueue(kout + 1);
+        frameKeys = new long[numPhysPages];
+    }
+
+    /** The size A1in may reach before we evict from it. */
+    private int kin;
+    /** How many ghosts A1out remembers. */
+    private int kout;
+    /** Frames seen once, by ppn, newest first. */
+    private PageQueue a1in;
+    /** Frames admitted from A1out, by ppn, most recent first. */
+    private PageQueue am;
+    /** Ghosts of pages evicted from A1in, by (pid,vpn), newest first. */
+    private PageQueue a1out;
+    /** The (pid,vpn) key of the page in each frame. */
+    private long[] frameKeys;
+    private long faultKey;
+    private boolean faultWasGhost;
+    /** The frame we last chose, so its eviction leaves a ghost behind. */
+    private int victim = -1;
+}
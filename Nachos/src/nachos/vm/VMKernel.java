@@ -1,6 +1,9 @@
 package nachos.vm;
 
+import nachos.machine.Config;
 import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
 import nachos.threads.Lock;
 import nachos.userprog.UserKernel;
 
@@ -21,14 +24,35 @@ public class VMKernel extends UserKernel {
     public void initialize(String[] args) {
         debug("initialize("+java.util.Arrays.asList(args)+")");
     	super.initialize(args);
+        // I know it looks goofy to initialize a static variable
+        // from an instance method but we can't alloc them statically since
+        // the Machine isn't running at class creation time; the self tests
+        // already read and write process memory, so it cannot wait for run()
+        memoryLock = new Lock();
     }
 
     /**
-     * Test this kernel.
+     * Test this kernel. The unit tests, which run only if
+     * <tt>Kernel.unitTests</tt> is set, use the real memory and page table,
+     * so they have to run before any user program does, and so before those
+     * of <tt>UserKernel</tt>, which run one.
      */
     public void selfTest() {
         debug("selfTest()");
+        final boolean unitTests = Config.getBoolean("Kernel.unitTests", false);
+        if (unitTests) {
+            CoreMapTest.selfTest();
+            LiveMachineTest.selfTest();
+            ReadaheadTest.selfTest();
+            InvertedPageTableTest.selfTest();
+            MemoryBalancerTest.selfTest();
+            VMStatsTest.selfTest();
+        }
     	super.selfTest();
+        if (unitTests) {
+            // the real processes will get the pids the tests made up
+            VMStats.reset();
+        }
 //        SwapFileTest.selfTest();
 //        Lib.assertTrue(false, "self test");
     }
@@ -38,11 +62,9 @@ public class VMKernel extends UserKernel {
      */
     public void run() {
         debug("run()");
-        // I know it looks goofy to initialize a static variable
-        // from an instance method but we can't alloc them statically since
-        // the Machine isn't running at class creation time
-        pageFaultsLock = new Lock();
-        memoryLock = new Lock();
+        if (Config.getBoolean("VMKernel.pageoutDaemon", true)) {
+            PageoutDaemon.start();
+        }
     	super.run();
     }
 
@@ -53,19 +75,51 @@ public class VMKernel extends UserKernel {
         debug("terminate()");
         SwapFile.close();
         debug("closed SwapFile");
-        System.out.println("VMM Paging: page faults "+pageFaults+ " using the algorithm: "+ InvertedPageTable.algorithm.getClass().getCanonicalName());
+        debug("pageout daemon wrote "+PageoutDaemon.getPagesWritten()+" pages");
+        debug("memory balancer suspended "+MemoryBalancer.getSuspensions()+" times");
+        final String algorithm
+                = InvertedPageTable.algorithm.getClass().getCanonicalName();
+        System.out.println("VMM Paging: page faults "
+                +VMStats.getCount(VMStats.Cause.PAGE_FAULT)
+                +" using the algorithm: "+algorithm);
+        dumpStats(VMStats.toJson(algorithm));
     	super.terminate();
     }
 
     /**
      * Indicates there was a page fault. We cannot use the existing Processor
      * page fault tracking mechanism due to visibility constraints within
-     * Nachos.
+     * Nachos. The count is kept by {@link VMStats}, without a lock, and the
+     * {@link MemoryBalancer} keeps its own for each process.
+     * @param pid the process which took the fault.
+     */
+    public static void recordPageFault(int pid) {
+        VMStats.count(pid, VMStats.Cause.PAGE_FAULT);
+        MemoryBalancer.faulted(pid);
+    }
+
+    /**
+     * Writes the statistics to the file named by <tt>VMStats.file</tt>
+     * (through the stub file system, like the swap file). If there is no
+     * such setting, they are printed on a single line, but only with the
+     * <tt>v</tt> debug flag.
      */
-    public static void recordPageFault() {
-        pageFaultsLock.acquire();
-        pageFaults++;
-        pageFaultsLock.release();
+    private static void dumpStats(String json) {
+        final String name = Config.getString("VMStats.file", null);
+        if (null == name) {
+            if (Lib.test(dbgStats)) {
+                System.out.println("VMM Stats: "+json);
+            }
+            return;
+        }
+        final OpenFile file = Machine.stubFileSystem().open(name, true);
+        if (null == file) {
+            System.err.println("ERROR:VMKernel:Unable to open \""+name+"\"");
+            return;
+        }
+        final byte[] bytes = (json+"\n").getBytes();
+        file.write(bytes, 0, bytes.length);
+        file.close();
     }
 
     public static void lockMemory() {
@@ -84,10 +138,9 @@ public class VMKernel extends UserKernel {
         Lib.debug(dbgFlag, "DEBUG:VMKernel:"+message);
     }
 
-    private static int pageFaults;
     // don't initialize these Locks statically
     // since the Machine isn't running at Kernel class load time
-    private static Lock pageFaultsLock;
     private static Lock memoryLock;
     private static final char dbgFlag = 'K';
+    private static final char dbgStats = 'v';
 }
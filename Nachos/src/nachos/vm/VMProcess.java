@@ -1,5 +1,7 @@
 package nachos.vm;
 
+import java.util.Arrays;
+
 import nachos.machine.Coff;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
@@ -20,6 +22,8 @@ public class VMProcess extends UserProcess
     @Override
     public void saveState() {
         debug("saveState()");
+        // our entries stay in the TLB, but the others may push them out
+        InvertedPageTable.saveProcTlb(getPid(), savedTlb);
 /*
         boolean intStatus = Machine.interrupt().disable();
         tlbLock.acquire();
@@ -43,20 +47,11 @@ public class VMProcess extends UserProcess
     @Override
     public void restoreState() {
         debug("restoreState()");
-        debug("TLB:restoring");
-        boolean intStatus = Machine.interrupt().disable();
-        tlbLock.acquire();
-        final Processor proc = Machine.processor();
-        final int tlbSize = proc.getTLBSize();
-		for (int i=0; i < tlbSize; i++){
-			TranslationEntry entry = proc.readTLBEntry(i);
-            debug("ProcTLB["+i+"]:="+entry);
-			entry.valid = false; // force a TLB miss
-			proc.writeTLBEntry(i, entry);
-    	}
-        tlbLock.release();
-        Machine.interrupt().setStatus(intStatus);
-        debug("TLB: restored");
+        // the TLB entries are tagged with our pid, so ours are still there
+        // (unless their frames were evicted meanwhile) and nobody else's
+        // can translate for us; the InvertedPageTable gathers the used and
+        // dirty bits of all of them whenever it needs them
+        Machine.processor().setASID(getPid());
     }
 
     /**
@@ -89,8 +84,7 @@ public class VMProcess extends UserProcess
     protected void unloadSections() {
         debug("unloadSections()");
         final int pid = getPid();
-        // the order matters here
-        SwapFile.free( InvertedPageTable.findAllSwapPagesByPid(pid) );
+        // this releases our swap pages and TLB entries as well
         InvertedPageTable.free(pid);
     }
 
@@ -128,11 +122,13 @@ public class VMProcess extends UserProcess
     @Override
     protected TranslationEntry getTranslationEntryForVirtualPage(int vpn) {
         TranslationEntry entry;
-        entry = ProcessorUtil.findProcTLBforVpn(vpn);
+        final int pid = getPid();
+        // we may be a child whose arguments our parent is writing, so the
+        // TLB has to be asked for our translation rather than the current one
+        entry = ProcessorUtil.findProcTLBforVpn(pid, vpn);
         if (null != entry && entry.valid) {
         	return entry;
         }
-        final int pid = getPid();
         entry = InvertedPageTable.findIPTEntryForVpn(pid, vpn);
         if (null == entry) {
             error("Unmapped page table entry for VPN: "+vpn);
@@ -185,6 +181,14 @@ public class VMProcess extends UserProcess
         return coff;
     }
 
+    /**
+     * Provides the vpns we had in the TLB when we were last switched out,
+     * or -1 in each slot once they have been put back.
+     */
+    int[] getSavedTlb() {
+        return savedTlb;
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -205,9 +209,20 @@ public class VMProcess extends UserProcess
         case Processor.exceptionTLBMiss: {
             int badVaddr = processor.readRegister(Processor.regBadVAddr);
             debug("TLB Miss @x"+Integer.toHexString(badVaddr));
+            VMStats.count(getPid(), VMStats.Cause.TLB_MISS);
             handleTLBMiss(badVaddr);
             break;
         }
+        case Processor.exceptionReadOnly: {
+            int badVaddr = processor.readRegister(Processor.regBadVAddr);
+            // a write to a page we share is fine, once it is our own copy
+            if (InvertedPageTable.handleWriteFault(
+                    this, Processor.pageFromAddress(badVaddr))) {
+                break;
+            }
+            super.handleException(cause);
+            break;
+        }
     	default:
 	        super.handleException(cause);
     	    break;
@@ -229,6 +244,8 @@ public class VMProcess extends UserProcess
     protected void handleTLBMiss(int vaddr) {
         int page = Processor.pageFromAddress(vaddr);
         debug("vaddr("+Integer.toHexString(vaddr)+"):=pid="+getPid()+";vpn="+page);
+        // a process suspended to relieve memory waits here, holding no locks
+        MemoryBalancer.admit(getPid());
         if (!InvertedPageTable.handleTLBMiss(this, page)) {
             error("Unable to handle TLB miss; exit(1)");
             final int exitCode = 1;
@@ -240,12 +257,18 @@ public class VMProcess extends UserProcess
         System.err.println("ERROR:"+toString()+":"+message);
     }
 
+    private static int[] newSavedTlb() {
+        final int[] result = new int[Machine.processor().getTLBSize()];
+        Arrays.fill(result, -1);
+        return result;
+    }
+
 	private void debug(String message) {
         Lib.debug(dbgFlag,"DEBUG:"+toString()+":"+message);
     }
 
+    private final int[] savedTlb = newSavedTlb();
     private static final char dbgFlag = 'P';
-    private static final Lock tlbLock = new Lock();
     /**
      * Provides just a VMProcess-scoped lock on page reads and writes,
      * to prevent the pages from being swapped out from underneath us.
@@ -0,0 +1,248 @@
+package nachos.vm;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import nachos.machine.Machine;
+
+/**
+ * Counts what the virtual memory system does, by process and by cause, and
+ * how long page faults take to serve, in simulated ticks. The counts can be
+ * read at any time, and {@link VMKernel} dumps them as JSON when the machine
+ * halts, so that replacement policies can be compared without rerunning
+ * with debug flags.
+ * <p>
+ * None of this takes a lock. Each process has its own array of counters,
+ * so that the callers (who usually hold the page table lock anyway) never
+ * touch the same counters as another process; the totals and histograms
+ * are atomic arrays.
+ */
+public class VMStats
+{
+    /** The events we count. */
+    public enum Cause {
+        /** A page was needed which was not in memory. */
+        PAGE_FAULT,
+        /** The Processor found no TLB entry for an address. */
+        TLB_MISS,
+        /** A page was read from its COFF section. */
+        COFF_FILL,
+        /** A page started out zeroed (stack, or uninitialized section). */
+        ZERO_FILL,
+        /** A page was read from swap. */
+        SWAP_IN,
+        /** A page was written to swap. */
+        SWAP_OUT,
+        /** A page left memory without being written, being clean. */
+        CLEAN_EJECT,
+        /** A page was mapped onto a frame another process had loaded. */
+        SHARED_MAP,
+        /** A shared page was copied on its first write. */
+        COW_COPY,
+        /** A page was brought in ahead of its process. */
+        READAHEAD,
+        /** A TLB entry was invalidated because its frame was reused. */
+        TLB_SHOOTDOWN,
+        /** A TLB entry was invalidated because its process exited. */
+        TLB_FLUSH;
+
+        /** @return the name used in the JSON dump, e.g. "page_fault". */
+        public String getKey() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Counts one event.
+     * @param pid the process it happened to, or -1 to count it only in
+     * the totals.
+     */
+    public static void count(int pid, Cause cause) {
+        count(pid, cause, 1);
+    }
+
+    /**
+     * Counts several events of the same kind at once.
+     */
+    public static void count(int pid, Cause cause, int howMany) {
+        if (howMany <= 0) {
+            return;
+        }
+        TOTALS.addAndGet(cause.ordinal(), howMany);
+        if (pid >= 0) {
+            findCounters(pid).addAndGet(cause.ordinal(), howMany);
+        }
+    }
+
+    /**
+     * @return the current simulated time, to pass to
+     * {@link #faultServed(int, Cause, long)}.
+     */
+    public static long now() {
+        return (null == Machine.timer()) ? 0 : Machine.timer().getTime();
+    }
+
+    /**
+     * Counts a page fault which has just been served, and how long it took.
+     * @param pid the process which faulted.
+     * @param how how the page was brought in.
+     * @param startTime what {@link #now()} said when the fault started.
+     */
+    public static void faultServed(int pid, Cause how, long startTime) {
+        count(pid, how);
+        final long ticks = Math.max(0, now() - startTime);
+        final int index = how.ordinal();
+        LATENCY_SUM.addAndGet(index, ticks);
+        LATENCY_COUNT.incrementAndGet(index);
+        HISTOGRAMS.incrementAndGet(index * BUCKETS + bucketOf(ticks));
+    }
+
+    /** @return how many times cause has happened, to anyone. */
+    public static long getCount(Cause cause) {
+        return TOTALS.get(cause.ordinal());
+    }
+
+    /** @return how many times cause has happened to pid. */
+    public static long getCount(int pid, Cause cause) {
+        final AtomicLongArray counters = PROCESSES.get(pid);
+        return (null == counters) ? 0 : counters.get(cause.ordinal());
+    }
+
+    /**
+     * @return the number of page faults served as <i>how</i> which took
+     * between 2<sup>i-1</sup> and 2<sup>i</sup>-1 ticks, at index i (index
+     * 0 counts those which took no time at all).
+     */
+    public static long[] getLatencyHistogram(Cause how) {
+        final long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            result[i] = HISTOGRAMS.get(how.ordinal() * BUCKETS + i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the mean number of ticks a page fault served as <i>how</i>
+     * took, or 0 if there were none.
+     */
+    public static double getMeanLatency(Cause how) {
+        final long count = LATENCY_COUNT.get(how.ordinal());
+        return (0 == count) ? 0 : (double) LATENCY_SUM.get(how.ordinal()) / count;
+    }
+
+    /**
+     * Renders everything we counted as a single JSON object: the totals, the
+     * counts of each process (exited ones included) and a latency histogram
+     * for each way of serving a fault, keyed by the low end of each bucket.
+     * @param algorithm the name of the page replacement algorithm in use.
+     */
+    public static String toJson(String algorithm) {
+        final StringBuilder json = new StringBuilder();
+        json.append("{\"algorithm\":\"").append(algorithm).append('"');
+        json.append(",\"ticks\":").append(now());
+        json.append(",\"totals\":");
+        appendCounters(json, TOTALS);
+        json.append(",\"processes\":{");
+        boolean first = true;
+        for (Map.Entry<Integer, AtomicLongArray> process
+                : new TreeMap<Integer, AtomicLongArray>(PROCESSES).entrySet()) {
+            if (! first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(process.getKey()).append("\":");
+            appendCounters(json, process.getValue());
+        }
+        json.append("},\"latency\":{");
+        first = true;
+        for (Cause how : Cause.values()) {
+            if (0 == LATENCY_COUNT.get(how.ordinal())) {
+                continue;
+            }
+            if (! first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(how.getKey()).append("\":{\"count\":")
+                .append(LATENCY_COUNT.get(how.ordinal()))
+                .append(",\"mean\":")
+                .append(Math.round(getMeanLatency(how)))
+                .append(",\"buckets\":{");
+            final long[] histogram = getLatencyHistogram(how);
+            boolean firstBucket = true;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (0 == histogram[i]) {
+                    continue;
+                }
+                if (! firstBucket) {
+                    json.append(',');
+                }
+                firstBucket = false;
+                final long low = (0 == i) ? 0 : 1L << (i - 1);
+                json.append('"').append(low).append("\":").append(histogram[i]);
+            }
+            json.append("}}");
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    /**
+     * Forgets everything counted so far, such as what the unit tests did
+     * before the first real process starts.
+     */
+    static void reset() {
+        for (int i = 0; i < CAUSES; i++) {
+            TOTALS.set(i, 0);
+            LATENCY_SUM.set(i, 0);
+            LATENCY_COUNT.set(i, 0);
+        }
+        for (int i = 0; i < HISTOGRAMS.length(); i++) {
+            HISTOGRAMS.set(i, 0);
+        }
+        PROCESSES.clear();
+    }
+
+    private static void appendCounters(StringBuilder json, AtomicLongArray counters) {
+        json.append('{');
+        for (Cause cause : Cause.values()) {
+            if (cause.ordinal() > 0) {
+                json.append(',');
+            }
+            json.append('"').append(cause.getKey()).append("\":")
+                .append(counters.get(cause.ordinal()));
+        }
+        json.append('}');
+    }
+
+    private static AtomicLongArray findCounters(int pid) {
+        AtomicLongArray result = PROCESSES.get(pid);
+        if (null == result) {
+            final AtomicLongArray created = new AtomicLongArray(CAUSES);
+            result = PROCESSES.putIfAbsent(pid, created);
+            if (null == result) {
+                result = created;
+            }
+        }
+        return result;
+    }
+
+    /** @return the histogram bucket for a latency: its bit length. */
+    private static int bucketOf(long ticks) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ticks));
+    }
+
+    private static final int CAUSES = Cause.values().length;
+    /** Enough for any latency below 2<sup>31</sup> ticks. */
+    private static final int BUCKETS = 32;
+    private static final AtomicLongArray TOTALS = new AtomicLongArray(CAUSES);
+    private static final ConcurrentMap<Integer, AtomicLongArray>
+        PROCESSES = new ConcurrentHashMap<Integer, AtomicLongArray>();
+    private static final AtomicLongArray
+        HISTOGRAMS = new AtomicLongArray(CAUSES * BUCKETS);
+    private static final AtomicLongArray LATENCY_SUM = new AtomicLongArray(CAUSES);
+    private static final AtomicLongArray LATENCY_COUNT = new AtomicLongArray(CAUSES);
+}
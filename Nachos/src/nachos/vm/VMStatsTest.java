@@ -0,0 +1,96 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+import nachos.machine.Lib;
+
+/**
+ * Tests what {@link VMStats} counts, where a fault's latency lands in the
+ * histogram, and how it all comes out in the JSON dump. It starts by
+ * forgetting whatever was counted before.
+ */
+public class VMStatsTest {
+    public static void selfTest() {
+        VMStats.reset();
+        testCounts();
+        testLatency();
+        testJson();
+        testReset();
+    }
+
+    /**
+     * Events count for their process and in the totals, or only in the
+     * totals without a process.
+     */
+    public static void testCounts() {
+        final String METHOD_NAME = "VMStatsTest::testCounts";
+
+        VMStats.count(PID, VMStats.Cause.PAGE_FAULT);
+        VMStats.count(PID, VMStats.Cause.READAHEAD, 3);
+        VMStats.count(PID, VMStats.Cause.READAHEAD, 0);
+        VMStats.count(-1, VMStats.Cause.SWAP_OUT);
+        VMStats.count(PID + 1, VMStats.Cause.PAGE_FAULT);
+
+        Lib.assertTrue(1 == VMStats.getCount(PID, VMStats.Cause.PAGE_FAULT));
+        Lib.assertTrue(3 == VMStats.getCount(PID, VMStats.Cause.READAHEAD));
+        Lib.assertTrue(0 == VMStats.getCount(PID, VMStats.Cause.SWAP_OUT));
+        Lib.assertTrue(2 == VMStats.getCount(VMStats.Cause.PAGE_FAULT));
+        Lib.assertTrue(3 == VMStats.getCount(VMStats.Cause.READAHEAD));
+        Lib.assertTrue(1 == VMStats.getCount(VMStats.Cause.SWAP_OUT));
+        Lib.assertTrue(0 == VMStats.getCount(PID + 2, VMStats.Cause.PAGE_FAULT));
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    /**
+     * A fault which took t ticks lands in the bucket of t's bit length, and
+     * counts as one event of the way it was served.
+     */
+    public static void testLatency() {
+        final String METHOD_NAME = "VMStatsTest::testLatency";
+
+        final long now = VMStats.now();
+        for (int ticks : new int[] { 0, 1, 3, 6 }) {
+            VMStats.faultServed(PID, VMStats.Cause.SWAP_IN, now - ticks);
+        }
+
+        long[] expected = new long[32];
+        expected[0] = 1;
+        expected[1] = 1;
+        expected[2] = 1;
+        expected[3] = 1;
+        Lib.assertTrue(Arrays.equals(expected,
+                VMStats.getLatencyHistogram(VMStats.Cause.SWAP_IN)));
+        Lib.assertTrue(2.5 == VMStats.getMeanLatency(VMStats.Cause.SWAP_IN));
+        Lib.assertTrue(0 == VMStats.getMeanLatency(VMStats.Cause.COFF_FILL));
+        Lib.assertTrue(4 == VMStats.getCount(PID, VMStats.Cause.SWAP_IN));
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    public static void testJson() {
+        final String METHOD_NAME = "VMStatsTest::testJson";
+
+        final String json = VMStats.toJson("Clock");
+        Lib.assertTrue(json.startsWith("{\"algorithm\":\"Clock\",\"ticks\":"));
+        Lib.assertTrue(json.contains(",\"totals\":{\"page_fault\":2,"));
+        Lib.assertTrue(json.contains("\"" + PID + "\":{\"page_fault\":1,"));
+        Lib.assertTrue(json.contains("\"" + (PID + 1) + "\":{\"page_fault\":1,"));
+        Lib.assertTrue(json.contains(",\"latency\":{\"swap_in\":{\"count\":4,"
+                + "\"mean\":3,\"buckets\":{\"0\":1,\"1\":1,\"2\":1,\"4\":1}}}}"),
+                json);
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    public static void testReset() {
+        final String METHOD_NAME = "VMStatsTest::testReset";
+
+        VMStats.reset();
+        Lib.assertTrue(0 == VMStats.getCount(VMStats.Cause.PAGE_FAULT));
+        Lib.assertTrue(0 == VMStats.getCount(PID, VMStats.Cause.READAHEAD));
+        Lib.assertTrue(0 == VMStats.getMeanLatency(VMStats.Cause.SWAP_IN));
+        Lib.assertTrue(VMStats.toJson("Clock").endsWith(
+                ",\"processes\":{},\"latency\":{}}"));
+        System.out.println(METHOD_NAME + " OK");
+    }
+
+    private static final int PID = 10000;
+}
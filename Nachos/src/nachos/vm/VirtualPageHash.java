@@ -0,0 +1,169 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table from (pid,vpn) to the
+ * {@link SwapAwareTranslationEntry} describing that page. The key is packed
+ * into a single <tt>long</tt> so that lookups never box their arguments, and
+ * collisions are resolved by linear probing. Removal uses backward-shift
+ * deletion, so there are no tombstones and a probe sequence always stops at
+ * the first empty slot.
+ * <p>
+ * This class does no locking of its own; {@link InvertedPageTable} guards it.
+ */
+class VirtualPageHash
+{
+    public VirtualPageHash() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param expected the number of entries to size the table for.
+     */
+    public VirtualPageHash(int expected) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity * MAX_LOAD_NUM < expected * MAX_LOAD_DEN) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new SwapAwareTranslationEntry[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return the entry stored for (pid,vpn), or null if there is none.
+     */
+    public SwapAwareTranslationEntry get(int pid, int vpn) {
+        final long key = makeKey(pid, vpn);
+        for (int i = indexFor(key); ; i = (i + 1) & mask) {
+            final SwapAwareTranslationEntry value = values[i];
+            if (null == value) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Stores the entry for (pid,vpn), replacing any existing one.
+     * @return the entry which was replaced, or null if there was none.
+     */
+    public SwapAwareTranslationEntry put(
+            int pid, int vpn, SwapAwareTranslationEntry entry) {
+        if (null == entry) {
+            throw new IllegalArgumentException("null entry for ("+pid+","+vpn+")");
+        }
+        final long key = makeKey(pid, vpn);
+        int i = indexFor(key);
+        for ( ; null != values[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                final SwapAwareTranslationEntry old = values[i];
+                values[i] = entry;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = entry;
+        size++;
+        if (size * MAX_LOAD_DEN > values.length * MAX_LOAD_NUM) {
+            resize(values.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the entry for (pid,vpn).
+     * @return the entry which was removed, or null if there was none.
+     */
+    public SwapAwareTranslationEntry remove(int pid, int vpn) {
+        final long key = makeKey(pid, vpn);
+        int i = indexFor(key);
+        for ( ; ; i = (i + 1) & mask) {
+            if (null == values[i]) {
+                return null;
+            }
+            if (keys[i] == key) {
+                break;
+            }
+        }
+        final SwapAwareTranslationEntry old = values[i];
+        // shift back any following entries who probed past the hole
+        int hole = i;
+        for (int j = (hole + 1) & mask; null != values[j]; j = (j + 1) & mask) {
+            final int home = indexFor(keys[j]);
+            // can the entry at j legally live in the hole?
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = null;
+        keys[hole] = 0;
+        size--;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        Arrays.fill(keys, 0L);
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        final long[] oldKeys = keys;
+        final SwapAwareTranslationEntry[] oldValues = values;
+        keys = new long[capacity];
+        values = new SwapAwareTranslationEntry[capacity];
+        mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (null == oldValues[j]) {
+                continue;
+            }
+            int i = indexFor(oldKeys[j]);
+            while (null != values[i]) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    private int indexFor(long key) {
+        return mix(key) & mask;
+    }
+
+    /**
+     * The 64-bit finalizer from MurmurHash3, which spreads the
+     * sequential vpns of a process across the whole table.
+     */
+    static int mix(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    static long makeKey(int pid, int vpn) {
+        return ((long) pid << 32) | (vpn & 0xffffffffL);
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+    /** Grow once the table is more than half full. */
+    private static final int MAX_LOAD_NUM = 1;
+    private static final int MAX_LOAD_DEN = 2;
+    private long[] keys;
+    private SwapAwareTranslationEntry[] values;
+    private int mask;
+    private int size;
+}
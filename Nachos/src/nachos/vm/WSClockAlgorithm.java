@@ -0,0 +1,87 @@
+package nachos.vm;
+
+import nachos.machine.Config;
+import nachos.machine.Machine;
+
+/**
+ * WSClock, selected with <tt>Algorithm = nachos.vm.WSClockAlgorithm</tt>.
+ * Every frame remembers when it was last referenced, and a page which has
+ * gone unreferenced for longer than the window tau has left its process's
+ * working set. The hand evicts the first such page which is clean; old dirty
+ * pages are only taken if a whole lap finds no clean one, since evicting
+ * them costs a write to swap. Failing that we take the page referenced
+ * longest ago.
+ * <p>
+ * Time is measured in page faults, and tau comes from
+ * <tt>WSClockAlgorithm.tau</tt>, defaulting to the number of physical pages.
+ */
+public class WSClockAlgorithm extends AbstractAlgorithm
+{
+    public WSClockAlgorithm() {
+        tau = Config.getInteger("WSClockAlgorithm.tau", -1);
+    }
+
+    @Override
+    public int findVictim() {
+        InvertedPageTable.syncAllProcTlb();
+        final int numPhysPages = Machine.processor().getNumPhysPages();
+        init(numPhysPages);
+        final long window = (tau > 0) ? tau : numPhysPages;
+        int oldDirty = -1;
+        int oldest = -1;
+        for (int i = 0; i < numPhysPages; i++) {
+            final int ppn = hand;
+            hand = (hand + 1) % numPhysPages;
+            final SwapAwareTranslationEntry entry
+                    = InvertedPageTable.findEntryForPpn(ppn);
+            if (null == entry) {
+                return ppn;
+            }
+            if (now - lastUse[ppn] > window) {
+                if (! entry.isDirty()) {
+                    return ppn;
+                }
+                if (-1 == oldDirty) {
+                    oldDirty = ppn;
+                }
+            }
+            if (-1 == oldest || lastUse[ppn] < lastUse[oldest]) {
+                oldest = ppn;
+            }
+        }
+        return (-1 != oldDirty) ? oldDirty : oldest;
+    }
+
+    @Override
+    public void faulted(int pid, int vpn) {
+        now++;
+    }
+
+    @Override
+    public void pageIn(int ppn, int pid, int vpn) {
+        init(Machine.processor().getNumPhysPages());
+        lastUse[ppn] = now;
+    }
+
+    @Override
+    public void referenced(int ppn) {
+        if (null != lastUse) {
+            lastUse[ppn] = now;
+        }
+    }
+
+    private void init(int numPhysPages) {
+        if (null == lastUse || lastUse.length != numPhysPages) {
+            lastUse = new long[numPhysPages];
+            hand = 0;
+        }
+    }
+
+    /** The working set window, in page faults; 0 or less for the default. */
+    private final int tau;
+    /** The page fault count, which serves as our clock. */
+    private long now = 0;
+    /** The page fault count when each frame was last referenced. */
+    private long[] lastUse;
+    private int hand = 0;
+}
@@ -0,0 +1,129 @@
+package nachos.vm;
+
+import nachos.threads.KThread;
+
+/**
+ * What {@link MemoryBalancer} knows about the memory needs of one process:
+ * the frames it holds, the distinct pages it touched and the page faults it
+ * took during the current interval, and the working set, fault count and
+ * frame quota measured over the last complete one.
+ * <p>
+ * This class does no locking of its own; {@link MemoryBalancer} guards it.
+ */
+class WorkingSet
+{
+    public WorkingSet(int pid) {
+        this.pid = pid;
+    }
+
+    /** Notes a page fault, which also counts as touching the page. */
+    public void faulted() {
+        faults++;
+        totalFaults++;
+    }
+
+    /** Notes the first touch of one of our pages in this interval. */
+    public void touched() {
+        touched++;
+    }
+
+    public void pageIn() {
+        resident++;
+    }
+
+    public void evicted() {
+        resident--;
+    }
+
+    /**
+     * Closes the interval: the pages touched in it become our working set,
+     * and our quota is the working set plus whatever we faulted beyond our
+     * fair share, since a process faulting that often is short of frames.
+     * @param fairShare the interval's page faults divided by the number of
+     * processes.
+     */
+    public void endInterval(int fairShare) {
+        workingSet = touched;
+        lastFaults = faults;
+        quota = Math.max(MIN_QUOTA,
+                workingSet + Math.max(0, faults - fairShare));
+        touched = 0;
+        faults = 0;
+    }
+
+    /**
+     * @return true if we hold more frames than our quota, or we are
+     * suspended and ought to hold none at all.
+     */
+    public boolean isOverQuota() {
+        return suspended ? resident > 0 : resident > quota;
+    }
+
+    public int getPid() {
+        return pid;
+    }
+
+    public int getResident() {
+        return resident;
+    }
+
+    public int getWorkingSet() {
+        return workingSet;
+    }
+
+    /** @return the page faults we took so far in the current interval. */
+    public int getFaults() {
+        return faults;
+    }
+
+    /** @return the page faults we took during the last interval. */
+    public int getLastFaults() {
+        return lastFaults;
+    }
+
+    public int getTotalFaults() {
+        return totalFaults;
+    }
+
+    public int getQuota() {
+        return quota;
+    }
+
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    public void setSuspended(boolean suspended) {
+        this.suspended = suspended;
+    }
+
+    /** @return the thread which last faulted for us, or null. */
+    public KThread getThread() {
+        return thread;
+    }
+
+    public void setThread(KThread thread) {
+        this.thread = thread;
+    }
+
+    @Override
+    public String toString() {
+        return "WorkingSet[pid="+pid+" resident="+resident
+                +" ws="+workingSet+" faults="+lastFaults
+                +" quota="+quota+(suspended ? " suspended" : "")+"]";
+    }
+
+    /** Nobody is held to fewer frames than this. */
+    private static final int MIN_QUOTA = 2;
+    private final int pid;
+    private KThread thread;
+    private int resident;
+    private int touched;
+    private int faults;
+    private int totalFaults;
+    private int workingSet;
+    private int lastFaults;
+    /** No quota until we have seen a whole interval. */
+    private int quota = Integer.MAX_VALUE;
+    private boolean suspended;
+}